@@ -4,6 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
 
@@ -651,6 +655,214 @@ public class Graph {
 		}
 	}
 	
+	/**
+	 * This method matches each vertex with the unmatched neighbor sharing the heaviest (multi-)edge,
+	 * visiting the vertices in random order (heavy-edge matching), unmatched vertices stay alone
+	 * The weight of an edge is its count plus the weight of the paths of length two between its ends (shared neighbors),
+	 * relative to the product of the degrees of its ends, so that unit edges inside a block outweigh those between blocks
+	 * and supernodes of coarse graphs do not attract each other by their size alone
+	 * @return the index of the supernode of each vertex int[]
+	 * @param null
+	 */
+	public int[] heavyEdgeMatching() {
+		int[] map = new int[numVtx];
+		for (int i=0; i<numVtx; i++)
+			map[i] = -1; //unmatched
+		int[] order = new int[numVtx];
+		for (int i=0; i<numVtx; i++)
+			order[i] = i;
+		Random r = new Random(); //random visiting order
+		for (int i=numVtx-1; i>0; i--) {
+			int j = r.nextInt(i+1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		double[] shared = new double[numVtx]; //weight of the paths of length two from the visited vertex
+		int[] touched = new int[numVtx]; //vertices with a non-zero shared weight
+		int supernodes = 0;
+		for (int h=0; h<numVtx; h++) {
+			int i = order[h];
+			if (map[i] >= 0)
+				continue;
+			int reached = 0;
+			for (int j=0; j<vList[i].targets.size(); j++) {
+				int k = vList[i].targets.get(j);
+				if (k == i)
+					continue;
+				for (int l=0; l<vList[k].targets.size(); l++) {
+					int t = vList[k].targets.get(l);
+					if (t == k || t == i)
+						continue;
+					if (shared[t] == 0)
+						touched[reached++] = t;
+					shared[t] += (double) vList[i].targetCount.get(j) * vList[k].targetCount.get(l);
+				}
+			}
+			int heaviest = -1; //unmatched neighbor with the heaviest edge
+			double weight = 0;
+			for (int j=0; j<vList[i].targets.size(); j++) {
+				int target = vList[i].targets.get(j);
+				if (target != i && map[target] < 0) {
+					double w = (vList[i].targetCount.get(j) + shared[target]) / degree(i) / degree(target);
+					if (w > weight) {
+						heaviest = target;
+						weight = w;
+					}
+				}
+			}
+			for (int j=0; j<vList[i].sources.size(); j++) { //reversed edges for directed graphs
+				int source = vList[i].sources.get(j);
+				if (source != i && map[source] < 0) {
+					double w = (vList[i].sourceCount.get(j) + shared[source]) / degree(i) / degree(source);
+					if (w > weight) {
+						heaviest = source;
+						weight = w;
+					}
+				}
+			}
+			for (int t=0; t<reached; t++)
+				shared[touched[t]] = 0;
+			map[i] = supernodes;
+			if (heaviest >= 0)
+				map[heaviest] = supernodes;
+			supernodes++;
+		}
+		return map;
+	}
+	/**
+	 * This method returns the total degree of a vertex, counting both directions for directed graphs
+	 * @return the degree double
+	 * @param i int
+	 */
+	private double degree(int i) {
+		if (directed)
+			return vList[i].outDegree + vList[i].inDegree;
+		return vList[i].outDegree;
+	}
+	/**
+	 * This method colors the vertices greedily so that no edge (in either direction, self loops aside) joins two vertices of the same color,
+	 * visiting the vertices in decreasing order of degree (Welsh-Powell), each taking the smallest color unused by its neighbors
+	 * @return the color of each vertex, from 0 up int[]
+	 * @param null
+	 */
+	public int[] greedyColoring() {
+		int[] color = new int[numVtx];
+		Integer[] order = new Integer[numVtx];
+		for (int i=0; i<numVtx; i++) {
+			color[i] = -1; //uncolored
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return (vList[b].targets.size() + vList[b].sources.size()) - (vList[a].targets.size() + vList[a].sources.size());
+			}
+		});
+		int[] usedBy = new int[numVtx+1]; //the last vertex whose neighbors used each color
+		Arrays.fill(usedBy, -1);
+		for (int h=0; h<numVtx; h++) {
+			int i = order[h];
+			for (int j=0; j<vList[i].targets.size(); j++) {
+				int target = vList[i].targets.get(j);
+				if (target != i && color[target] >= 0)
+					usedBy[color[target]] = i;
+			}
+			for (int j=0; j<vList[i].sources.size(); j++) { //reversed edges for directed graphs
+				int source = vList[i].sources.get(j);
+				if (source != i && color[source] >= 0)
+					usedBy[color[source]] = i;
+			}
+			int c = 0;
+			while (usedBy[c] == i)
+				c++;
+			color[i] = c;
+		}
+		return color;
+	}
+	/**
+	 * This method creates a coarse multi-graph by merging the vertices mapped to the same supernode,
+	 * edges between supernodes are aggregated into multi-edge counts, and edges inside a supernode become self-loop targets
+ * so the degree of a supernode is the sum of the degrees of its members
+	 * Each supernode keeps the id and type of its first vertex
+	 * @return the coarse graph
+	 * @param map int[]
+	 */
+	public Graph coarsen(int[] map) {
+		int supernodes = 0;
+		for (int i=0; i<numVtx; i++)
+			if (map[i] + 1 > supernodes)
+				supernodes = map[i] + 1;
+		Graph coarse = new Graph();
+		coarse.listType2Value = listType2Value;
+		coarse.numVtx = supernodes;
+		coarse.numType = numType;
+		coarse.numTrueType = numTrueType;
+		coarse.directed = directed;
+		coarse.selfLoop = selfLoop;
+		coarse.multiEdge = true; //aggregated edges
+		coarse.degreeCorrect = degreeCorrect;
+		coarse.typeP = typeP;
+		coarse.gNode = gNode;
+		coarse.vtxSelfloopCount = new int[supernodes];
+		coarse.vList = new Vertex[supernodes];
+		for (int i=0; i<numVtx; i++)
+			if (coarse.vList[map[i]] == null) { //first vertex of the supernode
+				Vertex v = coarse.new Vertex();
+				v.index = map[i];
+				v.id = vList[i].id;
+				v.type = vList[i].type;
+				v.value = vList[i].value;
+				coarse.vList[map[i]] = v;
+			}
+		for (int i=0; i<supernodes; i++) {
+			coarse.listIndex2Id.add(coarse.vList[i].id);
+			coarse.listIndex2Type.add(coarse.vList[i].type);
+		}
+
+		// Aggregate the edge counts of the members of each supernode
+		ArrayList<Map<Integer, Integer>> out = new ArrayList<Map<Integer, Integer>>();
+		ArrayList<Map<Integer, Integer>> in = new ArrayList<Map<Integer, Integer>>();
+		for (int i=0; i<supernodes; i++) {
+			out.add(new HashMap<Integer, Integer>());
+			in.add(new HashMap<Integer, Integer>());
+		}
+		for (int i=0; i<numVtx; i++) {
+			coarse.vtxSelfloopCount[map[i]] += vtxSelfloopCount[i];
+			for (int j=0; j<vList[i].targets.size(); j++) {
+				int target = map[vList[i].targets.get(j)];
+				int count = vList[i].targetCount.get(j);
+				if (target == map[i]) { //edge inside the supernode, kept as a self-loop target
+					if (directed || vList[i].targets.get(j) > i) //undirected edges are listed from both ends
+						coarse.vtxSelfloopCount[target] += count;
+					coarse.selfLoop = true;
+				}
+				Integer old = out.get(map[i]).get(target);
+				out.get(map[i]).put(target, (old == null ? 0 : old) + count);
+				old = in.get(target).get(map[i]);
+				in.get(target).put(map[i], (old == null ? 0 : old) + count);
+			}
+		}
+		int degrees = 0;
+		for (int i=0; i<supernodes; i++) {
+			for (Map.Entry<Integer, Integer> edge : out.get(i).entrySet()) {
+				coarse.vList[i].targets.add(edge.getKey());
+				coarse.vList[i].targetCount.add(edge.getValue());
+				coarse.vList[i].outDegree += edge.getValue();
+			}
+			for (Map.Entry<Integer, Integer> edge : in.get(i).entrySet()) {
+				coarse.vList[i].sources.add(edge.getKey());
+				coarse.vList[i].sourceCount.add(edge.getValue());
+				coarse.vList[i].inDegree += edge.getValue();
+			}
+			degrees += coarse.vList[i].outDegree;
+		}
+		if (directed)
+			coarse.numEgs = degrees; //number of edges (with multiplicity)
+		else
+			coarse.numEgs = degrees / 2; //bi-directed edges for undirected graphs
+		return coarse;
+	}
+	
 	/**
 	 * This method consolidate the graph by removing all isolated singletons
 	 * @param index int
@@ -736,6 +948,42 @@ public class Graph {
 		}
 		return count; 	
 	}
+	/**
+	 * This method returns the number of nodes in each block of a given assignment
+	 * @param labels int[]
+	 */
+	public int[] getNumNodesType(int[] labels) {
+		int[] count = new int[numType];
+		for (int i=0; i<numVtx; i++)
+			count[labels[i]]++;
+		return count;
+	}
+	/**
+	 * This method returns the number of edges between blocks of a given assignment (linear in the number of edges)
+	 * @param labels int[]
+	 */
+	public int[][] getNumEdgsType(int[] labels) {
+		int[][] count = new int[numType][numType];
+		for (int i=0; i<numVtx; i++)
+			for (int j=0; j<vList[i].targets.size(); j++)
+				if (vList[i].targets.get(j) != i)
+					count[labels[i]][labels[vList[i].targets.get(j)]] += vList[i].targetCount.get(j);
+		return count;
+	}
+	/**
+	 * This method returns the number of degree-corrected edges between blocks of a given assignment (linear in the number of edges)
+	 * @param labels int[]
+	 */
+	public double[][] getNumDegreeType(int[] labels) {
+		double[][] count = new double[numType][numType];
+		for (int i=0; i<numVtx; i++)
+			for (int j=0; j<vList[i].targets.size(); j++) {
+				int target = vList[i].targets.get(j);
+				if (target != i)
+					count[labels[i]][labels[target]] += (double) vList[i].targetCount.get(j) / vList[i].outDegree / vList[target].inDegree;
+			}
+		return count;
+	}
 	/**
 	 * This method returns the lowest out degree of a node in graph
 	 * @param null
@@ -788,4 +1036,4 @@ public class Graph {
 		}
 		return count; 	
 	}
-}
+}
@@ -0,0 +1,309 @@
+package variationalEM;
+
+import graphTools.Graph;
+
+
+/**
+ * This class implements the linear BP E-step for a batch of candidate block parameters in lockstep
+ * Every candidate is a BPfastMU (dense messages) with its own typeP and gNode, e.g. the attempts in MainFunction.tune,
+ * the sweeps of all candidates share a single pass over the adjacency, with messages laid out as [edge x candidate x block]
+ * The candidates serve as views: messages are copied back after each E-step, so their mStep works as usual
+ * Built for undirected multi-graphs and Poisson/DC block models
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class BPbatchMU {
+	// --- Instance Variables ----------------------------------------------------
+	Graph graph; //the graph shared by all candidates
+	BPfastMU[] views; //the candidates, holding their own block parameters
+	boolean degreeCorrect; //flag for degree correction in model
+	boolean gSizeCorrect; //flag for group size correction in model
+	int B; //number of candidates
+	int K; //number of blocks
+	int[] offset; //first message slot of each node, the slots of node i are offset[i] to offset[i+1]-1
+	int[] slotTarget; //target node of each message slot
+	int[] slotSource; //position of the slot target in the source list of the slot owner, -1 if none
+	int[] srcStart; //first source entry of each node, the sources of node i are srcStart[i] to srcStart[i+1]-1
+	int[] srcNode; //source node of each source entry
+	int[] srcSlot; //message slot of the reversed message (source to node) of each source entry
+	int[] srcCount; //edge count of each source entry, -1 if the edge is not doubled (no message contribution)
+	int[] degree; //out degree of each node
+	double[] msg; //directed messages indexed [(slot * B + b) * K + k]
+	double[] others; //non-edge messages (marginals) indexed [(node * B + b) * K + k]
+	double[] field; //scratch for the shared log-field of one node [b * K + k], without the vanishing contributions
+	int[] vanish; //scratch for the number of vanishing (log zero) source contributions in the log-field [b * K + k]
+	double[] cavity; //scratch for the per-source contributions of one node [(source * B + b) * K + k]
+	double[] newmsg; //scratch for one new message across candidates [b * K + k]
+
+	// --- Constructors ----------------------------------------------------------
+	public BPbatchMU(){} //the empty constructor
+	/**
+	 * This constructor packs the messages of the candidates into the batch layout and indexes the adjacency
+	 * All candidates must be dense BPfastMU engines on the same graph with the same model flags
+	 * @param candidates BPfastMU[]
+	 */
+	public BPbatchMU(BPfastMU[] candidates) {
+		views = candidates;
+		graph = views[0].graph;
+		degreeCorrect = views[0].degreeCorrect;
+		gSizeCorrect = views[0].gSizeCorrect;
+		B = views.length;
+		K = graph.getNumType();
+		int V = graph.getNumNodes();
+
+		// Compressed adjacency with precomputed reverse indices
+		offset = new int[V+1];
+		srcStart = new int[V+1];
+		degree = new int[V];
+		for (int i=0; i<V; i++) {
+			offset[i+1] = offset[i] + views[0].slots(i);
+			srcStart[i+1] = srcStart[i] + graph.vList[i].sources.size();
+			degree[i] = graph.vList[i].outDegree;
+		}
+		slotTarget = new int[offset[V]];
+		slotSource = new int[offset[V]];
+		srcNode = new int[srcStart[V]];
+		srcSlot = new int[srcStart[V]];
+		srcCount = new int[srcStart[V]];
+		for (int i=0; i<V; i++) {
+			int tSize = graph.vList[i].targets.size();
+			for (int j=0; j<offset[i+1]-offset[i]; j++) {
+				if (j < tSize)
+					slotTarget[offset[i]+j] = graph.vList[i].targets.get(j);
+				else //the message target is on a reversed edge
+					slotTarget[offset[i]+j] = graph.vList[i].sources.get(j-tSize);
+				slotSource[offset[i]+j] = graph.vList[i].sources.indexOf(slotTarget[offset[i]+j]);
+			}
+			for (int l=0; l<graph.vList[i].sources.size(); l++) {
+				int source = graph.vList[i].sources.get(l);
+				int index = graph.vList[source].targets.indexOf(i); //index in the msgTargets[source]
+				srcNode[srcStart[i]+l] = source;
+				srcSlot[srcStart[i]+l] = offset[source] + index;
+				if (source != i && graph.vList[i].targets.contains(source)) //case 1: double edges between i and source
+					srcCount[srcStart[i]+l] = graph.vList[source].targetCount.get(index);
+				else
+					srcCount[srcStart[i]+l] = -1;
+			}
+		}
+
+		// Messages of all candidates, interleaved per slot
+		msg = new double[offset[V] * B * K];
+		others = new double[V * B * K];
+		double[] buffer = new double[K];
+		for (int b=0; b<B; b++)
+			for (int i=0; i<V; i++) {
+				for (int k=0; k<K; k++)
+					others[(i*B+b)*K+k] = views[b].message[i].others[k];
+				for (int j=0; j<offset[i+1]-offset[i]; j++) {
+					double[] m = views[b].edgeMsg(i, j, buffer);
+					for (int k=0; k<K; k++)
+						msg[((offset[i]+j)*B+b)*K+k] = m[k];
+				}
+			}
+		int maxSources = 0;
+		for (int i=0; i<V; i++)
+			maxSources = java.lang.Math.max(maxSources, srcStart[i+1]-srcStart[i]);
+		field = new double[B*K];
+		vanish = new int[B*K];
+		cavity = new double[maxSources*B*K];
+		newmsg = new double[B*K];
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method does a sweep of message updates (asynchronous) for all active candidates in a single pass over the network,
+	 * mean-fielding the non-edge messages as BPfastMU.stepBPfast
+	 * The contributions of the sources of a node do not depend on the message target,
+	 * so they are summed once per node and the target's own contribution is removed for each edge message
+	 * @return measure of change in terms of messages in L1 norm for each candidate double[]
+	 * @param active boolean[]
+	 */
+	public double[] stepBatch(boolean[] active) {
+		//base messages for speed up (case 2: no edges)
+		double[] baseMsg = new double[B*K];
+		for (int h=0; h<graph.getNumNodes(); h++)
+			for (int b=0; b<B; b++) if (active[b]) {
+				double[][] typeP = views[b].typeP;
+				for (int k1=0; k1<K; k1++) {
+					double temp = 0;
+					for (int k2=0; k2<K; k2++) {
+						if (degreeCorrect) //for the DC model
+							temp += others[(h*B+b)*K+k2] * typeP[k2][k1];
+						else //for the vanilla model
+							temp += others[(h*B+b)*K+k2] * java.lang.Math.exp(-typeP[k2][k1]);
+					}
+					if (degreeCorrect)
+						baseMsg[b*K+k1] += temp * degree[h]; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
+					else
+						baseMsg[b*K+k1] += java.lang.Math.log(temp);
+				}
+			}
+
+		int[] Ulist = views[0].permute(); //pick a random update order, shared by the candidates
+		double[] delta = new double[B]; //measure of change
+		for (int i=0; i<Ulist.length; i++) {
+			int u = Ulist[i];
+			int totalD = 1;
+			if (degreeCorrect) //for the DC model
+				totalD = degree[u];
+			// The shared log-field: base message minus the duplicate self term
+			for (int b=0; b<B; b++) if (active[b]) {
+				double[][] typeP = views[b].typeP;
+				for (int k1=0; k1<K; k1++) {
+					vanish[b*K+k1] = 0;
+					if (degreeCorrect) //for the DC model
+						field[b*K+k1] = -baseMsg[b*K+k1] * totalD;
+					else
+						field[b*K+k1] = baseMsg[b*K+k1];
+					double temp = 0;
+					for (int k2=0; k2<K; k2++)
+						temp += others[(u*B+b)*K+k2] * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD);
+					if (temp != 0)
+						field[b*K+k1] -= java.lang.Math.log(temp);
+				}
+			}
+			// Neighboring messages following the edges, one pass over the sources for all candidates
+			for (int l=0; l<srcStart[u+1]-srcStart[u]; l++) {
+				int e = srcStart[u] + l;
+				for (int b=0; b<B; b++) if (active[b]) {
+					for (int k1=0; k1<K; k1++)
+						cavity[(l*B+b)*K+k1] = 0;
+					if (srcCount[e] < 0) //case 2: no edges, do nothing. It is already handled by the base message by construction.
+						continue;
+					double[][] typeP = views[b].typeP;
+					int source = srcNode[e];
+					int totalD2 = 1; //default vanilla model
+					if (degreeCorrect) //for the DC model
+						totalD2 = degree[source];
+					double scale = totalD2 * totalD;
+					double shift = views[b].edgeShift(scale, srcCount[e]); //keeps large multi-edge counts from underflowing
+					for (int k1=0; k1<K; k1++) {
+						double temp1 = 0;
+						double temp2 = 0;
+						for (int k2=0; k2<K; k2++) {
+							double rate = typeP[k2][k1] * scale;
+							temp1 += msg[(srcSlot[e]*B+b)*K+k2] * java.lang.Math.exp(views[b].logPoisson(rate, srcCount[e]) - rate - shift);
+							temp2 += others[(source*B+b)*K+k2] * java.lang.Math.exp(-rate);
+						}
+						if (temp2 != 0) {
+							cavity[(l*B+b)*K+k1] = java.lang.Math.log(temp1) - java.lang.Math.log(temp2);
+							if (cavity[(l*B+b)*K+k1] == Double.NEGATIVE_INFINITY) //kept apart so that it can be removed again
+								vanish[b*K+k1]++;
+							else
+								field[b*K+k1] += cavity[(l*B+b)*K+k1];
+						}
+					}
+				}
+			}
+			// Messages of node u in slot order, plus 1 for the non-edge messages
+			int slotsU = offset[u+1] - offset[u];
+			for (int j=0; j<slotsU+1; j++) {
+				for (int b=0; b<B; b++) if (active[b]) {
+					double[][] typeP = views[b].typeP;
+					for (int k1=0; k1<K; k1++) {
+						newmsg[b*K+k1] = field[b*K+k1];
+						int zeros = vanish[b*K+k1];
+						if (j < slotsU) { //get rid of duplicate target term and the target's own contribution
+							int target = slotTarget[offset[u]+j];
+							int l = slotSource[offset[u]+j];
+							double temp = 0;
+							for (int k2=0; k2<K; k2++)
+								temp += others[(target*B+b)*K+k2] * java.lang.Math.exp(-typeP[k2][k1] * degree[target] * totalD);
+							if (temp != 0)
+								newmsg[b*K+k1] -= java.lang.Math.log(temp);
+							if (l >= 0) {
+								if (cavity[(l*B+b)*K+k1] == Double.NEGATIVE_INFINITY)
+									zeros--;
+								else
+									newmsg[b*K+k1] -= cavity[(l*B+b)*K+k1];
+							}
+						}
+						if (zeros > 0)
+							newmsg[b*K+k1] = Double.NEGATIVE_INFINITY;
+					}
+
+					double top = Double.NEGATIVE_INFINITY; //largest log-field, taken off before exponentiation
+					for (int k=0; k<K; k++) {
+						if (gSizeCorrect) //group size correction
+							newmsg[b*K+k] = newmsg[b*K+k] + java.lang.Math.log(views[b].gNode[k]);
+						if (newmsg[b*K+k] > top)
+							top = newmsg[b*K+k];
+					}
+					if (Double.isInfinite(top)) //all blocks vanish
+						top = 0;
+					double sum = 0;
+					for (int k=0; k<K; k++) {
+						newmsg[b*K+k] = java.lang.Math.exp(newmsg[b*K+k] - top);
+						sum += newmsg[b*K+k]; //for message normalization
+					}
+					int base; //position of the message being updated
+					if (j < slotsU)
+						base = ((offset[u]+j)*B+b)*K;
+					else
+						base = (u*B+b)*K;
+					double[] store = (j < slotsU) ? msg : others;
+					for (int k=0; k<K; k++) {
+						double m;
+						if (sum == 0) //boundary cases
+							m = 1.0/K;
+						else
+							m = newmsg[b*K+k] / sum;
+						delta[b] += java.lang.Math.abs(store[base+k]-m);
+						store[base+k] = 0.5*store[base+k] + 0.5*m; //damping propagation
+					}
+				}
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * This method implements the E-step inner-loops for the active candidates in lockstep,
+	 * each candidate stops at its own convergence threshold (or 10 sweeps) as BPfastMU.convergeExpectation,
+	 * and the messages are copied back to the candidates for their M-steps
+	 * @return block marginal vectors for all nodes of each candidate, null for inactive candidates double[][][]
+	 * @param active boolean[]
+	 */
+	public double[][][] convergeExpectation(boolean[] active) {
+		boolean[] running = active.clone();
+		for (int b=0; b<B; b++)
+			if (active[b])
+				views[b].steps = 0;
+		//The inner loop with a bound of 10 sweeps
+		for (int step=0; step<10; step++) {
+			boolean any = false;
+			for (int b=0; b<B; b++)
+				any = any || running[b];
+			if (!any)
+				break;
+			double[] delta = stepBatch(running); //Do a E-step sweep across all nodes for all running candidates
+			for (int b=0; b<B; b++)
+				if (running[b]) {
+					views[b].steps++;
+					if (delta[b] <= views[b].epsilon)
+						running[b] = false; //converged
+				}
+		}
+
+		double[][][] marginal = new double[B][][];
+		for (int b=0; b<B; b++) if (active[b]) {
+			marginal[b] = new double[graph.getNumNodes()][K];
+			for (int i=0; i<graph.getNumNodes(); i++) {
+				for (int k=0; k<K; k++) { // non-edge message = marginal vector for each node
+					marginal[b][i][k] = others[(i*B+b)*K+k];
+					views[b].message[i].others[k] = marginal[b][i][k];
+				}
+				for (int j=0; j<offset[i+1]-offset[i]; j++) {
+					double[] m = views[b].message[i].msgTargets.get(j);
+					for (int k=0; k<K; k++)
+						m[k] = msg[((offset[i]+j)*B+b)*K+k];
+				}
+			}
+		}
+		return marginal;
+	}
+
+}
@@ -3,6 +3,7 @@ package variationalEM;
 import graphTools.Graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 
@@ -28,6 +29,16 @@ public class BPfastMU extends EMstep{
 	}
 	// --- Instance Variables ----------------------------------------------------
 	Vmsg[] message; //message passing on each vertex along edges / non-edges
+	double[] nodeSum; //sum of the non-edge messages (degree weighted for DC) for the stochastic mode, null when stale
+	double[][] edgeStat; //running estimate of the expected edge counts between blocks (stochastic mode)
+	double[][] pairStat; //running estimate of the expected pair exposures between blocks (stochastic mode)
+	double[] sizeStat; //running estimate of the expected block sizes (stochastic mode)
+	int[][] edgeIndex; //for each node and source position, index of the node among the targets of the source (-1 for self and one-way edges)
+	int[][] slotSource; //for each node and message slot, position of the message target among the sources of the node (-1 if none)
+	double[] field; //scratch log-field of the node being updated
+	int[] vanish; //scratch count of vanishing contributions per block
+	double[] cavity; //scratch contributions of the neighboring messages, flat by source position and block
+	double[] newmsg; //scratch new message
 	// --- Constructors ----------------------------------------------------------
 	public BPfastMU(){} //the empty constructor
 	/**
@@ -82,33 +93,156 @@ public class BPfastMU extends EMstep{
 	public BPfastMU(Graph g, BPfastMU copy) {
 		super(g, copy.degreeCorrect, copy.gSizeCorrect, copy.typeP, copy.gNode); //calling the parent constructor
 
+		epsilon = copy.epsilon;
 		likelihood = copy.likelihood;
 		likelihoodHard = copy.likelihoodHard;
 		message = new Vmsg[graph.getNumNodes()];
+		double[] buffer = new double[graph.getNumType()]; //decoding buffer for compressed messages
 		for (int i=0; i<message.length; i++) {
 			message[i] = new Vmsg();
 			//copying none-edge messages / marginal vectors
-			message[i].others = copy.message[i].others;
+			message[i].others = new double[graph.getNumType()];
+			for (int k=0; k<graph.getNumType(); k++)
+				message[i].others[k] = copy.message[i].others[k];
 			//copying directed messages
 			int msgsN = graph.vList[i].targets.size() + graph.vList[i].sources.size();
 			for (int j=0; j<msgsN; j++){
 				double[] msg = new double[graph.getNumType()];
-				for (int k=0; k<msg.length; k++) 			
-					msg[k] = copy.message[i].msgTargets.get(j)[k];
+				double[] copyMsg = copy.edgeMsg(i, j, buffer);
+				for (int k=0; k<msg.length; k++)
+					msg[k] = copyMsg[k];
 				message[i].msgTargets.add(msg);
 			}
 		}
-		
+		if (copy.graph == graph) { //the slot indices only depend on the graph
+			edgeIndex = copy.edgeIndex;
+			slotSource = copy.slotSource;
+		}
 	}
 	
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the linear BP, including block parameters as well as messages
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		return new BPfastMU(graph, this);
+	}
+	/**
+	 * This method seeds the non-edge messages with the node marginals, and the directed messages with the marginals of their sources
+	 * A polymorphic extension of the method seed in the parent class
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {
+		nodeSum = null; //the stochastic statistics are stale
+		for (int i=0; i<message.length; i++) {
+			for (int k=0; k<graph.getNumType(); k++)
+				message[i].others[k] = M[i][k];
+			for (int j=0; j<message[i].msgTargets.size(); j++)
+				for (int k=0; k<graph.getNumType(); k++)
+					message[i].msgTargets.get(j)[k] = M[i][k];
+		}
+	}
+	/**
+	 * This method returns the number of directed messages (edges plus reversed edges) kept on a node
+	 * @return number of message slots int
+	 * @param node int
+	 */
+	protected int slots(int node) {
+		return graph.vList[node].targets.size() + graph.vList[node].sources.size();
+	}
+	/**
+	 * This method returns the directed message j of a node as a dense vector
+	 * Child classes with compressed messages decode into the buffer
+	 * @return dense message double[]
+	 * @param node int
+	 * @param j int
+	 * @param buffer double[]
+	 */
+	protected double[] edgeMsg(int node, int j, double[] buffer) {
+		return message[node].msgTargets.get(j);
+	}
+	/**
+	 * This method sums the directed message j of a node against the Poisson edge term of target block k1
+	 * @return the sum over the source blocks double
+	 * @param node int
+	 * @param j int
+	 * @param k1 int
+	 * @param scale double
+	 * @param edgeC int
+	 * @param shift double
+	 */
+	protected double edgeSum(int node, int j, int k1, double scale, int edgeC, double shift) {
+		double[] msg = message[node].msgTargets.get(j);
+		double temp = 0;
+		for (int k2=0; k2<msg.length; k2++) {
+			double rate = typeP[k2][k1] * scale;
+			temp += msg[k2] * java.lang.Math.exp(logPoisson(rate, edgeC) - rate - shift);
+		}
+		return temp;
+	}
+	/**
+	 * This method returns the largest log Poisson edge term over the block pairs for an edge count,
+	 * the edge terms of a multi-edge are divided by it so that large counts (coarse graphs) do not underflow,
+	 * it is the same for all blocks and cancels on normalization
+	 * @return the log edge term shift double
+	 * @param scale double
+	 * @param edgeC int
+	 */
+	protected double edgeShift(double scale, int edgeC) {
+		if (edgeC < 2) //simple edges do not underflow
+			return 0;
+		double shift = Double.NEGATIVE_INFINITY;
+		for (int k1=0; k1<graph.getNumType(); k1++)
+			for (int k2=0; k2<graph.getNumType(); k2++) {
+				double rate = typeP[k1][k2] * scale;
+				shift = java.lang.Math.max(shift, logPoisson(rate, edgeC) - rate);
+			}
+		if (shift == Double.NEGATIVE_INFINITY) //all rates vanish
+			return 0;
+		return shift;
+	}
+	/**
+	 * This method damps a normalized new message into the directed message j of a node
+	 * @return measure of change in L1 norm double
+	 * @param node int
+	 * @param j int
+	 * @param newmsg double[]
+	 */
+	protected double storeEdgeMsg(int node, int j, double[] newmsg) {
+		double[] msg = message[node].msgTargets.get(j);
+		double delta = 0;
+		for (int k=0; k<msg.length; k++) {
+			delta += java.lang.Math.abs(msg[k]-newmsg[k]);
+			msg[k] = 0.5*msg[k] + 0.5*newmsg[k]; //damping propagation
+		}
+		return delta;
+	}
 	/**
 	 * This method does a sweep of message updates (asynchronous) across the network, mean-fielding the non-edge messages
 	 * @return measure of change in terms of messages in L1 norm
 	 * @param null
 	 */
 	public double stepBPfast() {
-		//base message for speed up (case 2: no edges)
+		nodeSum = null; //the stochastic statistics are stale after a full sweep
+		double[] baseMsg = baseMessage(); //base message for speed up (case 2: no edges)
+
+		int[] Ulist = permute(); //pick a random update order
+		double delta = 0; //measure of change
+		// Update in order according to the permutation
+		for (int i=0; i<message.length; i++)
+			delta += updateNode(Ulist[i], baseMsg);
+		return delta;
+	}
+	
+	/**
+	 * This method computes the base message shared by all nodes, the mean-field of the non-edge messages of the whole network
+	 * @return the base message double[]
+	 * @param null
+	 */
+	protected double[] baseMessage() {
 		double[] baseMsg = new double[graph.getNumType()];
 		
 		if (degreeCorrect) { //for the DC model
@@ -133,127 +267,203 @@ public class BPfastMU extends EMstep{
 				}
 			}
 		}
-
-		int[] Ulist = permute(); //pick a random update order
-		double delta = 0; //measure of change
-		// Update in order according to the permutation
-		for (int i=0; i<message.length; i++)
-			for (int j=0; j<message[Ulist[i]].msgTargets.size()+1; j++) { //plus 1 for the non-edge messages
-				int totalD = 1;
-				if (degreeCorrect) //for the DC model
-					totalD = graph.vList[Ulist[i]].outDegree; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
-				double[] newmsg = new double[graph.getNumType()];
-				for (int k1=0; k1<newmsg.length; k1++) {//updating message from i to j
-					if (degreeCorrect) //for the DC model
-						newmsg[k1] = -baseMsg[k1] * totalD;
+		return baseMsg;
+	}
+	
+	/**
+	 * This method updates all messages of one node (directed messages plus the non-edge message) given the base message
+	 * The contributions of the incoming edges do not depend on the message target,
+	 * so they are summed once per node and the target's own contribution is removed for each directed message,
+	 * which keeps the update linear in the degree for dense (e.g. coarsened) multi-graphs
+	 * @return measure of change in terms of messages in L1 norm
+	 * @param node int
+	 * @param baseMsg double[]
+	 */
+	protected double updateNode(int node, double[] baseMsg) {
+		if (edgeIndex == null) //built on first use
+			link();
+		if (field == null) { //scratch buffers, never shared with copies
+			field = new double[graph.getNumType()];
+			vanish = new int[graph.getNumType()];
+			newmsg = new double[graph.getNumType()];
+			cavity = new double[graph.getNumType()];
+		}
+		int totalD = 1;
+		if (degreeCorrect) //for the DC model
+			totalD = graph.vList[node].outDegree; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
+		for (int k1=0; k1<graph.getNumType(); k1++) {
+			vanish[k1] = 0;
+			if (degreeCorrect) //for the DC model
+				field[k1] = -baseMsg[k1] * totalD;
+			else
+				field[k1] = baseMsg[k1];
+			double temp = 0; //get rid of duplicate self term
+			for (int k2=0; k2<graph.getNumType(); k2++) {
+				temp += message[node].others[k2] 
+				    * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD);
+			}
+			if (temp != 0)
+				field[k1] = field[k1] - java.lang.Math.log(temp);
+		}
+		
+		//Ready to taking account for the directed messages on observed edges
+		int sources = graph.vList[node].sources.size();
+		if (cavity.length < sources * graph.getNumType()) //grows to the largest number of sources
+			cavity = new double[sources * graph.getNumType()];
+		for (int l=0; l<sources; l++) { //neighboring message following the edge
+			int index = edgeIndex[node][l]; //index in the msgTargets[source]
+			if (index < 0) //avoid self message, and case 2: no edges, 
+				continue; //It is already handled by the base message by construction.
+			int source = graph.vList[node].sources.get(l); //source node from the edge
+			int totalD2 = 1; //default vanilla model
+			if (degreeCorrect) //for the DC model
+				totalD2 = graph.vList[source].outDegree;
+			int edgeC = graph.vList[source].targetCount.get(index); //case 1: double edges between node and source
+			double shift = edgeShift(totalD2 * totalD, edgeC);
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				double temp1 = edgeSum(source, index, k1, totalD2 * totalD, edgeC, shift);
+				double temp2 = 0;
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					temp2 += message[source].others[k2] 
+					    * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
+				}
+				int c = l * graph.getNumType() + k1;
+				cavity[c] = 0;
+				if (temp2 != 0) {
+					cavity[c] = java.lang.Math.log(temp1) - java.lang.Math.log(temp2);
+					if (cavity[c] == Double.NEGATIVE_INFINITY)
+						vanish[k1]++;
 					else
-						newmsg[k1] = baseMsg[k1];
+						field[k1] += cavity[c];
 				}
-				
-				for (int k1=0; k1<graph.getNumType(); k1++) { //get rid of duplicate self term
+			}
+		}
+		
+		double delta = 0; //measure of change
+		for (int j=0; j<slots(node)+1; j++) { //plus 1 for the non-edge messages
+			for (int k1=0; k1<newmsg.length; k1++) {//updating message from node to j
+				newmsg[k1] = field[k1];
+				int zeros = vanish[k1];
+				if (j < slots(node)) { //get rid of duplicate target term
+					int target = -1; //index of the message target
+					if (j <graph.vList[node].targets.size())
+						target = graph.vList[node].targets.get(j);
+					else //the message target is on a reversed edge
+						target = graph.vList[node].sources.get(j-graph.vList[node].targets.size());
 					double temp = 0;
 					for (int k2=0; k2<graph.getNumType(); k2++) {
-						temp += message[Ulist[i]].others[k2] 
-						    * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD);
+						temp += message[target].others[k2] 
+						    * java.lang.Math.exp(-typeP[k2][k1] * (graph.vList[target].outDegree) * totalD);
 					}
 					if (temp != 0)
 						newmsg[k1] = newmsg[k1] - java.lang.Math.log(temp);
-				}
-				
-				int target = -1; //index of the message target
-				if (j < message[Ulist[i]].msgTargets.size()) { //get rid of duplicate target term
-					if (j <graph.vList[Ulist[i]].targets.size())
-						target = graph.vList[Ulist[i]].targets.get(j);
-					else //the message target is on a reversed edge
-						target = graph.vList[Ulist[i]].sources.get(j-graph.vList[Ulist[i]].targets.size());
-					for (int k1=0; k1<graph.getNumType(); k1++) {
-						double temp = 0;
-						for (int k2=0; k2<graph.getNumType(); k2++) {
-							temp += message[target].others[k2] 
-							    * java.lang.Math.exp(-typeP[k2][k1] * (graph.vList[target].outDegree) * totalD);
-						}
-						if (temp != 0)
-							newmsg[k1] = newmsg[k1] - java.lang.Math.log(temp);
-					}
-				}
-				//Ready to taking account for the directed messages on observed edges
-				for (int l=0; l<graph.vList[Ulist[i]].sources.size(); l++) { //neighboring message following the edge
-					double temp1 = 0;
-					double temp2 = 0;
-					int source = graph.vList[Ulist[i]].sources.get(l); //source node from the edge
-					int index = graph.vList[source].targets.indexOf(Ulist[i]); //index in the msgTargets[source]
-					int totalD2 = 1; //default vanilla model
-					if (degreeCorrect) //for the DC model
-						totalD2 = graph.vList[source].outDegree;
-					if (j < message[Ulist[i]].msgTargets.size()) { // (i,j) in E
-						if (source!=Ulist[i] && source!=target) { //avoid self and target messages
-							if (graph.vList[Ulist[i]].targets.contains(source)) { //case 1: double edges between Ulist[i] and source	
-								for (int k1=0; k1<graph.getNumType(); k1++) {
-									temp1 = 0;
-									temp2 = 0;
-									for (int k2=0; k2<graph.getNumType(); k2++) {
-										int edgeC = graph.vList[source].targetCount.get(index);
-										temp1 += message[source].msgTargets.get(index)[k2] 
-										    * poisson(typeP[k2][k1] * totalD2 * totalD, edgeC)
-											* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-										temp2 += message[source].others[k2] 
-										    * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-									}
-									if (temp2 != 0)
-										newmsg[k1] = newmsg[k1] - java.lang.Math.log(temp2) + java.lang.Math.log(temp1);
-								}
-							} //case 2: no edges, do nothing. It is already handled by the base message by construction.
-						}
+					int l = slotSource[node][j]; //avoid the target message
+					if (l >= 0 && edgeIndex[node][l] >= 0) {
+						int c = l * graph.getNumType() + k1;
+						if (cavity[c] == Double.NEGATIVE_INFINITY)
+							zeros--;
+						else
+							newmsg[k1] = newmsg[k1] - cavity[c];
 					}
-					else { // (i,j) not in E
-						if (source != Ulist[i]) { //avoid self message
-							if (graph.vList[Ulist[i]].targets.contains(source)) { //case 1: double edges between Ulist[i] and source	
-								for (int k1=0; k1<graph.getNumType(); k1++) {
-									temp1 = 0;
-									temp2 = 0;
-									for (int k2=0; k2<graph.getNumType(); k2++) {
-										int edgeC = graph.vList[source].targetCount.get(index);
-										temp1 += message[source].msgTargets.get(index)[k2] 
-										    * poisson(typeP[k2][k1] * totalD2 * totalD, edgeC)
-											* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-										temp2 += message[source].others[k2] 
-										    * java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-										}
-									if (temp2 != 0)
-										newmsg[k1] = newmsg[k1] - java.lang.Math.log(temp2) + java.lang.Math.log(temp1);
-								}
-							} //case 2: no edges, do nothing. It is already handled by the base message by construction.
-						}
-					}
-				}
-				
-				double sum = 0;
-				for (int k=0; k<graph.getNumType(); k++) {
-					if (gSizeCorrect) //group size correction
-						newmsg[k] = java.lang.Math.exp(newmsg[k] + java.lang.Math.log(gNode[k]));
-					else
-						newmsg[k] = java.lang.Math.exp(newmsg[k]);
-					sum += newmsg[k]; //for message normalization
 				}
+				if (zeros > 0)
+					newmsg[k1] = Double.NEGATIVE_INFINITY;
+			}
+			
+			double top = Double.NEGATIVE_INFINITY; //largest log-field, taken off before exponentiation
+			for (int k=0; k<graph.getNumType(); k++) {
+				if (gSizeCorrect) //group size correction
+					newmsg[k] = newmsg[k] + java.lang.Math.log(gNode[k]);
+				if (newmsg[k] > top)
+					top = newmsg[k];
+			}
+			if (Double.isInfinite(top)) //all blocks vanish
+				top = 0;
+			double sum = 0;
+			for (int k=0; k<graph.getNumType(); k++) {
+				newmsg[k] = java.lang.Math.exp(newmsg[k] - top);
+				sum += newmsg[k]; //for message normalization
+			}
+			for (int k=0; k<graph.getNumType(); k++){
+				if (sum == 0) //boundary cases
+					newmsg[k] = 1.0/graph.getNumType();
+				else
+					newmsg[k] = newmsg[k] / sum;
+			}
+			if (j < slots(node))
+				delta += storeEdgeMsg(node, j, newmsg); //damping propagation
+			else
 				for (int k=0; k<graph.getNumType(); k++){
-					if (sum == 0) //boundary cases
-						newmsg[k] = 1.0/graph.getNumType();
-					else
-						newmsg[k] = newmsg[k] / sum;
-					if (j < message[Ulist[i]].msgTargets.size()) {
-						delta += java.lang.Math.abs(message[Ulist[i]].msgTargets.get(j)[k]-newmsg[k]);
-						message[Ulist[i]].msgTargets.get(j)[k] = 0.5*message[Ulist[i]].msgTargets.get(j)[k] + 0.5*newmsg[k]; //damping propagation
-					}
-					else {
-						delta += java.lang.Math.abs(message[Ulist[i]].others[k]-newmsg[k]);
-						message[Ulist[i]].others[k] = 0.5*message[Ulist[i]].others[k] + 0.5*newmsg[k]; //damping propagation
-					}
+					delta += java.lang.Math.abs(message[node].others[k]-newmsg[k]);
+					message[node].others[k] = 0.5*message[node].others[k] + 0.5*newmsg[k]; //damping propagation
 				}
-				
-			}
+		}
 		return delta;
 	}
 	
+	/**
+	 * This method builds the slot indices used by the node updates in time linear in the number of edges:
+	 * for each node and source position the index of the node among the targets of the source,
+	 * and for each message slot the position of the message target among the sources of the node
+	 * @param null
+	 */
+	void link() {
+		int n = graph.getNumNodes();
+		int[] mark = new int[n]; //position of each neighbor in the list being scanned, -1 otherwise
+		Arrays.fill(mark, -1);
+		int[] start = new int[n+1]; //bucket offsets of the (node, position) pairs, grouped by source
+		for (int i=0; i<n; i++)
+			for (int l=0; l<graph.vList[i].sources.size(); l++)
+				start[graph.vList[i].sources.get(l)+1]++;
+		for (int i=0; i<n; i++)
+			start[i+1] += start[i];
+		int[] next = Arrays.copyOf(start, n);
+		int[] pairNode = new int[start[n]];
+		int[] pairPos = new int[start[n]];
+		int[][] edges = new int[n][];
+		int[][] slotS = new int[n][];
+		for (int i=0; i<n; i++) {
+			ArrayList<Integer> targets = graph.vList[i].targets;
+			ArrayList<Integer> sources = graph.vList[i].sources;
+			edges[i] = new int[sources.size()];
+			slotS[i] = new int[targets.size() + sources.size()];
+			for (int t=0; t<targets.size(); t++)
+				mark[targets.get(t)] = t;
+			for (int l=0; l<sources.size(); l++) {
+				int source = sources.get(l);
+				edges[i][l] = -1; //self message, or case 2: no edges
+				if (source != i && mark[source] >= 0) { //case 1: double edges, resolved with the targets of the source
+					pairNode[next[source]] = i;
+					pairPos[next[source]] = l;
+					next[source]++;
+				}
+			}
+			for (int t=0; t<targets.size(); t++)
+				mark[targets.get(t)] = -1;
+			for (int l=0; l<sources.size(); l++)
+				mark[sources.get(l)] = l;
+			for (int j=0; j<slotS[i].length; j++) {
+				if (j < targets.size())
+					slotS[i][j] = mark[targets.get(j)];
+				else //the message target is on a reversed edge
+					slotS[i][j] = mark[sources.get(j-targets.size())];
+			}
+			for (int l=0; l<sources.size(); l++)
+				mark[sources.get(l)] = -1;
+		}
+		for (int s=0; s<n; s++) {
+			ArrayList<Integer> targets = graph.vList[s].targets;
+			for (int t=targets.size()-1; t>=0; t--) //the first occurrence wins
+				mark[targets.get(t)] = t;
+			for (int p=start[s]; p<next[s]; p++) //the filled part of the bucket
+				edges[pairNode[p]][pairPos[p]] = mark[pairNode[p]];
+			for (int t=0; t<targets.size(); t++)
+				mark[targets.get(t)] = -1;
+		}
+		edgeIndex = edges;
+		slotSource = slotS;
+	}
+	
 	/**
 	  * This method implements the E-step inner-loops for the linear BP
 	  * A polymorphic extension of the abstract method convergeExpectation in parent class
@@ -270,6 +480,15 @@ public class BPfastMU extends EMstep{
 			delta = stepBPfast(); //Do a E-step sweep across all nodes
 			steps++;
 		}
+		return marginal();
+	}
+	
+	/**
+	  * This method returns the current marginals without further message updates
+	  * @return block marginal vectors for all nodes
+	  * @param null
+	 */
+	public double[][] marginal() {
 		double[][] marginal = new double[graph.getNumNodes()][graph.getNumType()];
 		for (int i=0; i<marginal.length; i++) // non-edge message = marginal vector for each node
 			for (int k=0; k<graph.getNumType(); k++) 
@@ -291,104 +510,19 @@ public class BPfastMU extends EMstep{
 		double[][] temp = new double[graph.getNumType()][graph.getNumType()];
 		double[][] sum = new double[graph.getNumType()][graph.getNumType()];	
 		
-		for (int i=0; i<graph.getNumNodes(); i++) {
-			int iid = findMax(message[i].others); //for hard block assignment
-			double[][] q = new double[graph.getNumType()][graph.getNumType()]; //pair-wise marginals
-			int totalDi = 1; //default vanilla model
-			if (degreeCorrect) //for DC model
-				totalDi = graph.vList[i].outDegree;
-			double totalDj = 1.0; //default vanilla model
-			double[] gNodeNE = new double[graph.getNumType()]; //for tracking average point-wise non-edge marginals
-			
-			for (int j=0; j<graph.vList[i].targets.size()+1; j++) {	//plus 1 for the non-edge messages
-				int edgeC = 0; //default no edge
-				if (j<graph.vList[i].targets.size()) { //case 1: i->j in E
-					int jIndex = graph.vList[i].targets.get(j); //pick the target
-					int jid = findMax(message[jIndex].others); //for hard block assignment	 			
-					if (degreeCorrect) //for DC model
-						totalDj = graph.vList[jIndex].outDegree;
-					int source = graph.vList[jIndex].sources.indexOf(i)+graph.vList[jIndex].targets.size(); //index in the message list
-					edgeC = graph.vList[i].targetCount.get(j); //get edge count
-					
-					for (int k1=0; k1<graph.getNumType(); k1++) {
-						for (int k2=0; k2<graph.getNumType(); k2++) { //product to get pair-wise marginal				
-							q[k1][k2] =  message[i].msgTargets.get(j)[k1] * message[jIndex].msgTargets.get(source)[k2]
-								    * poisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
-									* Math.exp(- typeP[k1][k2] * totalDi * totalDj);
-							if (jIndex>i && k1 == iid && k2 == jid) //for hard block assignment	 		
-								likelihoodHard += Math.log (poisson(typeP[k1][k2] * totalDi * totalDj, edgeC))
-									+(- typeP[k1][k2] * totalDi * totalDj);
-						}				
-						gNodeNE[k1] +=  message[j].others[k1]; //sum to get point-wise marginals
-					}
-				}
-				else { //case 2: no edge (Mean field approximation applied on all non-edge pairs)
-					if (degreeCorrect) //use average degree for DC model over all non-edge pairs
-						totalDj = graph.getNumEdgs()*2.0 / graph.getNumNodes();
-					
-					for (int k1=0; k1<graph.getNumType(); k1++) {
-						double jMsgAvgk1 = marginals[k1] * (graph.getNumNodes()-1) - gNodeNE[k1]; //mean-field approximation on non-edge
-						for (int k2=0; k2<graph.getNumType(); k2++) {							
-							q[k2][k1] = message[i].others[k2] * jMsgAvgk1 / (graph.getNumNodes()-j-1)
-							        * Math.exp(- typeP[k2][k1] * totalDi * totalDj);
-							if (k2 == iid) //for hard block assignment	
-								likelihoodHard +=  jMsgAvgk1 *0.5* (- typeP[k2][k1] * totalDi * totalDj);
-						}
-					}
-				}
-				
-				double qSum = 0; //q normalization			
-				for (int k1=0; k1<graph.getNumType(); k1++)
-					for (int k2=0; k2<graph.getNumType(); k2++) 
-						qSum += q[k1][k2];					
-				for (int k1=0; k1<graph.getNumType(); k1++)
-					for (int k2=0; k2<graph.getNumType(); k2++) 
-						q[k1][k2] = q[k1][k2] / qSum;
-				
-				for (int k1=0; k1<graph.getNumType(); k1++) //accumulating sums for estimating typeP
-					for (int k2=0; k2<graph.getNumType(); k2++) {
-						double pLike = 0; //pairwise part
-						int NedgeC = 1; //counting non-edge pairs
-						
-						if (j<graph.vList[i].targets.size()) { //case 1: i->j in E
-							int jIndex = graph.vList[i].targets.get(j);
-							if (jIndex>i) {
-								pLike += q[k1][k2]* (Math.log(poisson(typeP[k1][k2] * totalDi * totalDj, edgeC))
-													   -typeP[k1][k2] * totalDi * totalDj); //pairwise energy part
-								pLike -= q[k1][k2]* Math.log(q[k1][k2]); //pairwise entropy part
-							}
-						}
-						else { //case 1: i->j not in E
-							NedgeC = (graph.getNumNodes()-1-j);
-							pLike += NedgeC *0.5* q[k1][k2]* (-typeP[k1][k2] * totalDi * totalDj); //pairwise energy part
-							pLike -= q[k1][k2]* Math.log(q[k1][k2]); //pairwise entropy part
-						}
-						temp[k1][k2] += NedgeC * q[k1][k2]* edgeC;
-						sum[k1][k2] += NedgeC * q[k1][k2] * totalDi * totalDj;
-							
-						likeTemp += pLike;
-						//}
-					}
-			}
-			double pEntr = 0; //pointwise part
-			for (int k=0; k<graph.getNumType(); k++) {				
-				pEntr += message[i].others[k] * Math.log(message[i].others[k]); //pointwise entropy part
-				if (gSizeCorrect) {
-					likeTemp += message[i].others[k] * Math.log(gNode[k]); //pointwise energy part (group size correction)
-					if (k == iid)
-						likelihoodHard += Math.log(gNode[k]); //group size correction for hard block assignment
-				}
-			}
-			likeTemp += pEntr*(graph.vList[i].targets.size()-1); //pointwise entropy scaling (+1 for the dummy none-edge node)
-		}
+		for (int i=0; i<graph.getNumNodes(); i++)
+			likeTemp += accumulate(i, marginals, temp, sum);
+		flush(temp, sum);
 		double pEntr2 = 0; //pointwise entropy for the dummy none-edge node
 		for (int k=0; k<graph.getNumType(); k++)
-			pEntr2 += gNode[k] * Math.log(gNode[k]);
+			if (gNode[k] > 0)
+				pEntr2 += gNode[k] * Math.log(gNode[k]);
 		likeTemp += pEntr2 * graph.getNumNodes();
 		likelihood = likeTemp;
 		
 		double delta = 0; //change measure
-		if (!fix) //do not update block parameters if M-step is fixed
+		if (!fix) { //do not update block parameters if M-step is fixed
+			nodeSum = null; //the stochastic statistics are stale
 			for (int k1=0; k1<graph.getNumType(); k1++) {
 				gNode[k1] = marginals[k1];
 				for (int k2=0; k2<graph.getNumType(); k2++) {
@@ -400,13 +534,278 @@ public class BPfastMU extends EMstep{
 					//Handling boundary cases
 					if (temp[k1][k2] < 1e-128)
 						typeP[k1][k2] = 1e-128;
-					else if (temp[k1][k2] > (1 - 1e-16))
+					else if (temp[k1][k2] > (1 - 1e-16) && !graph.multiEdge) //multi-edge rates (coarse graphs) may exceed one
 						typeP[k1][k2] = 1-1e-16;
 					else
 						typeP[k1][k2] = temp[k1][k2];
 				}
 			}
+		}
+		return delta;
+	}
+	
+	/**
+	 * This method updates the hyper parameters, discarding the running statistics of the stochastic mode
+	 * @param p double[][]
+	 * @param n double[]
+	 */
+	public void update(double[][] p, double[] n) {
+		super.update(p, n);
+		nodeSum = null;
+	}
+	
+	/**
+	 * This method initializes the running statistics of the stochastic mode from the current messages and block parameters:
+	 * the node sums of the non-edge messages, the block sizes, and the pair exposures between blocks,
+	 * with the edge counts set so that their ratio reproduces typeP
+	 * @param null
+	 */
+	void startStochastic() {
+		nodeSum = new double[graph.getNumType()];
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			double weight = 1; //default vanilla model
+			if (degreeCorrect) //for the DC model
+				weight = graph.vList[i].outDegree;
+			for (int k=0; k<graph.getNumType(); k++)
+				nodeSum[k] += weight * message[i].others[k];
+		}
+		sizeStat = new double[graph.getNumType()];
+		edgeStat = new double[graph.getNumType()][graph.getNumType()];
+		pairStat = new double[graph.getNumType()][graph.getNumType()];
+		for (int k1=0; k1<graph.getNumType(); k1++) {
+			sizeStat[k1] = gNode[k1] * graph.getNumNodes();
+			for (int k2=0; k2<graph.getNumType(); k2++) {
+				pairStat[k1][k2] = nodeSum[k1] * nodeSum[k2];
+				edgeStat[k1][k2] = typeP[k1][k2] * pairStat[k1][k2];
+			}
+		}
+	}
+	
+	/**
+	  * This method does one step of stochastic variational EM on a mini-batch of nodes
+	  * The messages of the batch are updated against the global mean-field term, kept as a running node sum,
+	  * then the expected block statistics of the batch, scaled up to the whole graph, are blended into the running statistics
+	  * with the step size (a natural gradient step for the Poisson block parameters), and typeP and gNode are re-estimated from them
+	  * For the vanilla model the mean-field term is linearized in typeP (exact for the DC model)
+	  * @return change in parameter values double
+	  * @param batch int[]
+	  * @param rate double
+	 */
+	public double stepStochastic(int[] batch, double rate) {
+		if (nodeSum == null)
+			startStochastic();
+		//base message from the running node sum (case 2: no edges)
+		double[] baseMsg = new double[graph.getNumType()];
+		for (int k1=0; k1<graph.getNumType(); k1++) {
+			for (int k2=0; k2<graph.getNumType(); k2++)
+				baseMsg[k1] += nodeSum[k2] * typeP[k2][k1];
+			if (!degreeCorrect) //first order expansion of the log-sum for the vanilla model
+				baseMsg[k1] = -baseMsg[k1];
+		}
+		
+		//Expectation step on the batch, with the threshold and the bound of convergeExpectation scaled to the batch
+		double change = Double.MAX_VALUE;
+		for (int sweep=0; change > epsilon * batch.length / graph.getNumNodes() && sweep<10; sweep++) {
+			change = 0;
+			for (int b=0; b<batch.length; b++) {
+				int node = batch[b];
+				double weight = 1; //default vanilla model
+				if (degreeCorrect) //for the DC model
+					weight = graph.vList[node].outDegree;
+				for (int k=0; k<graph.getNumType(); k++)
+					nodeSum[k] -= weight * message[node].others[k];
+				change += updateNode(node, baseMsg);
+				for (int k=0; k<graph.getNumType(); k++)
+					nodeSum[k] += weight * message[node].others[k];
+			}
+		}
+		
+		//Maximization step from the batch statistics
+		double[] marginals = new double[graph.getNumType()]; //current estimate of the block distribution
+		double total = 0;
+		for (int k=0; k<graph.getNumType(); k++)
+			total += sizeStat[k];
+		for (int k=0; k<graph.getNumType(); k++)
+			marginals[k] = sizeStat[k] / total;
+		double[][] temp = new double[graph.getNumType()][graph.getNumType()];
+		double[][] sum = new double[graph.getNumType()][graph.getNumType()];
+		double[] size = new double[graph.getNumType()];
+		for (int b=0; b<batch.length; b++) {
+			accumulate(batch[b], marginals, temp, sum);
+			for (int k=0; k<graph.getNumType(); k++)
+				size[k] += message[batch[b]].others[k];
+		}
+		flush(temp, sum);
+		double scale = (double) graph.getNumNodes() / batch.length; //batch to graph scaling
+		double delta = 0; //change measure
+		total = 0;
+		for (int k1=0; k1<graph.getNumType(); k1++) {
+			sizeStat[k1] = (1-rate) * sizeStat[k1] + rate * scale * size[k1];
+			total += sizeStat[k1];
+			for (int k2=0; k2<graph.getNumType(); k2++) {
+				edgeStat[k1][k2] = (1-rate) * edgeStat[k1][k2] + rate * scale * temp[k1][k2];
+				pairStat[k1][k2] = (1-rate) * pairStat[k1][k2] + rate * scale * sum[k1][k2];
+				double estimate = 0;
+				if (pairStat[k1][k2] > 0)
+					estimate = edgeStat[k1][k2] / pairStat[k1][k2];
+				delta += Math.abs(estimate-typeP[k1][k2]);
+				//Handling boundary cases
+				if (estimate < 1e-128)
+					typeP[k1][k2] = 1e-128;
+				else if (estimate > (1 - 1e-16) && !graph.multiEdge) //multi-edge rates (coarse graphs) may exceed one
+					typeP[k1][k2] = 1-1e-16;
+				else
+					typeP[k1][k2] = estimate;
+			}
+		}
+		for (int k=0; k<graph.getNumType(); k++)
+			gNode[k] = java.lang.Math.max(sizeStat[k] / total, 1e-64); //keeps the group size correction finite
+		steps++;
 		return delta;
 	}
+	
+	/**
+	  * This method accumulates the expected block edge counts and pair exposures of one node for the M-step,
+	  * over its edges and its mean-fielded non-edges
+	  * @return the contribution of the node to the likelihood double
+	  * @param i int
+	  * @param marginals double[]
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	double accumulate(int i, double[] marginals, double[][] temp, double[][] sum) {
+		double likeTemp = 0;
+		double[] bufferI = new double[graph.getNumType()]; //decoding buffers for compressed messages
+		double[] bufferJ = new double[graph.getNumType()];
+		int iid = findMax(message[i].others); //for hard block assignment
+		double[][] q = new double[graph.getNumType()][graph.getNumType()]; //pair-wise marginals
+		int totalDi = 1; //default vanilla model
+		if (degreeCorrect) //for DC model
+			totalDi = graph.vList[i].outDegree;
+		double totalDj = 1.0; //default vanilla model
+		
+		for (int j=0; j<graph.vList[i].targets.size(); j++) { //case 1: i->j in E
+			int jIndex = graph.vList[i].targets.get(j); //pick the target
+			int jid = findMax(message[jIndex].others); //for hard block assignment	 			
+			if (degreeCorrect) //for DC model
+				totalDj = graph.vList[jIndex].outDegree;
+			int source = graph.vList[jIndex].sources.indexOf(i)+graph.vList[jIndex].targets.size(); //index in the message list
+			int edgeC = graph.vList[i].targetCount.get(j); //get edge count
+			double[] msgI = edgeMsg(i, j, bufferI); //edge messages in both directions
+			double[] msgJ = edgeMsg(jIndex, source, bufferJ);
+			double shift = edgeShift(totalDi * totalDj, edgeC);
+			
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				for (int k2=0; k2<graph.getNumType(); k2++) { //product to get pair-wise marginal				
+					q[k1][k2] =  msgI[k1] * msgJ[k2]
+						    * Math.exp(logPoisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+							- typeP[k1][k2] * totalDi * totalDj - shift);
+					if (jIndex>i && k1 == iid && k2 == jid) //for hard block assignment	 		
+						likelihoodHard += logPoisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+							+(- typeP[k1][k2] * totalDi * totalDj);
+				}				
+			}
+			
+			double qSum = 0; //q normalization			
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) 
+					qSum += q[k1][k2];					
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) 
+					q[k1][k2] = q[k1][k2] / qSum;
+			
+			for (int k1=0; k1<graph.getNumType(); k1++) //accumulating sums for estimating typeP
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					double pLike = 0; //pairwise part
+					if (jIndex>i && q[k1][k2] > 0) { //empty pairs add nothing (0 log 0 = 0)
+						pLike += q[k1][k2]* (logPoisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+											   -typeP[k1][k2] * totalDi * totalDj); //pairwise energy part
+						pLike -= q[k1][k2]* Math.log(q[k1][k2]); //pairwise entropy part
+					}
+					temp[k1][k2] += q[k1][k2]* edgeC;
+					sum[k1][k2] += q[k1][k2] * totalDi * totalDj;
+					likeTemp += pLike;
+				}
+		}
+		return likeTemp + accumulateNonEdge(i, marginals, q, temp, sum);
+	}
+	
+	/**
+	  * This method accumulates the mean-fielded non-edges of one node for the M-step, plus its pointwise terms
+	  * @return the contribution of the non-edges and the node to the likelihood double
+	  * @param i int
+	  * @param marginals double[]
+	  * @param q double[][]
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	double accumulateNonEdge(int i, double[] marginals, double[][] q, double[][] temp, double[][] sum) {
+		double likeTemp = 0;
+		int j = graph.vList[i].targets.size(); //the non-edge message follows the edges
+		int iid = findMax(message[i].others); //for hard block assignment
+		int totalDi = 1; //default vanilla model
+		if (degreeCorrect) //for DC model
+			totalDi = graph.vList[i].outDegree;
+		double totalDj = 1.0; //default vanilla model
+		if (degreeCorrect) //use average degree for DC model over all non-edge pairs
+			totalDj = graph.getNumEdgs()*2.0 / graph.getNumNodes();
+		double[] gNodeNE = new double[graph.getNumType()]; //for tracking average point-wise non-edge marginals
+		for (int l=0; l<j; l++)
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				gNodeNE[k1] +=  message[l].others[k1]; //sum to get point-wise marginals
+		
+		int NedgeC = (graph.getNumNodes()-1-j); //counting non-edge pairs
+		if (NedgeC > 0) { //none left on dense (coarse) graphs
+			for (int k1=0; k1<graph.getNumType(); k1++) { //case 2: no edge (Mean field approximation applied on all non-edge pairs)
+				double jMsgAvgk1 = marginals[k1] * (graph.getNumNodes()-1) - gNodeNE[k1]; //mean-field approximation on non-edge
+				for (int k2=0; k2<graph.getNumType(); k2++) {							
+					q[k2][k1] = message[i].others[k2] * jMsgAvgk1 / (graph.getNumNodes()-j-1)
+					        * Math.exp(- typeP[k2][k1] * totalDi * totalDj);
+					if (k2 == iid) //for hard block assignment	
+						likelihoodHard +=  jMsgAvgk1 *0.5* (- typeP[k2][k1] * totalDi * totalDj);
+				}
+			}
+		
+			double qSum = 0; //q normalization			
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) 
+					qSum += q[k1][k2];					
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) 
+					q[k1][k2] = q[k1][k2] / qSum;
+		
+			for (int k1=0; k1<graph.getNumType(); k1++) //accumulating sums for estimating typeP
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					double pLike = 0; //pairwise part
+					pLike += NedgeC *0.5* q[k1][k2]* (-typeP[k1][k2] * totalDi * totalDj); //pairwise energy part
+					if (q[k1][k2] > 0)
+						pLike -= q[k1][k2]* Math.log(q[k1][k2]); //pairwise entropy part
+					sum[k1][k2] += NedgeC * q[k1][k2] * totalDi * totalDj;
+					likeTemp += pLike;
+				}
+		}
+		
+		double pEntr = 0; //pointwise part
+		for (int k=0; k<graph.getNumType(); k++) {				
+			if (message[i].others[k] > 0)
+				pEntr += message[i].others[k] * Math.log(message[i].others[k]); //pointwise entropy part
+			if (gSizeCorrect) {
+				likeTemp += message[i].others[k] * Math.log(gNode[k]); //pointwise energy part (group size correction)
+				if (k == iid)
+					likelihoodHard += Math.log(gNode[k]); //group size correction for hard block assignment
+			}
+		}
+		likeTemp += pEntr*(graph.vList[i].targets.size()-1); //pointwise entropy scaling (+1 for the dummy none-edge node)
+		return likeTemp;
+	}
+	
+	/**
+	  * This method adds the contributions that accumulate deferred to the block statistics, after all nodes are accumulated
+	  * Child classes with compressed messages spread their folded pair marginals here
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	void flush(double[][] temp, double[][] sum) {
+	}
 
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package variationalEM;
 
 import graphTools.Graph;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -15,9 +17,41 @@ import java.util.Random;
  */
 
 public class BPfullMU extends EMstep{
-	
+	//--- Inner class for parallel sweeps -----------------------------------------
+	abstract class Part extends RecursiveAction { //source nodes index, index+stride, ... with their own accumulators
+		private static final long serialVersionUID = 1L; //never serialized, fork-join tasks are serializable
+		int index; //first source node of the part
+		int stride; //number of parts, interleaved to balance the triangular pair loops
+		double delta; //change measure
+		double like; //likelihood terms
+		double hard; //likelihood terms for hard block assignment
+		double[][] temp = new double[graph.getNumType()][graph.getNumType()]; //expected block edge counts
+		double[][] sum = new double[graph.getNumType()][graph.getNumType()]; //expected block pair exposures
+		
+		Part(int first, int parts) { //inner constructor
+			index = first;
+			stride = parts;
+		}
+		protected void compute() {
+			for (int i=index; i<graph.getNumNodes(); i+=stride)
+				visit(i);
+		}
+		abstract void visit(int i); //work on one source node
+	}
+	//--- Inner class for scratch space -------------------------------------------
+	class Scratch { //log-field of one node, reused across sweeps
+		double[] field = new double[graph.getNumType()]; //log-field without the vanishing terms
+		int[] vanish = new int[graph.getNumType()]; //number of vanishing (log zero) terms
+		double[] contrib = new double[graph.getNumNodes()*graph.getNumType()]; //term of each sender, flat at [l*K+k]
+		int[] count = new int[graph.getNumNodes()]; //edge counts from the senders
+		double[] buffer = new double[graph.getNumType()]; //decoding buffer for the incoming messages
+	}
 	// --- Instance Variables ----------------------------------------------------
-	double[][][] message; //message passing on each edge / none-edge
+	static ForkJoinPool pool = new ForkJoinPool(); //shared by all instances, sized to the available processors
+	static int chunks = 4 * pool.getParallelism(); //number of parts in a parallel sweep
+	double[] message; //message passing on each edge / none-edge, flat at [(i*V+j)*K+k]
+	double[] next; //second message buffer written by the flood, swapped with message after each sweep
+	Scratch[] scratch; //scratch space of each part of a sweep
 	double[][] marginal; //the mixed membership vector, correspond to non-edge messages in BPfast
 	// --- Constructors ----------------------------------------------------------
 	public BPfullMU() {} //the empty constructor
@@ -31,19 +65,8 @@ public class BPfullMU extends EMstep{
 		super(g, degreeC, gSize);
 		Random r = new Random();
 		
-		message = new double[graph.getNumNodes()][graph.getNumNodes()][graph.getNumType()];
-		marginal = new double[graph.getNumNodes()][graph.getNumType()];
-		for (int i=0; i<message.length; i++)
-			for (int j=0; j<message[0].length; j++){
-				double sum=0;
-				for (int k=0; k<message[0][0].length; k++) {
-					double rand = r.nextDouble();						
-					message[i][j][k] = 2+rand;
-					sum += message[i][j][k];
-				}
-				for (int k=0; k<message[0][0].length; k++)
-					message[i][j][k] = message[i][j][k]/sum;
-			}
+		allocate();
+		randomize(r);
 		//message[0][33][0] = 10;
 	}
 	/**
@@ -62,19 +85,8 @@ public class BPfullMU extends EMstep{
 
 		likelihoodHard=0;
 		like3=0;
-		message = new double[graph.getNumNodes()][graph.getNumNodes()][graph.getNumType()];
-		marginal = new double[graph.getNumNodes()][graph.getNumType()];
-		for (int i=0; i<message.length; i++)
-			for (int j=0; j<message[0].length; j++){
-				double sum=0;
-				for (int k=0; k<message[0][0].length; k++) {
-					double rand = r.nextDouble();						
-					message[i][j][k] = 2+rand;
-					sum += message[i][j][k];
-				}
-				for (int k=0; k<message[0][0].length; k++)
-					message[i][j][k] = message[i][j][k]/sum;
-			}
+		allocate();
+		randomize(r);
 	}
 	
 	/**
@@ -85,86 +97,205 @@ public class BPfullMU extends EMstep{
 	public BPfullMU(Graph g, BPfullMU copy) {
 		super(g, copy.degreeCorrect, copy.gSizeCorrect, copy.typeP, copy.gNode);
 		
+		epsilon = copy.epsilon;
+		likelihood = copy.likelihood;
 		likelihoodHard = copy.likelihoodHard;
 		like3 = copy.like3;
 		for (int i=0; i<gNode.length; i++)
 			gNode[i] = copy.gNode[i];
-		message = new double[graph.getNumNodes()][graph.getNumNodes()][graph.getNumType()];
-		marginal = new double[graph.getNumNodes()][graph.getNumType()];
-
-		for (int i=0; i<message.length; i++)
-			for (int j=0; j<message[0].length; j++)
-				for (int k=0; k<message[0][0].length; k++)
-					message[i][j][k] = copy.message[i][j][k];
-		for (int j=0; j<message[0].length; j++)
-			for (int k=0; k<message[0][0].length; k++)
+		allocate();
+		System.arraycopy(copy.message, 0, message, 0, message.length);
+		for (int j=0; j<graph.getNumNodes(); j++)
+			for (int k=0; k<graph.getNumType(); k++)
 				marginal[j][k] = copy.marginal[j][k];
 	}
 
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the full BP, including block parameters as well as messages
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		return new BPfullMU(graph, this);
+	}
+	/**
+	 * This method seeds the marginals, and the messages with the marginals of their sources
+	 * A polymorphic extension of the method seed in the parent class
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {
+		for (int i=0; i<graph.getNumNodes(); i++)
+			for (int k=0; k<graph.getNumType(); k++) {
+				marginal[i][k] = M[i][k];
+				for (int j=0; j<graph.getNumNodes(); j++)
+					message[at(i, j)+k] = M[i][k];
+			}
+	}
+	/**
+	 * This method fills the messages with random normalized vectors
+	 * @param r Random
+	 */
+	void randomize(Random r) {
+		for (int at=0; at<message.length; at+=graph.getNumType()) {
+			double sum=0;
+			for (int k=0; k<graph.getNumType(); k++) {
+				double rand = r.nextDouble();						
+				message[at+k] = 2+rand;
+				sum += message[at+k];
+			}
+			for (int k=0; k<graph.getNumType(); k++)
+				message[at+k] = message[at+k]/sum;
+		}
+	}
+	/**
+	 * This method allocates the message buffers, the marginals and the scratch space once for all sweeps
+	 * Child classes with compressed messages allocate their own storage
+	 * @param null
+	 */
+	void allocate() {
+		message = new double[graph.getNumNodes()*graph.getNumNodes()*graph.getNumType()];
+		next = new double[message.length];
+		marginal = new double[graph.getNumNodes()][graph.getNumType()];
+		scratch = new Scratch[chunks];
+		for (int p=0; p<scratch.length; p++)
+			scratch[p] = new Scratch();
+	}
+	/**
+	 * This method gives the position of the message from i to j in the flat message buffers
+	 * @return offset of the first block int
+	 * @param i int
+	 * @param j int
+	 */
+	int at(int i, int j) {
+		return (i*graph.getNumNodes() + j)*graph.getNumType();
+	}
+	/**
+	 * This method returns the message from i to j as a dense vector
+	 * Child classes with compressed messages decode into the buffer
+	 * @return dense message double[]
+	 * @param i int
+	 * @param j int
+	 * @param buffer double[]
+	 */
+	double[] msg(int i, int j, double[] buffer) {
+		System.arraycopy(message, at(i, j), buffer, 0, buffer.length);
+		return buffer;
+	}
+	/**
+	 * This method runs the parts of a parallel sweep on the fork-join pool and waits for all of them
+	 * @param parts Part[]
+	 */
+	void invoke(final Part[] parts) {
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(parts);
+			}
+		});
+	}
+	/**
+	 * This method computes the log-field of a node: the log of the product of the incoming message terms from all other nodes
+	 * The term of each node is kept in the scratch space, so that the message to j is obtained by removing the term of j (cavity),
+	 * and vanishing terms (log zero) are counted apart from the field so that they can be removed exactly
+	 * @param i int
+	 * @param s Scratch
+	 */
+	void logField(int i, Scratch s) {
+		for (int n=0; n<graph.vList[i].sources.size(); n++) { //edge counts from the neighbors (zero for all other nodes)
+			int l = graph.vList[i].sources.get(n);
+			s.count[l] = graph.vList[l].targetCount.get(graph.vList[l].targets.indexOf(i));
+		}
+		int totalD = 1;
+		if (degreeCorrect)
+			totalD = graph.vList[i].outDegree;
+		for (int k=0; k<graph.getNumType(); k++) {
+			s.field[k] = 0;
+			s.vanish[k] = 0;
+		}
+		for (int l=0; l<graph.getNumNodes(); l++) if (l!=i) {
+			int totalD2 = 1;
+			if (degreeCorrect)
+				totalD2 = graph.vList[l].outDegree;
+			double[] in = msg(l, i, s.buffer); //message from l to i
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				double temp = 0;
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					temp += in[k2] 
+						    * poisson(typeP[k2][k1] * totalD2 * totalD, s.count[l])
+							* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
+				}
+				double term = java.lang.Math.log(temp);
+				s.contrib[l*graph.getNumType()+k1] = term;
+				if (term == Double.NEGATIVE_INFINITY)
+					s.vanish[k1]++;
+				else
+					s.field[k1] += term;
+			}
+		}
+		for (int n=0; n<graph.vList[i].sources.size(); n++) //reset the scratch counts
+			s.count[graph.vList[i].sources.get(n)] = 0;
+	}
+	
+	/**
+	 * This method computes the normalized message from i to j by removing the term of j from the log-field of i
+	 * A negative j keeps all the terms
+	 * @param j int
+	 * @param s Scratch
+	 * @param newmsg double[]
+	 * @param offset int
+	 */
+	void cavity(int j, Scratch s, double[] newmsg, int offset) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k=0; k<graph.getNumType(); k++) {
+			int zeros = s.vanish[k];
+			double value = s.field[k];
+			if (j >= 0) {
+				double term = s.contrib[j*graph.getNumType()+k];
+				if (term == Double.NEGATIVE_INFINITY)
+					zeros--;
+				else
+					value -= term;
+			}
+			if (gSizeCorrect) //group size correction
+				value += java.lang.Math.log(gNode[k]);
+			if (zeros > 0)
+				value = Double.NEGATIVE_INFINITY;
+			newmsg[offset+k] = value;
+			max = java.lang.Math.max(max, value);
+		}
+		double sum = 0;
+		for (int k=0; k<graph.getNumType(); k++) {
+			if (max == Double.NEGATIVE_INFINITY) //boundary cases
+				newmsg[offset+k] = 1;
+			else
+				newmsg[offset+k] = java.lang.Math.exp(newmsg[offset+k] - max);
+			sum += newmsg[offset+k]; //for message normalization
+		}
+		for (int k=0; k<graph.getNumType(); k++)
+			newmsg[offset+k] = newmsg[offset+k] / sum;
+	}
+	
 	/**
 	 * This method does a sweep of all message updates (asynchronous) across the network
+	 * The outgoing messages of a node do not enter its own log-field, so it is computed once per node
 	 * @return measure of change in terms of messages in L1 norm
 	 * @param null
 	 */
 	public double stepBP() {
 		int[] Ulist = permute();
 		double delta = 0;
+		Scratch s = scratch[0];
 		
 		// update in order according to the permutation
-		for (int i=0; i<message.length; i++) {
-			int totalD = 1;
-			if (degreeCorrect)
-				totalD = graph.vList[Ulist[i]].outDegree;
-			for (int j=0; j<message[0].length; j++) if (j!= Ulist[i]) {
-				int totalD2 = 1;
-				if (degreeCorrect)
-					totalD2 = graph.vList[j].outDegree;
-				double[] newmsg = new double[message[0][0].length];
-				for (int k=0; k<newmsg.length; k++) //updating message from i to j
-					newmsg[k] = 1;
-				
-				for (int l=0; l<message[0].length; l++)	if (l!=Ulist[i] && l!=j) {
-					double temp = 0;
-					// loop through all the other incoming neighbors
-					if (graph.vList[Ulist[i]].sources.contains(l))	{//case 1: double edges between Ulist[i] and l
-						int index = graph.vList[l].targets.indexOf(Ulist[i]); //index in the msgTargets[source]
-						int edgeC = graph.vList[l].targetCount.get(index);
-						for (int k1=0; k1<message[0][0].length; k1++) {
-							temp = 0;
-							for (int k2=0; k2<message[0][0].length; k2++) {
-								temp += message[l][Ulist[i]][k2] 
-									    * poisson(typeP[k2][k1] * totalD2 * totalD, edgeC)
-										* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-							
-							}
-							newmsg[k1] *= temp;
-						}
-					}
-					else {//case 4: no edge between Ulist[i] and the l
-						for (int k1=0; k1<message[0][0].length; k1++) {
-							temp = 0;
-							for (int k2=0; k2<message[0][0].length; k2++) {
-									temp += message[l][Ulist[i]][k2] //degree correction
-											* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-								}
-							newmsg[k1] *= temp;
-						}
-					}
-				}
-				double sum = 0;
-				for (int k=0; k<message[0][0].length; k++) {
-					if (gSizeCorrect) //group size correction
-						newmsg[k] = newmsg[k]*gNode[k];
-					sum += newmsg[k]; //for message normalization
-				}
-				for (int k=0; k<message[0][0].length; k++){
-					if (sum == 0)
-						newmsg[k] = 1.0/message[0][0].length;
-					else
-						newmsg[k] = newmsg[k] / sum;
-					delta += java.lang.Math.abs(message[Ulist[i]][j][k]-newmsg[k]);
-					message[Ulist[i]][j][k] = 0.5*message[Ulist[i]][j][k] + 0.5*newmsg[k]; //damping propagation
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			logField(Ulist[i], s);
+			for (int j=0; j<graph.getNumNodes(); j++) if (j!= Ulist[i]) {
+				int ij = at(Ulist[i], j);
+				cavity(j, s, next, ij); //updating message from i to j
+				for (int k=ij; k<ij+graph.getNumType(); k++){
+					delta += java.lang.Math.abs(message[k]-next[k]);
+					message[k] = 0.5*message[k] + 0.5*next[k]; //damping propagation
 				}
 			}
 		}
@@ -173,71 +304,45 @@ public class BPfullMU extends EMstep{
 	
 	/**
 	 * This method does a sweep of all message updates (synchronous flood) across the network
+	 * Each node's log-field is computed once, and each outgoing message removes the term of its target, O(V^2*K^2) per sweep
+	 * The source nodes are spread over the fork-join pool, as the new messages only depend on the old ones
+	 * The damped messages are written into the second buffer, which is then swapped in, so a sweep allocates no message storage
 	 * @return measure of change in terms of messages in L1 norm
 	 * @param null
 	 */
 	public double stepBPflood() {
-		// Newly updated message after a single flood step
-		double[][][] newmsg = new double[message.length][message[0].length][message[0][0].length];
-		for (int i=0; i<message.length; i++)
-			for (int j=0; j<message[0].length; j++)
-				for (int k=0; k<message[0][0].length; k++)
-					newmsg[i][j][k] = 1;
-		// Message flood
-		for (int i=0; i<message.length; i++) {
-			int totalD = 1;
-			if (degreeCorrect)
-				totalD = graph.vList[i].outDegree;
-			for (int j=0; j<message[0].length; j++) if (j!=i){
-					int totalD2 = 1;
-					if (degreeCorrect)
-						totalD2 = graph.vList[j].outDegree;
-				for (int l=0; l<message[0].length; l++)	if (l!=i && l!=j){
-					int edgeC = 0;
-					if (graph.vList[l].targets.contains(i)) {
-						int target = graph.vList[l].targets.indexOf(i);
-						edgeC = graph.vList[l].targetCount.get(target);	
-					}
-					double temp = 0;
-					// loop through all the other incoming neighbors
-					for (int k1=0; k1<message[0][0].length; k1++) {
-						temp = 0;
-						for (int k2=0; k2<message[0][0].length; k2++) {
-							temp += message[l][i][k2] 
-								    * poisson(typeP[k2][k1] * totalD2 * totalD, edgeC)
-									* java.lang.Math.exp(-typeP[k2][k1] * totalD * totalD2);
-						
+		// Message flood into the second buffer, in parallel over the source nodes
+		Part[] flood = new Part[chunks];
+		for (int p=0; p<flood.length; p++)
+			flood[p] = new Part(p, flood.length) {
+				void visit(int i) {
+					Scratch s = scratch[index]; //scratch space of this part
+					logField(i, s);
+					for (int j=0; j<graph.getNumNodes(); j++) if (j!=i) {
+						int ij = at(i, j);
+						cavity(j, s, next, ij);
+						for (int k=ij; k<ij+graph.getNumType(); k++){
+							delta += java.lang.Math.abs(message[k]-next[k]); 
+							next[k] = 0.5*message[k] + 0.5*next[k]; //damping propagation
 						}
-						newmsg[i][j][k1] *= temp;
 					}
 				}
-			}
-		}
+			};
+		invoke(flood);
 		
-		// Update all the messages and measures the change
+		// Swap in the updated messages and measures the change
+		double[] old = message;
+		message = next;
+		next = old;
 		double delta = 0;
-		for (int i=0; i<message.length; i++) 
-			for (int j=0; j<message[0].length; j++) if (j!=i) {
-				double sum = 0;
-				for (int k=0; k<message[0][0].length; k++) {
-					if (gSizeCorrect)
-						newmsg[i][j][k] = newmsg[i][j][k]*gNode[k]; //group size correction
-					sum += newmsg[i][j][k]; // for message normalization
-				}
-				for (int k=0; k<message[0][0].length; k++){
-					if (sum == 0)
-						newmsg[i][j][k] = 1.0/message[0][0].length;
-					else
-						newmsg[i][j][k] = newmsg[i][j][k] / sum;
-					delta += java.lang.Math.abs(message[i][j][k]-newmsg[i][j][k]); 
-					message[i][j][k] = 0.5*message[i][j][k] + 0.5*newmsg[i][j][k]; //damping propagation
-				}
-			}
+		for (int p=0; p<flood.length; p++)
+			delta += flood[p].delta;
 		return delta;
 	}
 	
 	/**
 	  * This method implements the M-step after the E-step converges
+	  * The pair loops are spread over the fork-join pool, each part accumulating its own sums, reduced at the end
 	  * A polymorphic extension of the abstract method mStep in the parent class
 	  * Built for undirected multi-graphs and Poisson/DC block models
 	  * @return maximum likelihood after this EM iteration
@@ -250,67 +355,85 @@ public class BPfullMU extends EMstep{
 		like3 = 0;
 		double[][] temp = new double[graph.getNumType()][graph.getNumType()];
 		double[][] sum = new double[graph.getNumType()][graph.getNumType()];
-		for (int i=0; i<graph.getNumNodes(); i++) {
-			int iid = findMax(marginal[i]);
-			for (int j=i+1; j<graph.getNumNodes(); j++) {
-				int jid = findMax(marginal[j]);
-				int edgeC = 0;
-				if (graph.vList[i].targets.contains(j)) {
-					int target = graph.vList[i].targets.indexOf(j);
-					edgeC = graph.vList[i].targetCount.get(target);	
-				}
-				int totalDi = 1;
-				if (degreeCorrect)
-					totalDi = graph.vList[i].outDegree;
-				int totalDj = 1;
-				if (degreeCorrect)
-					totalDj = graph.vList[j].outDegree;
-				double[][] q = new double[graph.getNumType()][graph.getNumType()];
-				for (int k1=0; k1<graph.getNumType(); k1++)
-					for (int k2=0; k2<graph.getNumType(); k2++) {
-						q[k1][k2] = message[i][j][k1] * message[j][i][k2] * poisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
-									* java.lang.Math.exp(-typeP[k1][k2] * totalDi * totalDj);
-						if (k1 == iid && k2 == jid)
-							like3 += java.lang.Math.log (poisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
-									* java.lang.Math.exp(-typeP[k1][k2] * totalDi * totalDj));
-					}
-				double qSum = 0; //q normalization
-			
-				for (int k1=0; k1<graph.getNumType(); k1++)
-					for (int k2=0; k2<graph.getNumType(); k2++) 
-						qSum += q[k1][k2];
-				
-				for (int k1=0; k1<graph.getNumType(); k1++)
-					for (int k2=0; k2<graph.getNumType(); k2++) {
-						q[k1][k2] = q[k1][k2] / qSum;
+		Part[] parts = new Part[chunks];
+		for (int p=0; p<parts.length; p++)
+			parts[p] = new Part(p, parts.length) {
+				void visit(int i) {
+					double[] bufferI = new double[graph.getNumType()]; //decoding buffers for compressed messages
+					double[] bufferJ = new double[graph.getNumType()];
+					int iid = findMax(marginal[i]);
+					for (int j=i+1; j<graph.getNumNodes(); j++) {
+						int jid = findMax(marginal[j]);
+						int edgeC = 0;
+						if (graph.vList[i].targets.contains(j)) {
+							int target = graph.vList[i].targets.indexOf(j);
+							edgeC = graph.vList[i].targetCount.get(target);	
+						}
+						int totalDi = 1;
+						if (degreeCorrect)
+							totalDi = graph.vList[i].outDegree;
+						int totalDj = 1;
+						if (degreeCorrect)
+							totalDj = graph.vList[j].outDegree;
+						double[][] q = new double[graph.getNumType()][graph.getNumType()];
+						double[] msgI = msg(i, j, bufferI); //messages in both directions
+						double[] msgJ = msg(j, i, bufferJ);
+						for (int k1=0; k1<graph.getNumType(); k1++)
+							for (int k2=0; k2<graph.getNumType(); k2++) {
+								q[k1][k2] = msgI[k1] * msgJ[k2] * poisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+											* java.lang.Math.exp(-typeP[k1][k2] * totalDi * totalDj);
+								if (k1 == iid && k2 == jid)
+									hard += logPoisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+											- typeP[k1][k2] * totalDi * totalDj;
+							}
+						double qSum = 0; //q normalization
+					
+						for (int k1=0; k1<graph.getNumType(); k1++)
+							for (int k2=0; k2<graph.getNumType(); k2++) 
+								qSum += q[k1][k2];
+						
+						for (int k1=0; k1<graph.getNumType(); k1++)
+							for (int k2=0; k2<graph.getNumType(); k2++) {
+								q[k1][k2] = q[k1][k2] / qSum;
+							}
+						//likelihood += java.lang.Math.log(qSum);	
+						
+						for (int k1=0; k1<graph.getNumType(); k1++) //accumulating sums for estimating typeP
+							for (int k2=0; k2<graph.getNumType(); k2++) {
+								//if (k1!=k2||i!=j) {
+								double pLike = 0; //pairwise part
+								pLike -= q[k1][k2]*java.lang.Math.log(q[k1][k2]); //pairwise entropy part
+									
+								pLike += q[k1][k2]*(logPoisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
+																	- typeP[k1][k2] * totalDi * totalDj); //pairwise energy part
+								temp[k1][k2] += q[k1][k2]* edgeC;
+								sum[k1][k2] += q[k1][k2] * totalDi * totalDj;
+									
+								like += pLike;
+								//}
+							}
 					}
-				//likelihood += java.lang.Math.log(qSum);	
-				
-				for (int k1=0; k1<graph.getNumType(); k1++) //accumulating sums for estimating typeP
-					for (int k2=0; k2<graph.getNumType(); k2++) {
-						//if (k1!=k2||i!=j) {
-						double pLike = 0; //pairwise part
-						pLike -= q[k1][k2]*java.lang.Math.log(q[k1][k2]); //pairwise entropy part
-							
-						pLike += q[k1][k2]*java.lang.Math.log(poisson(typeP[k1][k2] * totalDi * totalDj, edgeC)
-															* java.lang.Math.exp(-typeP[k1][k2] * totalDi * totalDj)); //pairwise energy part
-						temp[k1][k2] += q[k1][k2]* edgeC;
-						sum[k1][k2] += q[k1][k2] * totalDi * totalDj;
-							
-						likelihoodHard += pLike;
-						//}
+					double pEntr = 0; //pointwise part
+					for (int k=0; k<graph.getNumType(); k++) {
+						pEntr += marginal[i][k] * java.lang.Math.log(marginal[i][k]); //pointwise entropy part
+						if (gSizeCorrect) {
+							like += marginal[i][k]*(java.lang.Math.log(gNode[k])); //pointwise energy part
+							if (k == iid)
+								hard += java.lang.Math.log(gNode[k]); //group size correction
+						}
 					}
-			}
-			double pEntr = 0; //pointwise part
-			for (int k=0; k<graph.getNumType(); k++) {
-				pEntr += marginal[i][k] * java.lang.Math.log(marginal[i][k]); //pointwise entropy part
-				if (gSizeCorrect) {
-					likelihoodHard += marginal[i][k]*(java.lang.Math.log(gNode[k])); //pointwise energy part
-					if (k == iid)
-						like3 += java.lang.Math.log(gNode[k]); //group size correction
+					like += pEntr*(graph.getNumNodes()-2);
+				}
+			};
+		invoke(parts);
+		for (int p=0; p<parts.length; p++) { //reduction of the accumulators
+			likelihoodHard += parts[p].like;
+			like3 += parts[p].hard;
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					temp[k1][k2] += parts[p].temp[k1][k2];
+					sum[k1][k2] += parts[p].sum[k1][k2];
 				}
-			}
-			likelihoodHard += pEntr*(graph.getNumNodes()-2);
 		}
 
 		double delta = 0; //change measure
@@ -350,8 +473,10 @@ public class BPfullMU extends EMstep{
 			steps++;
 		}
 		double temp = 0;
-		for (int i=0; i<message.length; i++) {
-			int j = (i+1)%message.length; // pick an arbitrary pair
+		double[] bufferI = new double[graph.getNumType()]; //decoding buffers for compressed messages
+		double[] bufferJ = new double[graph.getNumType()];
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			int j = (i+1)%graph.getNumNodes(); // pick an arbitrary pair
 			int totalDi = 1;
 			if (degreeCorrect)
 				totalDi = graph.vList[i].outDegree;
@@ -363,20 +488,22 @@ public class BPfullMU extends EMstep{
 				int target = graph.vList[i].targets.indexOf(j);
 				edgeC = graph.vList[i].targetCount.get(target);	
 			}
-			for (int k1=0; k1<message[0][0].length; k1++) {
+			double[] msgI = msg(i, j, bufferI);
+			double[] msgJ = msg(j, i, bufferJ);
+			for (int k1=0; k1<graph.getNumType(); k1++) {
 				temp = 0;
-				for (int k2=0; k2<message[0][0].length; k2++)
-					temp += message[j][i][k2]* poisson(typeP[k2][k1] * totalDi * totalDj, edgeC)
+				for (int k2=0; k2<graph.getNumType(); k2++)
+					temp += msgJ[k2]* poisson(typeP[k2][k1] * totalDi * totalDj, edgeC)
 								* java.lang.Math.exp(-typeP[k2][k1] * totalDi * totalDj);
-				marginal[i][k1] = temp*message[i][j][k1];
+				marginal[i][k1] = temp*msgI[k1];
 			}
 		}
 		//Normalization
-		for (int i=0; i<message.length; i++) {
+		for (int i=0; i<graph.getNumNodes(); i++) {
 			double sum = 0;
-			for (int k=0; k<message[0][0].length; k++)
+			for (int k=0; k<graph.getNumType(); k++)
 				sum += marginal[i][k];
-			for (int k=0; k<message[0][0].length; k++) {
+			for (int k=0; k<graph.getNumType(); k++) {
 				if (sum == 0)
 					marginal[i][k] = 1.0/marginal[0].length;
 				else
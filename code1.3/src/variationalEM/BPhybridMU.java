@@ -0,0 +1,311 @@
+package variationalEM;
+
+import graphTools.Graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * This class implements the full BP with hybrid message storage (for sparse graphs too large for V*V*K messages)
+ * Messages along the edges are kept exactly, while the messages from a node to its non-neighbors are kept as one shared base vector,
+ * the message with all the incoming terms, plus exact exceptions for the non-neighbors whose message deviates from it beyond a tolerance
+ * Since a non-edge term only shifts a message by O(typeP), the exceptions are few, and memory drops to about O(E*K + V*K)
+ * A child class extends the BPfullMU class, with the same log-field and cavity updates
+ * Built for undirected multi-graphs and Poisson/DC block models
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class BPhybridMU extends BPfullMU{
+
+	class HybridScratch extends Scratch { //scratch space of a part with the hybrid storage, reused across sweeps
+		double[] fresh = new double[graph.getNumType()]; //undamped new message
+		ArrayList<double[]> spare = new ArrayList<double[]>(); //exception rows dropped by the part, reused for new exceptions
+	}
+	// --- Instance Variables ----------------------------------------------------
+	double tolerance; //L1 deviation from the base message above which a non-edge message is kept exactly
+	int[] offset; //first neighbor slot of each node, neighbors sorted in increasing order
+	int[] neighbor; //neighbor node of each slot
+	double[] edge; //messages along the edges, flat at [slot*K+k]
+	double[] edgeNext; //second edge buffer written by the flood
+	double[] base; //shared non-edge message of each node, flat at [i*K+k]
+	double[] baseNext; //second base buffer written by the flood
+	List<HashMap<Integer, double[]>> except; //non-edge messages deviating from the base, per source node
+	List<HashMap<Integer, double[]>> exceptNext; //second exception maps written by the flood
+	// --- Constructors ----------------------------------------------------------
+	public BPhybridMU() {} //the empty constructor
+	/**
+	 * This constructor creates a hybrid full BP with random initial messages and manually set block parameters
+	 * @param g Graph
+	 * @param degreeC boolean
+	 * @param gSize boolean
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 * @param tol double
+	 */
+	public BPhybridMU(Graph g, boolean degreeC, boolean gSize,  double[][] typeP, double[] gNode, double tol) {
+		super(g, degreeC, gSize, typeP, gNode); //calling the parent constructor, which allocates the hybrid storage
+		tolerance = tol;
+	}
+
+	/**
+	  * This constructor creates a hybrid full BP from an exact copy, including block parameters as well as messages
+	 * @param g Graph
+	 * @param copy BPhybridMU
+	 */
+	public BPhybridMU(Graph g, BPhybridMU copy) {
+		super(g, copy.degreeCorrect, copy.gSizeCorrect, copy.typeP, copy.gNode); //calling the parent constructor
+		tolerance = copy.tolerance;
+		epsilon = copy.epsilon;
+		likelihood = copy.likelihood;
+		likelihoodHard = copy.likelihoodHard;
+		like3 = copy.like3;
+		System.arraycopy(copy.edge, 0, edge, 0, edge.length);
+		System.arraycopy(copy.base, 0, base, 0, base.length);
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			for (Map.Entry<Integer, double[]> e : copy.except.get(i).entrySet())
+				except.get(i).put(e.getKey(), e.getValue().clone());
+			for (int k=0; k<graph.getNumType(); k++)
+				marginal[i][k] = copy.marginal[i][k];
+		}
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the hybrid full BP, including block parameters as well as messages
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		return new BPhybridMU(graph, this);
+	}
+	/**
+	 * This method allocates the edge slots (union of targets and sources), the base vectors and the exception maps
+	 * @param null
+	 */
+	void allocate() {
+		offset = new int[graph.getNumNodes()+1];
+		List<int[]> lists = new ArrayList<int[]>();
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			int[] list = new int[graph.vList[i].targets.size() + graph.vList[i].sources.size()];
+			int size = 0;
+			for (int j=0; j<graph.vList[i].targets.size(); j++)
+				list[size++] = graph.vList[i].targets.get(j);
+			for (int j=0; j<graph.vList[i].sources.size(); j++)
+				list[size++] = graph.vList[i].sources.get(j);
+			Arrays.sort(list);
+			int unique = 0; //drop duplicates (bi-directed edges) and self loops
+			for (int j=0; j<size; j++)
+				if (list[j] != i && (unique == 0 || list[unique-1] != list[j]))
+					list[unique++] = list[j];
+			lists.add(Arrays.copyOf(list, unique));
+			offset[i+1] = offset[i] + unique;
+		}
+		neighbor = new int[offset[graph.getNumNodes()]];
+		for (int i=0; i<graph.getNumNodes(); i++)
+			System.arraycopy(lists.get(i), 0, neighbor, offset[i], lists.get(i).length);
+
+		edge = new double[neighbor.length*graph.getNumType()];
+		edgeNext = new double[edge.length];
+		base = new double[graph.getNumNodes()*graph.getNumType()];
+		baseNext = new double[base.length];
+		except = new ArrayList<HashMap<Integer, double[]>>();
+		exceptNext = new ArrayList<HashMap<Integer, double[]>>();
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			except.add(new HashMap<Integer, double[]>());
+			exceptNext.add(new HashMap<Integer, double[]>());
+		}
+		marginal = new double[graph.getNumNodes()][graph.getNumType()];
+		scratch = new Scratch[chunks];
+		for (int p=0; p<scratch.length; p++)
+			scratch[p] = new HybridScratch();
+	}
+	/**
+	 * This method fills the edge messages and the base vectors with random normalized vectors
+	 * @param r Random
+	 */
+	void randomize(Random r) {
+		double[][] buffers = {edge, base};
+		for (double[] buffer : buffers)
+			for (int at=0; at<buffer.length; at+=graph.getNumType()) {
+				double sum=0;
+				for (int k=0; k<graph.getNumType(); k++) {
+					double rand = r.nextDouble();
+					buffer[at+k] = 2+rand;
+					sum += buffer[at+k];
+				}
+				for (int k=0; k<graph.getNumType(); k++)
+					buffer[at+k] = buffer[at+k]/sum;
+			}
+	}
+	/**
+	 * This method seeds the marginals, and all messages with the marginals of their sources
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			except.get(i).clear();
+			for (int k=0; k<graph.getNumType(); k++) {
+				marginal[i][k] = M[i][k];
+				base[i*graph.getNumType()+k] = M[i][k];
+				for (int slot=offset[i]; slot<offset[i+1]; slot++)
+					edge[slot*graph.getNumType()+k] = M[i][k];
+			}
+		}
+	}
+	/**
+	 * This method finds the slot of the edge from i to j
+	 * @return the slot, negative for non-neighbors int
+	 * @param i int
+	 * @param j int
+	 */
+	int slot(int i, int j) {
+		int found = Arrays.binarySearch(neighbor, offset[i], offset[i+1], j);
+		if (found < 0)
+			return -1;
+		return found;
+	}
+	/**
+	 * This method returns the message from i to j decoded into the buffer:
+	 * the edge message, the exception, or the base vector of i
+	 * @return dense message double[]
+	 * @param i int
+	 * @param j int
+	 * @param buffer double[]
+	 */
+	double[] msg(int i, int j, double[] buffer) {
+		int slot = slot(i, j);
+		if (slot >= 0)
+			System.arraycopy(edge, slot*buffer.length, buffer, 0, buffer.length);
+		else {
+			double[] kept = except.get(i).get(j);
+			if (kept != null)
+				System.arraycopy(kept, 0, buffer, 0, buffer.length);
+			else
+				System.arraycopy(base, i*buffer.length, buffer, 0, buffer.length);
+		}
+		return buffer;
+	}
+	/**
+	 * This method returns the number of non-edge messages kept exactly
+	 * @return number of exceptions int
+	 * @param null
+	 */
+	public int exceptions() {
+		int total = 0;
+		for (int i=0; i<graph.getNumNodes(); i++)
+			total += except.get(i).size();
+		return total;
+	}
+	/**
+	 * This method updates all the outgoing messages of a node from its log-field, with damping
+	 * The damped edge messages and base vector are written into the given buffers, and the exceptions into exceptNext
+	 * The stale rows left in exceptNext are overwritten in place or dropped to the spare rows of the part, so a sweep allocates no message storage
+	 * @return measure of change in terms of messages in L1 norm double
+	 * @param i int
+	 * @param s Scratch
+	 * @param edgeOut double[]
+	 * @param baseOut double[]
+	 */
+	double update(int i, Scratch s, double[] edgeOut, double[] baseOut) {
+		int K = graph.getNumType(); //number of blocks
+		HybridScratch h = (HybridScratch) s;
+		double[] fresh = h.fresh; //undamped new message
+		logField(i, s);
+		cavity(-1, s, fresh, 0); //the base keeps all the incoming terms
+		for (int k=0; k<K; k++)
+			baseOut[i*K+k] = 0.5*base[i*K+k] + 0.5*fresh[k]; //damping propagation
+		HashMap<Integer, double[]> old = except.get(i);
+		HashMap<Integer, double[]> kept = exceptNext.get(i); //stale rows, every non-neighbor is rewritten or dropped below
+		double delta = 0;
+		int slot = offset[i];
+		for (int j=0; j<graph.getNumNodes(); j++) if (j!=i) {
+			cavity(j, s, fresh, 0);
+			if (slot < offset[i+1] && neighbor[slot] == j) { //message along an edge
+				for (int k=0; k<K; k++) {
+					delta += java.lang.Math.abs(edge[slot*K+k]-fresh[k]);
+					edgeOut[slot*K+k] = 0.5*edge[slot*K+k] + 0.5*fresh[k]; //damping propagation
+				}
+				slot++;
+			}
+			else { //message to a non-neighbor, kept only if it deviates from the base
+				double[] prev = old.get(j);
+				double deviation = 0;
+				for (int k=0; k<K; k++) {
+					double previous = (prev == null) ? base[i*K+k] : prev[k];
+					delta += java.lang.Math.abs(previous-fresh[k]);
+					fresh[k] = 0.5*previous + 0.5*fresh[k]; //damping propagation
+					deviation += java.lang.Math.abs(fresh[k]-baseOut[i*K+k]);
+				}
+				double[] row = kept.get(j);
+				if (deviation > tolerance) {
+					if (row == null) {
+						row = h.spare.isEmpty() ? new double[K] : h.spare.remove(h.spare.size()-1);
+						kept.put(j, row);
+					}
+					System.arraycopy(fresh, 0, row, 0, K);
+				}
+				else if (row != null)
+					h.spare.add(kept.remove(j));
+			}
+		}
+		return delta;
+	}
+	/**
+	 * This method does a sweep of all message updates (asynchronous) across the network with the hybrid storage
+	 * @return measure of change in terms of messages in L1 norm
+	 * @param null
+	 */
+	public double stepBP() {
+		int[] Ulist = permute();
+		double delta = 0;
+		int K = graph.getNumType(); //number of blocks
+		for (int u=0; u<Ulist.length; u++) {
+			int i = Ulist[u];
+			delta += update(i, scratch[0], edge, baseNext); //edge messages in place, base through the second buffer
+			System.arraycopy(baseNext, i*K, base, i*K, K);
+			HashMap<Integer, double[]> old = except.get(i); //swap in the new exceptions of i
+			except.set(i, exceptNext.get(i));
+			exceptNext.set(i, old);
+		}
+		return delta;
+	}
+	/**
+	 * This method does a sweep of all message updates (synchronous flood) across the network with the hybrid storage
+	 * The source nodes are spread over the fork-join pool, and the second buffers are swapped in after the sweep
+	 * @return measure of change in terms of messages in L1 norm
+	 * @param null
+	 */
+	public double stepBPflood() {
+		Part[] flood = new Part[chunks];
+		for (int p=0; p<flood.length; p++)
+			flood[p] = new Part(p, flood.length) {
+				void visit(int i) {
+					delta += update(i, scratch[index], edgeNext, baseNext);
+				}
+			};
+		invoke(flood);
+
+		double[] old = edge; //swap in the updated messages
+		edge = edgeNext;
+		edgeNext = old;
+		old = base;
+		base = baseNext;
+		baseNext = old;
+		List<HashMap<Integer, double[]>> oldExcept = except;
+		except = exceptNext;
+		exceptNext = oldExcept;
+		double delta = 0;
+		for (int p=0; p<flood.length; p++)
+			delta += flood[p].delta;
+		return delta;
+	}
+
+}
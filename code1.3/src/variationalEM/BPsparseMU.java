@@ -0,0 +1,1069 @@
+package variationalEM;
+
+import graphTools.Graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * This class implements the linear BP with sparse top-k messages along the edges (for large numbers of blocks)
+ * Each directed message only keeps the blocks above a mass threshold, the rest is folded into a uniform residual
+ * A node update only works on its active blocks (the blocks kept by its incoming messages, the blocks they link to
+ * well above the row mean of typeP, and the top blocks of its prior), all other blocks are folded into one block,
+ * the column terms of the residual mass of every incoming message go into the prior of each block,
+ * the rest of the edge terms of the folded blocks comes from the row and column sums of the edge terms (vanilla model) or mean-field (DC model),
+ * and the non-edge terms of each node are cached, so the work on an edge scales with the active and kept blocks instead of K^2
+ * The M-step works on the kept blocks of both messages plus their folded blocks,
+ * spreading the folded mass over whole rows and columns of the block statistics once per M-step
+ * A child class extends the BPfastMU class, non-edge messages (marginal vectors) are kept dense
+ * Built for undirected multi-graphs and Poisson/DC block models
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class BPsparseMU extends BPfastMU{
+	//--- Inner class for sparse messages ----------------------------------------
+	public static class Smsg { //sparse message along one edge
+		public int size; //number of blocks kept explicitly
+		public int[] index; //block indices kept explicitly
+		public double[] value; //message mass on the kept blocks
+		public double residual; //message mass on each of the folded blocks
+
+		private Smsg() { //inner constructor
+			size = 0;
+			index = new int[1];
+			value = new double[1];
+		}
+	}
+	// --- Instance Variables ----------------------------------------------------
+	double threshold; //mass threshold below which blocks are folded into the residual
+	Smsg[][] sparse; //sparse messages on each vertex, indexed the same way as msgTargets
+	double[][] residualTable; //column sums of the Poisson edge terms for the residual mass (vanilla model)
+	double[][] rowTable; //row sums of the Poisson edge terms (vanilla model)
+	double[][] columnLog; //log column terms of the residual mass by edge count, the column sums of the edge terms (vanilla model) or powers of columnP (DC model)
+	double[] tableTotal; //sums of the Poisson edge terms over all block pairs (vanilla model)
+	double[] columnP; //column means of typeP for the residual mass (DC model)
+	double[] buffer; //decoding buffer for message damping
+	int maxCount; //largest multi-edge count in the graph
+	double[] rowTotal; //row sums of typeP
+	double[] colTotal; //column sums of typeP
+	double totalP; //sum of typeP
+	double[][] expP; //exp(-typeP) for the vanilla non-edge terms
+	int[][] strong; //for each block, the blocks it links to well above its row mean, kept active next to it
+	double[][] nonEdge; //per node, log of the non-edge term against its marginal for each block (vanilla), or minus the expected rate per unit degree product (DC)
+	double[] nonEdgeSum; //sum of each row of nonEdge over the blocks
+	int[] nonEdgeStamp; //version each row of nonEdge was computed for, stale rows are recomputed on use
+	int version; //bumped whenever the block parameters or the marginals may have changed outside the node updates
+	int pass; //counter of the node updates, stamps the per-node caches
+	int[] active; //active blocks of the node being updated
+	int activeSize; //number of active blocks of the node being updated
+	int[] where; //position of each block in the active list, -1 for the folded blocks
+	double[] prior; //log prior of the node being updated (base message, self term and group size correction), with the column terms of its edges
+	double[] bias; //log column terms of the edges of the node being updated
+	int[] edgeCount; //number of edges of the node being updated by edge count
+	int[] counts; //edge counts present on the node being updated
+	double[] values; //log values of a new message on the active blocks
+	double[] rowFold; //mean of each row of the edge terms (vanilla model) or of typeP (DC model) over the folded blocks of the node being updated
+	int[] rowStamp; //pass each entry of rowFold was computed for
+	int[] rowCount; //edge count each entry of rowFold was computed for (vanilla model)
+	int[] mark; //position of each block in the old message during damping, -1 otherwise
+	int[] mixIndex; //merge buffers for message damping
+	double[] mixValue;
+	Smsg fresh; //new message before damping
+	double[] massI; //reduced pair-wise marginals for the M-step
+	double[] massJ;
+	double[] foldI;
+	double[] foldJ;
+	double[][] pairs; //pair-wise marginals for the non-edges, edge terms of the reduced states of an edge
+	double[][] tempRow; //deferred M-step statistics spread over whole rows, columns, or all block pairs, by edge count (vanilla model)
+	double[][] tempCol;
+	double[][] sumRow;
+	double[][] sumCol;
+	double[] tempAll;
+	double[] sumAll;
+	// --- Constructors ----------------------------------------------------------
+	public BPsparseMU(){} //the empty constructor
+	/**
+	 * This constructor creates a sparse linear BP with random initial messages and manually set block parameters
+	 * @param g Graph
+	 * @param degreeC boolean
+	 * @param gSize boolean
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 * @param mass double
+	 */
+	public BPsparseMU(Graph g, boolean degreeC, boolean gSize,  double[][] typeP, double[] gNode, double mass) {
+		super(g, degreeC, gSize, typeP, gNode); //calling the parent constructor
+		threshold = mass;
+		compress();
+	}
+
+	/**
+	  * This constructor creates a sparse linear BP from an exact copy, including block parameters as well as messages
+	 * @param g Graph
+	 * @param copy BPsparseMU
+	 */
+	public BPsparseMU(Graph g, BPsparseMU copy) {
+		super(g, copy); //calling the parent constructor, which decodes the sparse messages
+		threshold = copy.threshold;
+		compress();
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the sparse linear BP, including block parameters as well as messages
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		return new BPsparseMU(graph, this);
+	}
+	/**
+	 * This method seeds the non-edge messages with the node marginals, and the sparse messages with the marginals of their sources
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {
+		super.seed(M); //non-edge messages
+		for (int i=0; i<sparse.length; i++)
+			for (int j=0; j<sparse[i].length; j++)
+				sparsify(M[i], sparse[i][j]);
+	}
+	/**
+	 * This method replaces the dense directed messages with their sparse versions and releases the dense ones
+	 * @param null
+	 */
+	private void compress() {
+		buffer = new double[graph.getNumType()];
+		columnP = new double[graph.getNumType()];
+		maxCount = 0;
+		for (int i=0; i<graph.getNumNodes(); i++)
+			for (int j=0; j<graph.vList[i].targetCount.size(); j++)
+				if (graph.vList[i].targetCount.get(j) > maxCount)
+					maxCount = graph.vList[i].targetCount.get(j);
+		sparse = new Smsg[graph.getNumNodes()][];
+		for (int i=0; i<sparse.length; i++) {
+			sparse[i] = new Smsg[slots(i)];
+			for (int j=0; j<sparse[i].length; j++) {
+				sparse[i][j] = new Smsg();
+				sparsify(message[i].msgTargets.get(j), sparse[i][j]);
+			}
+			message[i].msgTargets.clear(); //dense edge messages are no longer kept
+			message[i].msgTargets.trimToSize();
+		}
+	}
+	/**
+	 * This method keeps the blocks above the mass threshold (at least the top one) and folds the rest into the residual
+	 * @param dense double[]
+	 * @param msg Smsg
+	 */
+	private void sparsify(double[] dense, Smsg msg) {
+		int top = findMax(dense);
+		int kept = 0;
+		for (int k=0; k<dense.length; k++)
+			if (k == top || dense[k] >= threshold)
+				kept++;
+		if (msg.index.length < kept) { //grow the storage only when needed
+			msg.index = new int[kept];
+			msg.value = new double[kept];
+		}
+		double folded = 0;
+		msg.size = 0;
+		for (int k=0; k<dense.length; k++) {
+			if (k == top || dense[k] >= threshold) {
+				msg.index[msg.size] = k;
+				msg.value[msg.size] = dense[k];
+				msg.size++;
+			}
+			else
+				folded += dense[k];
+		}
+		if (kept < dense.length)
+			msg.residual = folded / (dense.length - kept); //uniform over the folded blocks
+		else
+			msg.residual = 0;
+	}
+	/**
+	 * This method returns the directed message j of a node decoded into the buffer
+	 * @return dense message double[]
+	 * @param node int
+	 * @param j int
+	 * @param buffer double[]
+	 */
+	protected double[] edgeMsg(int node, int j, double[] buffer) {
+		Smsg msg = sparse[node][j];
+		for (int k=0; k<buffer.length; k++)
+			buffer[k] = msg.residual;
+		for (int s=0; s<msg.size; s++)
+			buffer[msg.index[s]] = msg.value[s];
+		return buffer;
+	}
+	/**
+	 * This method sums the sparse message against the Poisson edge term of target block k1,
+	 * the explicit blocks are summed exactly, and the residual mass uses the column sums of the edge terms
+	 * @return the sum over the source blocks double
+	 * @param node int
+	 * @param j int
+	 * @param k1 int
+	 * @param scale double
+	 * @param edgeC int
+	 * @param shift double
+	 */
+	protected double edgeSum(int node, int j, int k1, double scale, int edgeC, double shift) {
+		Smsg msg = sparse[node][j];
+		double temp = 0;
+		for (int s=0; s<msg.size; s++) {
+			int k2 = msg.index[s];
+			temp += (msg.value[s] - msg.residual) * java.lang.Math.exp(logPoisson(typeP[k2][k1] * scale, edgeC)
+					- typeP[k2][k1] * scale - shift);
+		}
+		if (msg.residual > 0) { //the folded mass
+			if (!degreeCorrect && edgeC < residualTable.length) //exact column sums for the vanilla model
+				temp += msg.residual * residualTable[edgeC][k1] * java.lang.Math.exp(-shift);
+			else //mean-field over the column for the DC model
+				temp += msg.residual * graph.getNumType() * java.lang.Math.exp(logPoisson(columnP[k1] * scale, edgeC)
+						- columnP[k1] * scale - shift);
+		}
+		return temp;
+	}
+	/**
+	 * This method damps a normalized new message into the sparse message j of a node
+	 * @return measure of change in L1 norm double
+	 * @param node int
+	 * @param j int
+	 * @param newmsg double[]
+	 */
+	protected double storeEdgeMsg(int node, int j, double[] newmsg) {
+		double[] msg = edgeMsg(node, j, buffer);
+		double delta = 0;
+		for (int k=0; k<msg.length; k++) {
+			delta += java.lang.Math.abs(msg[k]-newmsg[k]);
+			msg[k] = 0.5*msg[k] + 0.5*newmsg[k]; //damping propagation
+		}
+		sparsify(msg, sparse[node][j]);
+		return delta;
+	}
+	/**
+	 * This method refreshes the residual tables for the current block parameters,
+	 * and then does a sweep of sparse message updates (asynchronous) across the network
+	 * @return measure of change in terms of messages in L1 norm
+	 * @param null
+	 */
+	public double stepBPfast() {
+		refresh();
+		return super.stepBPfast();
+	}
+	/**
+	 * This method refreshes the residual tables and the sums of typeP used by the folded blocks, and then does the M-step
+	 * @return maximum likelihood after this EM iteration
+	 * @param marginals double[]
+	 * @param fix boolean
+	 */
+	public double mStep(double[] marginals, boolean fix) {
+		refresh();
+		return super.mStep(marginals, fix);
+	}
+	/**
+	 * This method refreshes the residual tables for the current block parameters,
+	 * and then does a stochastic step on a mini-batch of nodes
+	 * @return change in parameter values double
+	 * @param batch int[]
+	 * @param rate double
+	 */
+	public double stepStochastic(int[] batch, double rate) {
+		refresh();
+		return super.stepStochastic(batch, rate);
+	}
+	/**
+	 * This method refreshes the residual tables (column sums and column means of the edge terms) for the current block parameters,
+	 * the row and column sums of typeP, the strongly linked blocks, and invalidates the cached non-edge terms
+	 * @param null
+	 */
+	private void refresh() {
+		int K = graph.getNumType();
+		residualTable = new double[maxCount+1][K];
+		rowTable = new double[maxCount+1][K];
+		tableTotal = new double[maxCount+1];
+		for (int k1=0; k1<K; k1++) {
+			columnP[k1] = 0;
+			for (int k2=0; k2<K; k2++) {
+				columnP[k1] += typeP[k2][k1] / K;
+				for (int c=0; c<residualTable.length; c++) {
+					double term = poisson(typeP[k2][k1], c) * java.lang.Math.exp(-typeP[k2][k1]);
+					residualTable[c][k1] += term;
+					rowTable[c][k2] += term;
+					tableTotal[c] += term;
+				}
+			}
+		}
+		columnLog = new double[maxCount+1][K];
+		for (int c=0; c<columnLog.length; c++)
+			for (int k=0; k<K; k++) {
+				if (degreeCorrect) //for the DC model, the Poisson terms are nearly powers of the rates
+					columnLog[c][k] = c * java.lang.Math.log(java.lang.Math.max(columnP[k], Double.MIN_VALUE));
+				else
+					columnLog[c][k] = java.lang.Math.log(java.lang.Math.max(residualTable[c][k], Double.MIN_VALUE));
+			}
+		if (expP == null) {
+			expP = new double[K][K];
+			strong = new int[K][];
+			nonEdge = new double[graph.getNumNodes()][];
+			nonEdgeSum = new double[graph.getNumNodes()];
+			nonEdgeStamp = new int[graph.getNumNodes()];
+		}
+		totals();
+		for (int k1=0; k1<K; k1++)
+			for (int k2=0; k2<K; k2++)
+				expP[k1][k2] = java.lang.Math.exp(-typeP[k1][k2]);
+		ArrayList<Integer> linked = new ArrayList<Integer>();
+		for (int k1=0; k1<K; k1++) {
+			linked.clear();
+			for (int k2=0; k2<K; k2++)
+				if (typeP[k1][k2] > 2 * rowTotal[k1] / K) //well above the row mean
+					linked.add(k2);
+			strong[k1] = new int[linked.size()];
+			for (int s=0; s<linked.size(); s++)
+				strong[k1][s] = linked.get(s);
+		}
+		version++; //the cached non-edge terms are stale
+	}
+	/**
+	 * This method computes the row, column and total sums of typeP for the current block parameters
+	 * @param null
+	 */
+	private void totals() {
+		int K = graph.getNumType();
+		if (rowTotal == null) {
+			rowTotal = new double[K];
+			colTotal = new double[K];
+		}
+		totalP = 0;
+		Arrays.fill(rowTotal, 0);
+		Arrays.fill(colTotal, 0);
+		for (int k1=0; k1<K; k1++)
+			for (int k2=0; k2<K; k2++) {
+				rowTotal[k1] += typeP[k1][k2];
+				colTotal[k2] += typeP[k1][k2];
+				totalP += typeP[k1][k2];
+			}
+	}
+	/**
+	 * This method returns the non-edge terms of a node for each block, recomputing them if the node or the block parameters changed
+	 * For the vanilla model, the log of the sum of exp(-typeP) against the marginal of the node,
+	 * for the DC model, minus the expected rate against the marginal per unit degree product (linear in the degrees as the base message)
+	 * @return the non-edge terms double[]
+	 * @param h int
+	 */
+	double[] nonEdge(int h) {
+		if (nonEdgeStamp[h] != version) {
+			int K = graph.getNumType();
+			if (nonEdge[h] == null)
+				nonEdge[h] = new double[K];
+			double[] row = nonEdge[h];
+			Arrays.fill(row, 0);
+			for (int k2=0; k2<K; k2++) {
+				double o = message[h].others[k2];
+				if (o == 0)
+					continue;
+				if (degreeCorrect) //for the DC model
+					for (int k1=0; k1<K; k1++)
+						row[k1] -= o * typeP[k2][k1];
+				else
+					for (int k1=0; k1<K; k1++)
+						row[k1] += o * expP[k2][k1];
+			}
+			nonEdgeSum[h] = 0;
+			for (int k1=0; k1<K; k1++) {
+				if (!degreeCorrect) //for the vanilla model
+					row[k1] = java.lang.Math.log(row[k1]);
+				nonEdgeSum[h] += row[k1];
+			}
+			nonEdgeStamp[h] = version;
+		}
+		return nonEdge[h];
+	}
+	/**
+	 * This method returns the Poisson edge term for a rate and an edge count, poisson(rate, edgeC)*exp(-rate)
+	 * @return the edge term double
+	 * @param rate double
+	 * @param edgeC int
+	 */
+	private double edgeTerm(double rate, int edgeC) {
+		return poisson(rate, edgeC) * java.lang.Math.exp(-rate);
+	}
+	/**
+	 * This method sums the base message from the cached non-edge terms of all nodes
+	 * A polymorphic extension of the method baseMessage in the parent class
+	 * @return the base message double[]
+	 * @param null
+	 */
+	protected double[] baseMessage() {
+		double[] baseMsg = new double[graph.getNumType()];
+		for (int h=0; h<graph.getNumNodes(); h++) {
+			double[] row = nonEdge(h);
+			double weight = 1; //default vanilla model
+			if (degreeCorrect) //for the DC model, the expected rate times the degree
+				weight = -graph.vList[h].outDegree;
+			for (int k=0; k<baseMsg.length; k++)
+				baseMsg[k] += weight * row[k];
+		}
+		return baseMsg;
+	}
+	/**
+	 * This method adds a block to the active list of the node being updated
+	 * @param k int
+	 */
+	private void activate(int k) {
+		if (where[k] < 0) {
+			where[k] = activeSize;
+			active[activeSize++] = k;
+		}
+	}
+	/**
+	 * This method updates all messages of one node on its active blocks plus one folded block
+	 * The folded blocks keep their own prior with the column terms of the edges, and share the rest of the edge terms,
+	 * so each incoming message costs the active times the kept blocks, and each new message the active blocks
+	 * A polymorphic extension of the method updateNode in the parent class
+	 * @return measure of change in terms of messages in L1 norm
+	 * @param node int
+	 * @param baseMsg double[]
+	 */
+	protected double updateNode(int node, double[] baseMsg) {
+		int K = graph.getNumType();
+		if (edgeIndex == null) //built on first use
+			link();
+		if (active == null) { //scratch buffers, never shared with copies
+			active = new int[K];
+			where = new int[K];
+			Arrays.fill(where, -1);
+			prior = new double[K];
+			bias = new double[K];
+			edgeCount = new int[maxCount+1];
+			counts = new int[maxCount+1];
+			values = new double[K];
+			field = new double[K];
+			vanish = new int[K];
+			rowFold = new double[K];
+			rowStamp = new int[K];
+			rowCount = new int[K];
+			mark = new int[K];
+			Arrays.fill(mark, -1);
+			mixIndex = new int[K];
+			mixValue = new double[K];
+			fresh = new Smsg();
+			cavity = new double[K];
+		}
+		pass++;
+		int totalD = 1;
+		if (degreeCorrect) //for the DC model
+			totalD = graph.vList[node].outDegree; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
+		
+		//prior of the node, dense but shared by all of its messages
+		double[] self = nonEdge(node);
+		double scale = 1; //degree product of the self term (DC model)
+		if (degreeCorrect)
+			scale = totalD * totalD;
+		//column terms of the residual mass of its incoming messages, exact for every block, so that the folded blocks only share the rest of the edge terms
+		int sources = graph.vList[node].sources.size();
+		int distinct = 0;
+		for (int l=0; l<sources; l++) {
+			int index = edgeIndex[node][l];
+			if (index < 0) //avoid self message, and case 2: no edges
+				continue;
+			int edgeC = graph.vList[graph.vList[node].sources.get(l)].targetCount.get(index);
+			if (edgeCount[edgeC]++ == 0)
+				counts[distinct++] = edgeC;
+		}
+		Arrays.fill(bias, 0);
+		for (int c=0; c<distinct; c++) {
+			for (int k=0; k<K; k++)
+				bias[k] += edgeCount[counts[c]] * columnLog[counts[c]][k];
+			edgeCount[counts[c]] = 0;
+		}
+		int top = 0;
+		for (int k=0; k<K; k++) {
+			if (degreeCorrect) //for the DC model
+				prior[k] = -baseMsg[k] * totalD;
+			else
+				prior[k] = baseMsg[k];
+			prior[k] -= scale * self[k]; //get rid of duplicate self term
+			if (gSizeCorrect) //group size correction
+				prior[k] += java.lang.Math.log(gNode[k]);
+			prior[k] += bias[k];
+			if (prior[k] > prior[top])
+				top = k;
+		}
+		
+		//active blocks: top blocks of the prior, and the kept blocks of the incoming messages with their strong links
+		activeSize = 0;
+		double z = 0;
+		for (int k=0; k<K; k++)
+			z += java.lang.Math.exp(prior[k] - prior[top]);
+		for (int k=0; k<K; k++)
+			if (k == top || java.lang.Math.exp(prior[k] - prior[top]) / z >= threshold)
+				activate(k);
+		for (int l=0; l<sources; l++) {
+			int index = edgeIndex[node][l];
+			if (index < 0) //avoid self message, and case 2: no edges
+				continue;
+			Smsg msg = sparse[graph.vList[node].sources.get(l)][index];
+			for (int s=0; s<msg.size; s++) {
+				activate(msg.index[s]);
+				for (int k : strong[msg.index[s]])
+					activate(k);
+			}
+		}
+		int a = activeSize;
+		int folded = K - a; //number of folded blocks
+		double foldMax = Double.NEGATIVE_INFINITY; //largest prior over the folded blocks
+		int foldTop = -1;
+		double foldZ = 0; //sum of the folded priors relative to their maximum
+		double activeCol = 0; //column sums of typeP over the active blocks
+		for (int k=0; k<K; k++)
+			if (where[k] < 0 && prior[k] > foldMax) {
+				foldMax = prior[k];
+				foldTop = k;
+			}
+			else if (where[k] >= 0)
+				activeCol += colTotal[k];
+		if (folded > 0 && foldMax > Double.NEGATIVE_INFINITY)
+			for (int k=0; k<K; k++)
+				if (where[k] < 0)
+					foldZ += java.lang.Math.exp(prior[k] - foldMax);
+		double meanFold = 0; //mean of typeP over all rows and the folded columns
+		if (folded > 0)
+			meanFold = java.lang.Math.max(totalP - activeCol, 0) / K / folded;
+		
+		//Ready to taking account for the directed messages on observed edges, on the active blocks plus the folded block
+		for (int idx=0; idx<a; idx++) {
+			field[idx] = prior[active[idx]] - bias[active[idx]]; //the exact edge terms follow
+			vanish[idx] = 0;
+		}
+		double fieldF = 0; //shared log-field of the folded blocks (on top of their priors)
+		int vanishF = 0;
+		int stride = a + 1;
+		if (cavity.length < sources * stride) //grows to the largest number of sources
+			cavity = new double[sources * stride];
+		for (int l=0; l<sources; l++) { //neighboring message following the edge
+			int index = edgeIndex[node][l]; //index in the msgTargets[source]
+			if (index < 0) //avoid self message, and case 2: no edges, 
+				continue; //It is already handled by the base message by construction.
+			int source = graph.vList[node].sources.get(l); //source node from the edge
+			int totalD2 = 1; //default vanilla model
+			if (degreeCorrect) //for the DC model
+				totalD2 = graph.vList[source].outDegree;
+			int edgeC = graph.vList[source].targetCount.get(index); //case 1: double edges between node and source
+			double[] row = nonEdge(source);
+			double sc = 1; //degree product of the non-edge term (DC model)
+			if (degreeCorrect)
+				sc = totalD2 * totalD;
+			double inActive = 0;
+			double colActive = 0; //column sums of the edge terms over the active blocks (vanilla model)
+			for (int idx=0; idx<a; idx++) {
+				int k1 = active[idx];
+				double c = java.lang.Math.log(edgeSum(source, index, k1, totalD2 * totalD, edgeC, 0)) - sc * row[k1];
+				cavity[l * stride + idx] = c;
+				inActive += row[k1];
+				if (!degreeCorrect)
+					colActive += residualTable[edgeC][k1];
+				if (c == Double.NEGATIVE_INFINITY)
+					vanish[idx]++;
+				else
+					field[idx] += c;
+			}
+			if (folded > 0) {
+				Smsg msg = sparse[source][index];
+				double temp = 0;
+				if (degreeCorrect) //mean-field over the folded columns, as the residual mass of edgeSum
+					temp = msg.residual * K * edgeTerm(meanFold * totalD2 * totalD, edgeC);
+				else //exact column sums of the edge terms, averaged over the folded blocks
+					temp = msg.residual * java.lang.Math.max(tableTotal[edgeC] - colActive, 0) / folded;
+				for (int s=0; s<msg.size; s++)
+					temp += (msg.value[s] - msg.residual) * foldRow(msg.index[s], folded, totalD2 * totalD, edgeC);
+				double column = java.lang.Math.pow(meanFold, edgeC); //mean column term over the folded blocks, already in the prior
+				if (!degreeCorrect)
+					column = java.lang.Math.max(tableTotal[edgeC] - colActive, 0) / folded;
+				double c = java.lang.Math.log(temp) - sc * (nonEdgeSum[source] - inActive) / folded;
+				cavity[l * stride + a] = c; //the target message takes off all of it, up to the ratio of its column terms
+				if (c == Double.NEGATIVE_INFINITY)
+					vanishF++;
+				else if (column > 0)
+					fieldF += c - java.lang.Math.log(column);
+				else
+					fieldF += c;
+			}
+		}
+		
+		double delta = 0; //measure of change
+		for (int j=0; j<slots(node); j++) { //updating message from node to j
+			int target = -1; //index of the message target
+			if (j <graph.vList[node].targets.size())
+				target = graph.vList[node].targets.get(j);
+			else //the message target is on a reversed edge
+				target = graph.vList[node].sources.get(j-graph.vList[node].targets.size());
+			double[] row = nonEdge(target); //get rid of duplicate target term
+			double sc = 1; //degree product of the non-edge term (DC model)
+			if (degreeCorrect)
+				sc = graph.vList[target].outDegree * totalD;
+			int l = slotSource[node][j]; //avoid the target message
+			boolean own = l >= 0 && edgeIndex[node][l] >= 0;
+			double inActive = 0;
+			for (int idx=0; idx<a; idx++) {
+				int k1 = active[idx];
+				int zeros = vanish[idx];
+				values[idx] = field[idx] - sc * row[k1];
+				inActive += row[k1];
+				if (own) {
+					double c = cavity[l * stride + idx];
+					if (c == Double.NEGATIVE_INFINITY)
+						zeros--;
+					else
+						values[idx] -= c;
+				}
+				if (zeros > 0)
+					values[idx] = Double.NEGATIVE_INFINITY;
+			}
+			double shift = Double.NEGATIVE_INFINITY; //log-field of the folded blocks on top of their priors
+			if (folded > 0) {
+				int zeros = vanishF;
+				shift = fieldF - sc * (nonEdgeSum[target] - inActive) / folded;
+				if (own) {
+					double c = cavity[l * stride + a];
+					if (c == Double.NEGATIVE_INFINITY)
+						zeros--;
+					else
+						shift -= c;
+				}
+				if (zeros > 0)
+					shift = Double.NEGATIVE_INFINITY;
+			}
+			compose(a, shift, foldMax, foldTop, foldZ);
+			delta += damp(sparse[node][j], fresh);
+		}
+		
+		//non-edge message, dense
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k=0; k<K; k++) {
+			int idx = where[k];
+			double v;
+			if (idx >= 0)
+				v = vanish[idx] > 0 ? Double.NEGATIVE_INFINITY : field[idx];
+			else
+				v = vanishF > 0 ? Double.NEGATIVE_INFINITY : prior[k] + fieldF;
+			buffer[k] = v;
+			if (v > max)
+				max = v;
+		}
+		double sum = 0;
+		for (int k=0; k<K; k++) {
+			buffer[k] = max == Double.NEGATIVE_INFINITY ? 1 : java.lang.Math.exp(buffer[k] - max);
+			sum += buffer[k]; //for message normalization
+		}
+		for (int k=0; k<K; k++){
+			buffer[k] = buffer[k] / sum;
+			delta += java.lang.Math.abs(message[node].others[k]-buffer[k]);
+			message[node].others[k] = 0.5*message[node].others[k] + 0.5*buffer[k]; //damping propagation
+		}
+		nonEdgeStamp[node] = version - 1; //the marginal changed
+		
+		for (int idx=0; idx<a; idx++)
+			where[active[idx]] = -1;
+		return delta;
+	}
+	/**
+	 * This method returns the mean edge term of a row over the folded blocks of the node being updated, cached for the update
+	 * Exact from the row sums of the edge terms for the vanilla model, from the mean of the row of typeP for the DC model
+	 * @return the mean edge term double
+	 * @param k int
+	 * @param folded int
+	 * @param scale double
+	 * @param edgeC int
+	 */
+	private double foldRow(int k, int folded, double scale, int edgeC) {
+		if (rowStamp[k] != pass || (!degreeCorrect && rowCount[k] != edgeC)) {
+			double inActive = 0;
+			for (int idx=0; idx<activeSize; idx++) {
+				if (degreeCorrect) //for the DC model
+					inActive += typeP[k][active[idx]];
+				else
+					inActive += edgeTerm(typeP[k][active[idx]], edgeC);
+			}
+			if (degreeCorrect) //for the DC model
+				rowFold[k] = java.lang.Math.max(rowTotal[k] - inActive, 0) / folded;
+			else
+				rowFold[k] = java.lang.Math.max(rowTable[edgeC][k] - inActive, 0) / folded;
+			rowStamp[k] = pass;
+			rowCount[k] = edgeC;
+		}
+		if (degreeCorrect) //for the DC model
+			return edgeTerm(rowFold[k] * scale, edgeC);
+		return rowFold[k];
+	}
+	/**
+	 * This method normalizes a new message given by its log values on the active blocks and its shift on the folded priors,
+	 * and keeps the blocks above the mass threshold (at least the top one) in the fresh sparse message
+	 * The folded blocks are only scanned when one of them can pass the threshold
+	 * @param a int
+	 * @param shift double
+	 * @param foldMax double
+	 * @param foldTop int
+	 * @param foldZ double
+	 */
+	private void compose(int a, double shift, double foldMax, int foldTop, double foldZ) {
+		int K = graph.getNumType();
+		int best = -1;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int idx=0; idx<a; idx++)
+			if (best < 0 || values[idx] > max) {
+				max = values[idx];
+				best = idx;
+			}
+		double foldBest = foldMax + shift; //log value of the largest folded block
+		boolean foldIsTop = foldTop >= 0 && foldBest > max;
+		if (foldIsTop)
+			max = foldBest;
+		if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) { //boundary cases
+			for (int k=0; k<K; k++)
+				buffer[k] = 1.0/K;
+			sparsify(buffer, fresh);
+			return;
+		}
+		double sum = 0;
+		for (int idx=0; idx<a; idx++)
+			sum += java.lang.Math.exp(values[idx] - max);
+		if (foldTop >= 0)
+			sum += foldZ * java.lang.Math.exp(foldBest - max);
+		if (fresh.index.length < K) {
+			fresh.index = new int[K];
+			fresh.value = new double[K];
+		}
+		fresh.size = 0;
+		double kept = 0;
+		for (int idx=0; idx<a; idx++) {
+			double m = java.lang.Math.exp(values[idx] - max) / sum;
+			if ((idx == best && !foldIsTop) || m >= threshold) {
+				fresh.index[fresh.size] = active[idx];
+				fresh.value[fresh.size++] = m;
+				kept += m;
+			}
+		}
+		if (foldTop >= 0 && (foldIsTop || java.lang.Math.exp(foldBest - max) / sum >= threshold))
+			for (int k=0; k<K; k++) {
+				if (where[k] >= 0)
+					continue;
+				double m = java.lang.Math.exp(prior[k] + shift - max) / sum;
+				if ((k == foldTop && foldIsTop) || m >= threshold) {
+					fresh.index[fresh.size] = k;
+					fresh.value[fresh.size++] = m;
+					kept += m;
+				}
+			}
+		if (fresh.size < K)
+			fresh.residual = java.lang.Math.max(1 - kept, 0) / (K - fresh.size); //uniform over the folded blocks
+		else
+			fresh.residual = 0;
+	}
+	/**
+	 * This method damps a new sparse message into an old one on the union of their kept blocks,
+	 * and keeps the blocks of the result above the mass threshold (at least the top one)
+	 * @return measure of change in L1 norm double
+	 * @param old Smsg
+	 * @param msg Smsg
+	 */
+	private double damp(Smsg old, Smsg msg) {
+		int K = graph.getNumType();
+		for (int s=0; s<old.size; s++)
+			mark[old.index[s]] = s;
+		double delta = 0;
+		int u = 0; //size of the union of the kept blocks
+		for (int s=0; s<msg.size; s++) {
+			int k = msg.index[s];
+			double before = old.residual;
+			if (mark[k] >= 0) { //kept by both
+				before = old.value[mark[k]];
+				mark[k] = -2;
+			}
+			delta += java.lang.Math.abs(before - msg.value[s]);
+			mixIndex[u] = k;
+			mixValue[u++] = 0.5*before + 0.5*msg.value[s]; //damping propagation
+		}
+		for (int s=0; s<old.size; s++) {
+			int k = old.index[s];
+			if (mark[k] >= 0) { //kept by the old message only
+				delta += java.lang.Math.abs(old.value[s] - msg.residual);
+				mixIndex[u] = k;
+				mixValue[u++] = 0.5*old.value[s] + 0.5*msg.residual; //damping propagation
+			}
+			mark[k] = -1;
+		}
+		double residual = 0.5*old.residual + 0.5*msg.residual;
+		delta += (K - u) * java.lang.Math.abs(old.residual - msg.residual);
+		
+		int best = 0;
+		for (int s=1; s<u; s++)
+			if (mixValue[s] > mixValue[best])
+				best = s;
+		int kept = 0;
+		for (int s=0; s<u; s++)
+			if (s == best || mixValue[s] >= threshold)
+				kept++;
+		if (old.index.length < kept) { //grow the storage only when needed
+			old.index = new int[kept];
+			old.value = new double[kept];
+		}
+		double folded = (K - u) * residual;
+		old.size = 0;
+		for (int s=0; s<u; s++) {
+			if (s == best || mixValue[s] >= threshold) {
+				old.index[old.size] = mixIndex[s];
+				old.value[old.size++] = mixValue[s];
+			}
+			else
+				folded += mixValue[s];
+		}
+		if (kept < K)
+			old.residual = folded / (K - kept); //uniform over the folded blocks
+		else
+			old.residual = 0;
+		return delta;
+	}
+
+	/**
+	  * This method accumulates the expected block edge counts and pair exposures of one node for the M-step
+	  * Each edge works on the kept blocks of both messages plus one folded block on each side,
+	  * with the folded edge terms from the row and column sums of the edge terms (vanilla model) or of typeP (DC model),
+	  * and the folded pair marginals are spread over their blocks in proportion to the same terms by flush
+	  * A polymorphic extension of the method accumulate in the parent class
+	  * @return the contribution of the node to the likelihood double
+	  * @param i int
+	  * @param marginals double[]
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	double accumulate(int i, double[] marginals, double[][] temp, double[][] sum) {
+		int K = graph.getNumType();
+		if (tempRow == null) { //scratch buffers, never shared with copies
+			massI = new double[K+1];
+			massJ = new double[K+1];
+			foldI = new double[K+1];
+			foldJ = new double[K+1];
+			pairs = new double[K+1][K+1]; //also holds the edge terms of the reduced states
+			int buckets = degreeCorrect ? 1 : maxCount+1; //the DC model spreads by typeP alone
+			tempRow = new double[buckets][K];
+			tempCol = new double[buckets][K];
+			sumRow = new double[buckets][K];
+			sumCol = new double[buckets][K];
+			tempAll = new double[buckets];
+			sumAll = new double[buckets];
+		}
+		double likeTemp = 0;
+		int iid = findMax(message[i].others); //for hard block assignment
+		int totalDi = 1; //default vanilla model
+		if (degreeCorrect) //for DC model
+			totalDi = graph.vList[i].outDegree;
+		for (int j=0; j<graph.vList[i].targets.size(); j++) { //case 1: i->j in E
+			int jIndex = graph.vList[i].targets.get(j); //pick the target
+			int totalDj = 1; //default vanilla model
+			if (degreeCorrect) //for DC model
+				totalDj = graph.vList[jIndex].outDegree;
+			int source = graph.vList[jIndex].sources.indexOf(i)+graph.vList[jIndex].targets.size(); //index in the message list
+			int edgeC = graph.vList[i].targetCount.get(j); //get edge count
+			double scale = totalDi * totalDj;
+			if (jIndex>i) { //for hard block assignment
+				int jid = findMax(message[jIndex].others);
+				likelihoodHard += logPoisson(typeP[iid][jid] * scale, edgeC) - typeP[iid][jid] * scale;
+			}
+			likeTemp += pair(sparse[i][j], sparse[jIndex][source], scale, edgeC, jIndex>i, temp, sum);
+		}
+		return likeTemp + accumulateNonEdge(i, marginals, pairs, temp, sum);
+	}
+	/**
+	  * This method accumulates the pair-wise marginal of one edge over the kept blocks of its two messages plus their folded blocks
+	  * @return the pairwise part of the likelihood, zero unless counted double
+	  * @param msgI Smsg
+	  * @param msgJ Smsg
+	  * @param scale double
+	  * @param edgeC int
+	  * @param counted boolean
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	private double pair(Smsg msgI, Smsg msgJ, double scale, int edgeC, boolean counted, double[][] temp, double[][] sum) {
+		int K = graph.getNumType();
+		int nI = K - msgI.size; //number of folded blocks on each side
+		int nJ = K - msgJ.size;
+		int endI = msgI.size; //reduced states, plus the folded block if any
+		if (nI > 0)
+			endI++;
+		int endJ = msgJ.size;
+		if (nJ > 0)
+			endJ++;
+		//edge terms between the kept blocks, summed as edge terms (vanilla model) or as typeP (DC model) for the folded blocks
+		double both = 0;
+		for (int b=0; b<msgJ.size; b++)
+			foldJ[b] = 0;
+		for (int a=0; a<msgI.size; a++) {
+			foldI[a] = 0;
+			for (int b=0; b<msgJ.size; b++) {
+				double p = typeP[msgI.index[a]][msgJ.index[b]];
+				pairs[a][b] = edgeTerm(p * scale, edgeC);
+				double x = degreeCorrect ? p : pairs[a][b];
+				foldI[a] += x;
+				foldJ[b] += x;
+				both += x;
+			}
+		}
+		//edge terms between the kept blocks of one side and the folded blocks of the other, and between the folded blocks
+		double[] rows = degreeCorrect ? rowTotal : rowTable[edgeC];
+		double[] cols = degreeCorrect ? colTotal : residualTable[edgeC];
+		double rest = (degreeCorrect ? totalP : tableTotal[edgeC]) + both;
+		for (int a=0; a<msgI.size; a++) {
+			rest -= rows[msgI.index[a]];
+			foldI[a] = java.lang.Math.max(rows[msgI.index[a]] - foldI[a], 0); //now the sums over the folded blocks
+			if (nJ > 0)
+				pairs[a][msgJ.size] = foldTerm(foldI[a] / nJ, scale, edgeC);
+		}
+		for (int b=0; b<msgJ.size; b++) {
+			rest -= cols[msgJ.index[b]];
+			foldJ[b] = java.lang.Math.max(cols[msgJ.index[b]] - foldJ[b], 0);
+			if (nI > 0)
+				pairs[msgI.size][b] = foldTerm(foldJ[b] / nI, scale, edgeC);
+		}
+		rest = java.lang.Math.max(rest, 0);
+		if (nI > 0 && nJ > 0)
+			pairs[msgI.size][msgJ.size] = foldTerm(rest / nI / nJ, scale, edgeC);
+		for (int a=0; a<msgI.size; a++)
+			massI[a] = msgI.value[a];
+		massI[msgI.size] = msgI.residual * nI;
+		for (int b=0; b<msgJ.size; b++)
+			massJ[b] = msgJ.value[b];
+		massJ[msgJ.size] = msgJ.residual * nJ;
+		
+		double qSum = 0; //q normalization
+		for (int a=0; a<endI; a++)
+			for (int b=0; b<endJ; b++)
+				qSum += massI[a] * massJ[b] * pairs[a][b];
+		double likeTemp = 0;
+		for (int a=0; a<endI; a++)
+			for (int b=0; b<endJ; b++) {
+				double q = massI[a] * massJ[b] * pairs[a][b] / qSum;
+				if (q == 0)
+					continue;
+				double blocks = 1; //number of block pairs sharing q
+				if (a == msgI.size)
+					blocks *= nI;
+				if (b == msgJ.size)
+					blocks *= nJ;
+				if (counted)
+					likeTemp += q * java.lang.Math.log(pairs[a][b]) //pairwise energy part
+						- q * java.lang.Math.log(q / blocks); //pairwise entropy part, as if uniform over the folded pairs
+				if (a < msgI.size && b < msgJ.size) {
+					temp[msgI.index[a]][msgJ.index[b]] += q * edgeC;
+					sum[msgI.index[a]][msgJ.index[b]] += q * scale;
+					continue;
+				}
+				//folded states are spread over their block pairs in proportion to the edge terms (vanilla model) or to typeP (DC model)
+				int bucket = degreeCorrect ? 0 : edgeC;
+				double norm = rest;
+				if (a < msgI.size)
+					norm = foldI[a];
+				else if (b < msgJ.size)
+					norm = foldJ[b];
+				double e = q / norm * edgeC; //per unit weight
+				double x = q / norm * scale;
+				if (a < msgI.size) { //the folded columns of a kept row
+					tempRow[bucket][msgI.index[a]] += e;
+					sumRow[bucket][msgI.index[a]] += x;
+					for (int t=0; t<msgJ.size; t++) {
+						double w = weight(msgI.index[a], msgJ.index[t], a, t);
+						temp[msgI.index[a]][msgJ.index[t]] -= e * w;
+						sum[msgI.index[a]][msgJ.index[t]] -= x * w;
+					}
+				}
+				else if (b < msgJ.size) { //the folded rows of a kept column
+					tempCol[bucket][msgJ.index[b]] += e;
+					sumCol[bucket][msgJ.index[b]] += x;
+					for (int t=0; t<msgI.size; t++) {
+						double w = weight(msgI.index[t], msgJ.index[b], t, b);
+						temp[msgI.index[t]][msgJ.index[b]] -= e * w;
+						sum[msgI.index[t]][msgJ.index[b]] -= x * w;
+					}
+				}
+				else { //the folded pairs, all pairs minus the kept rows and columns
+					tempAll[bucket] += e;
+					sumAll[bucket] += x;
+					for (int t=0; t<msgI.size; t++) {
+						tempRow[bucket][msgI.index[t]] -= e;
+						sumRow[bucket][msgI.index[t]] -= x;
+					}
+					for (int t=0; t<msgJ.size; t++) {
+						tempCol[bucket][msgJ.index[t]] -= e;
+						sumCol[bucket][msgJ.index[t]] -= x;
+					}
+					for (int t1=0; t1<msgI.size; t1++)
+						for (int t2=0; t2<msgJ.size; t2++) {
+							double w = weight(msgI.index[t1], msgJ.index[t2], t1, t2);
+							temp[msgI.index[t1]][msgJ.index[t2]] += e * w;
+							sum[msgI.index[t1]][msgJ.index[t2]] += x * w;
+						}
+				}
+			}
+		return likeTemp;
+	}
+	/**
+	 * This method returns the weight a folded pair marginal puts on a pair of kept blocks, as in flush
+	 * @return the weight double
+	 * @param k1 int
+	 * @param k2 int
+	 * @param a int
+	 * @param b int
+	 */
+	private double weight(int k1, int k2, int a, int b) {
+		if (degreeCorrect) //for the DC model
+			return typeP[k1][k2];
+		return pairs[a][b]; //the edge term, as scale is one for the vanilla model
+	}
+	/**
+	 * This method returns the edge term of a folded reduced state from its mean, a mean edge term (vanilla model) or a mean of typeP (DC model)
+	 * @return the edge term double
+	 * @param mean double
+	 * @param scale double
+	 * @param edgeC int
+	 */
+	private double foldTerm(double mean, double scale, int edgeC) {
+		if (degreeCorrect) //mean-field for the DC model
+			return edgeTerm(mean * scale, edgeC);
+		return mean;
+	}
+	/**
+	  * This method spreads the folded pair marginals deferred by accumulate over their rows, columns, or all block pairs
+	  * A polymorphic extension of the method flush in the parent class
+	  * @param temp double[][]
+	  * @param sum double[][]
+	 */
+	void flush(double[][] temp, double[][] sum) {
+		if (tempRow == null)
+			return;
+		for (int c=0; c<tempAll.length; c++)
+			for (int k1=0; k1<graph.getNumType(); k1++)
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					double w = typeP[k1][k2]; //default DC model
+					if (!degreeCorrect) //for the vanilla model, the edge term of this count
+						w = edgeTerm(typeP[k1][k2], c);
+					temp[k1][k2] += (tempRow[c][k1] + tempCol[c][k2] + tempAll[c]) * w;
+					sum[k1][k2] += (sumRow[c][k1] + sumCol[c][k2] + sumAll[c]) * w;
+				}
+		for (int c=0; c<tempAll.length; c++) {
+			Arrays.fill(tempRow[c], 0);
+			Arrays.fill(tempCol[c], 0);
+			Arrays.fill(sumRow[c], 0);
+			Arrays.fill(sumCol[c], 0);
+		}
+		Arrays.fill(tempAll, 0);
+		Arrays.fill(sumAll, 0);
+	}
+
+
+}
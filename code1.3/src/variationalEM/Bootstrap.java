@@ -0,0 +1,244 @@
+package variationalEM;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import graphTools.Graph;
+
+/**
+ * This class implements the parametric bootstrap for the likelihood ratio test between
+ * the vanilla block model and degree corrected (DC) block model as a two-stage pipeline.
+ * A generator thread pre-produces random graphs and their block statistics into a bounded queue,
+ * while a pool of fitting threads consumes them, each fit with its own EMstep,
+ * so generation overlaps fitting, and the likelihood ratios are printed as soon as both fits of a sample finish.
+ * The EM implementation can be changed by overriding the engine method.
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+public class Bootstrap {
+	//--- Inner class for generated samples ---------------------------------------
+	static class Sample { //one random graph with its block statistics
+		int index; //index of the random graph
+		Graph graph; //the random graph
+		int[] typeNodeNum; //number of nodes in each block
+		int[][] typeEdgeNum; //number of edges between blocks
+		double[][] typeDegreeNum; //number of degree-corrected edges between blocks
+
+		Sample(int n, Graph g) { //inner constructor, computing the statistics on the generator thread
+			index = n;
+			graph = g;
+			typeNodeNum = g.getNumNodesType();
+			typeEdgeNum = g.getNumEdgsType();
+			typeDegreeNum = g.getNumDegreeType();
+		}
+		Sample(int n) { //inner constructor for a sample that failed to generate
+			index = n;
+		}
+	}
+	//--- Inner class for fitting jobs --------------------------------------------
+	static class Fit { //one model fitted to one random graph
+		Sample sample; //the random graph, null for the end of the queue
+		boolean DC; //flag for the degree corrected model
+		MainFunction fitted; //the fitted parameters and likelihood, null before fitting or after a failure
+
+		Fit(Sample s, boolean degreeC) { //inner constructor
+			sample = s;
+			DC = degreeC;
+		}
+	}
+	// --- Instance Variables ----------------------------------------------------
+	public Graph graph; //input graph carrying the generating block parameters
+	public int threads; //number of fitting threads
+	public int depth; //capacity of the queue between generation and fitting (in fits)
+	public boolean racing; //successive halving of the restarts in every fit
+	public boolean spectral; //spectral initialization instead of the restarts in every fit
+	public double[] ratios; //log-likelihood ratios of the samples
+
+	// --- Constructors ----------------------------------------------------------
+	public Bootstrap() {} //the empty constructor
+
+	/**
+	 * This constructor initializes a bootstrap driver for a graph and a number of fitting threads
+	 * @param g Graph
+	 * @param t int
+	 */
+	public Bootstrap(Graph g, int t) {
+		graph = g;
+		threads = t;
+		depth = 2*t; //enough pre-generated fits to keep every fitting thread busy
+		racing = false;
+		spectral = false;
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method instantiates the EM algorithm used for every fit
+	 * Override it to employ a different EM implementation
+	 * @return the EMstep to be fitted
+	 * @param g Graph
+	 * @param DC boolean
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 */
+	protected EMstep engine(Graph g, boolean DC, double[][] typeP, double[] gNode) {
+		return new BPfastMU(g, DC, true, typeP, gNode);
+	}
+
+	/**
+	 * This method fits one block model to one random graph, starting from its precomputed block statistics
+	 * @param job Fit
+	 */
+	void fit(Fit job) {
+		Sample s = job.sample;
+		MainFunction fitted = new MainFunction(s.graph); //own parameters and trackers for this job
+		fitted.groundTruth(s.graph.getNumNodes(), job.DC, s.typeNodeNum, s.typeEdgeNum, s.typeDegreeNum);
+		fitted.racing = racing;
+		fitted.spectral = spectral;
+		fitted.fit(s.graph, engine(s.graph, job.DC, fitted.typeP, fitted.gNode));
+		job.fitted = fitted;
+	}
+
+	/**
+	 * This method runs the generation stage and the fitting stage concurrently,
+	 * printing one line per sample in the order the samples finish
+	 * @return the log-likelihood ratios indexed by sample double[]
+	 * @param print PrintStream
+	 * @param samples int
+	 */
+	public double[] run(PrintStream print, final int samples) {
+		ratios = new double[samples];
+		final BlockingQueue<Fit> todo = new ArrayBlockingQueue<Fit>(java.lang.Math.max(depth, 2)); //bounded, generation waits for fitting
+		final BlockingQueue<Fit> done = new LinkedBlockingQueue<Fit>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+
+		pool.submit(new Runnable() { //generation stage
+			public void run() {
+				int n = 0;
+				try {
+					for (; n<samples; n++) {
+						Sample s;
+						try {
+							s = new Sample(n, graph.RandomizeEdge(false, false)); //generate a new random graph from the vanilla block model
+						}
+						catch (Throwable ex) { //reported as missing fits
+							ex.printStackTrace();
+							missing(n, done);
+							continue;
+						}
+						todo.put(new Fit(s, false));
+						todo.put(new Fit(s, true));
+					}
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					for (; n<samples; n++) //samples never queued, so the collection does not wait for them
+						missing(n, done);
+					try {
+						for (int t=0; t<threads; t++)
+							todo.put(new Fit(null, false)); //one end marker for each fitting thread
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		});
+		for (int t=0; t<threads; t++) {
+			pool.submit(new Runnable() { //fitting stage
+				public void run() {
+					try {
+						for (Fit job = todo.take(); job.sample != null; job = todo.take()) {
+							try {
+								fit(job);
+							}
+							catch (Throwable ex) { //reported as a missing fit, the job is still posted
+								ex.printStackTrace();
+							}
+							done.put(job);
+						}
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		HashMap<Integer, Fit> pending = new HashMap<Integer, Fit>(); //samples with only one finished fit
+		try {
+			for (int i=0; i<2*samples; i++) {
+				Fit job = done.take();
+				Fit other = pending.remove(job.sample.index);
+				if (other == null)
+					pending.put(job.sample.index, job);
+				else if (job.fitted == null || other.fitted == null) { //reported in the output with the fitted samples
+					print.println("graph " + job.sample.index + ":\tfailed to fit");
+					print.flush();
+				}
+				else if (job.DC)
+					report(print, other, job);
+				else
+					report(print, job, other);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			ex.printStackTrace();
+		}
+		finally {
+			pool.shutdownNow(); //releases the stages if the collection was interrupted
+		}
+		return ratios;
+	}
+
+	/**
+	 * This method posts both fits of a sample as failed, for a sample that was never queued for fitting
+	 * @param n int
+	 * @param done BlockingQueue<Fit>
+	 */
+	void missing(int n, BlockingQueue<Fit> done) {
+		Sample s = new Sample(n);
+		done.add(new Fit(s, false)); //unbounded, never blocks
+		done.add(new Fit(s, true));
+	}
+
+	/**
+	 * This method prints the fitted parameters of both models and the likelihood ratio for one sample
+	 * @param print PrintStream
+	 * @param vanilla Fit
+	 * @param dc Fit
+	 */
+	void report(PrintStream print, Fit vanilla, Fit dc) {
+		Graph g = vanilla.sample.graph;
+		ratios[vanilla.sample.index] = dc.fitted.likelihood - vanilla.fitted.likelihood;
+		print.print("graph " + vanilla.sample.index + ":\t"); //indexing the random graphs for tests
+		print.print(g.getNumNodes() + "\t");
+		print.print(g.getNumEdgs() + "\t");
+		Fit[] both = {vanilla, dc};
+		for (Fit f : both) {
+			if (f.DC)
+				print.print("degree corrected" + "\t");
+			else
+				print.print("vanilla" + "\t");
+			for (int i=0; i<g.getNumType(); i++) { //print the final parameters
+				print.print("["+f.fitted.innerMAP.gNode[i]+"]"+"\t");
+				for (int j=0; j<g.getNumType(); j++) {
+					print.print(f.fitted.innerMAP.typeP[i][j]+"\t");
+					print.print(f.fitted.outerMAP.typeP[i][j]+"\t");
+				}
+			}
+			print.print(f.fitted.likelihood+"\t");
+		}
+		print.print("ratio:" + ratios[vanilla.sample.index]); //print the returned log-likelihood difference
+		print.println();
+		print.flush();
+	}
+}
@@ -22,12 +22,25 @@ public class Classification {
 	public int[][] aGroup; //adjacent matrix of group connections
 	public int[] nGroup; //array for counting vertices in each group
 	private int[] dGroup; //array for counting totoal degrees in each group
-	static Graph graph; //member graph for edge query
+	Graph graph; //member graph for edge query, per instance so that classifications of different graphs run concurrently
 	
 	public double[][] groupMatrix; //for p_ij update
-	public double[][][] avgGroupMatrix;
+	public double[][][] avgGroupMatrix; //the expected group matrix of the last distribution call, in avgGroupMatrix[0]
+	private int[] inHist; //edge counts from the sources of a vertex in each group
+	private int[] outHist; //edge counts to the targets of a vertex in each group
+	private int[] touched; //block pairs touched by a move, flat at i*k+j
+	private double[][] logP; //logarithms of the block parameters
+	private double[][] logQ; //logarithms of the complementary block parameters
+	private double[] change; //log-likelihood change (beta = 1) of each candidate group in the last distribution call
+	private double[] dist; //the distribution returned by the last distribution call, overwritten by the next one
+	public double logLike; //log-likelihood (beta = 1) of the current classification, set by likelihood and kept up to date by accept
+	private int[][] deltaA; //changes in aGroup by the deferred moves of a worker, see defer
+	private int[] deltaN; //changes in nGroup by the deferred moves of a worker
+	private int[] deltaD; //changes in dGroup by the deferred moves of a worker
 	
 	// --- Constructors ---------------------------------------------------------- 
+	private Classification() {} //the empty constructor, for worker views
+	
 	/**
 	 * This constructor creates a Classification for a given Graph g and the number of groups n.
 	 * @param g Graph
@@ -41,6 +54,7 @@ public class Classification {
 		dGroup = new int[k];
 		graph = g;
 		groupMatrix = new double[k][k];
+		allocate();
 
 		int[] topList = new int[1];
 		topList[0] = -1;
@@ -52,13 +66,24 @@ public class Classification {
 	 * @param c Classification
 	 */
 	public Classification(Classification c) {
+		this(c, new Random());
+	}
+	
+	/**
+	 * This constructor copies a Classification into a new object, re-initialized with the given random generator.
+	 * @param c Classification
+	 * @param r Random
+	 */
+	public Classification(Classification c, Random r) {
 		int i, j;
 		k = c.k;
+		graph = c.graph;
 		groups = new int[c.groups.length];
 		aGroup = new int[k][k];
 		nGroup = new int[k];
 		dGroup = new int[k];
 		groupMatrix = new double[k][k];
+		allocate();
 		
 		for (i=0; i<c.groups.length; i++)
 			groups[i] = c.groups[i];
@@ -70,19 +95,82 @@ public class Classification {
 		}
 		int[] topList = new int[1];
 		topList[0] = -1;
-		reInitialize(topList);
+		reInitialize(topList, r);
 	}
 	
 	// --- Instance Methods ------------------------------------------------------	
+	/**
+	 * This method allocates the buffers reused by the incremental distribution method.
+	 * @param null
+	 */
+	void allocate() {
+		avgGroupMatrix = new double[1][k][k];
+		inHist = new int[k];
+		outHist = new int[k];
+		touched = new int[4*k];
+		logP = new double[k][k];
+		logQ = new double[k][k];
+		change = new double[k];
+		dist = new double[k];
+	}
+	
+	/**
+	 * This method creates a worker view for the parallel (chromatic) sweeps, sharing the group mapping and the group statistics,
+	 * with its own buffers for the distribution method. The moves of a worker are deferred (see defer) until they are merged,
+	 * so the workers read the same frozen statistics while moving vertices without edges between them.
+	 * @return the worker view Classification
+	 * @param null
+	 */
+	public Classification worker() {
+		Classification w = new Classification();
+		w.k = k;
+		w.graph = graph;
+		w.groups = groups;
+		w.aGroup = aGroup;
+		w.nGroup = nGroup;
+		w.dGroup = dGroup;
+		w.groupMatrix = new double[k][k];
+		w.allocate();
+		w.deltaA = new int[k][k];
+		w.deltaN = new int[k];
+		w.deltaD = new int[k];
+		return w;
+	}
+	
+	/**
+	 * This method adds the deferred moves of a worker view to the group statistics, and clears them in the worker.
+	 * @param w Classification
+	 */
+	public void merge(Classification w) {
+		for (int i=0; i<k; i++) {
+			nGroup[i] += w.deltaN[i];
+			dGroup[i] += w.deltaD[i];
+			w.deltaN[i] = 0;
+			w.deltaD[i] = 0;
+			for (int j=0; j<k; j++) {
+				aGroup[i][j] += w.deltaA[i][j];
+				w.deltaA[i][j] = 0;
+			}
+		}
+	}
+	
 	/**
 	 * This method randomly initialize a Classification for a given Graph.
 	 * @param list int[]
 	 */
 	public void reInitialize(int[] list) {
+		reInitialize(list, new Random());
+	}
+	
+	/**
+	 * This method randomly initialize a Classification for a given Graph, with the given random generator.
+	 * @param list int[]
+	 * @param r Random
+	 */
+	public void reInitialize(int[] list, Random r) {
 		int i, j, m;
 		//Reinitialize random group assignment 
 		//System.out.println("1");
-		Random r = new Random();
 		for (i=0; i<graph.getNumNodes(); i++)
 			groups[i] = r.nextInt(k);
 		i = 0;
@@ -126,19 +214,12 @@ public class Classification {
 	}
 	
 	/**
-	 * This method returns the log-likelihood of the current Classification.
-	 * Calculation differs according to the properties of the graph (directed, selfloop)
-	 * @param beta double
-	 * @param gSize boolean
-	 * @param degreeC boolean
+	 * This method clamps the block parameters away from 0 and 1, and caches their logarithms for the pair method.
 	 * @param typeP double[][]
 	 * @param gNode double[]
-	 */	
-	public double likelihood(double beta, boolean gSize, boolean degreeC, double[][] typeP, double[] gNode) {
-		int a, b, i, j;
-		double temp = 0;
-		groupMatrix = new double[k][k];
-		
+	 */
+	void bound(double[][] typeP, double[] gNode) {
+		int i, j;
 		for (i=0; i<typeP.length; i++)
 			for (j=0; j<typeP[i].length; j++) {
 				if (typeP[i][j] < 1e-128)
@@ -146,120 +227,216 @@ public class Classification {
 				else if(typeP[i][j] > (1 - 1e-16))
 					typeP[i][j] = 1 - 1e-16;
 			}
-		temp = 0;		
 		for (i=0; i<gNode.length; i++){
 			if (gNode[i] < 1e-128)
 				gNode[i] = 1e-128;
 			else if(gNode[i] > (1 - 1e-16))
 				gNode[i] = 1 - 1e-16;
 		}
-		
-		temp = 0;
-		if (!degreeC) {
-			if (graph.isDirected() && graph.hasSelfloop())
-				for (i=0; i<k; i++)
-					for (j=0; j<k; j++) {
-						a = aGroup[i][j];
-						b = nGroup[i] * nGroup[j] - a;
-						temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-						if (a+b == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-			if (!graph.isDirected() && graph.hasSelfloop())
-				for (i=0; i<k; i++)
-					for (j=i; j<k; j++) { //avoid duplicate for undirected graphs
-						if (i != j) {
-							a = aGroup[i][j];
-							b = nGroup[i] * nGroup[j] - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) (a/a+b);
-						}
-						else { //special case for self group
-							a = aGroup[i][i] / 2; //avoid duplicate for undirected graphs
-							b = nGroup[i] * (nGroup[i]+1) / 2 - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) a/(a+b);
-						}
-					}
-			if(graph.isDirected() && !graph.hasSelfloop())
-				for (i=0; i<k; i++)
-					for (j=0; j<k; j++) {
-						if (i != j) {
-							a = aGroup[i][j];
-							b = nGroup[i] * nGroup[j] - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) a/(a+b);
-						}
-						else { //special case for self group
-							a = aGroup[i][i];
-							b = nGroup[i] * (nGroup[i]-1) - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) a/(a+b);
-						}
-					}
-			if(!graph.isDirected() && !graph.hasSelfloop())
-				for (i=0; i<k; i++)
-					for (j=i; j<k; j++) { //avoid duplicate for undirected graphs
-						if (i != j) {
-							a = aGroup[i][j];
-							b = nGroup[i] * nGroup[j] - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) a/(a+b);
-						}
-						else { //special case for self group
-							a = aGroup[i][i] / 2; //avoid duplicate for undirected graphs
-							b = nGroup[i] * (nGroup[i]-1) / 2 - a;
-							temp = temp + a*java.lang.Math.log(typeP[i][j]) + b*java.lang.Math.log(1-typeP[i][j]);
-							if (a+b == 0)
-								groupMatrix[i][j] = 0;
-							else
-								groupMatrix[i][j] = (double) a/(a+b);
-						}
-					}
-		}
-		/**
-		 *  the multi-graph DC likelihood only works for directed graphs with self loops. 
-		 */
-		else {
-			if (graph.isDirected()) {
-				for (i=0; i<k; i++)
-					for (j=0; j<k; j++) {
-						a = aGroup[i][j];
-						b = dGroup[i] * dGroup[j];
-						temp += a * java.lang.Math.log((double) a/b);
-						if (a+b == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/b;
-					}
+		for (i=0; i<k; i++)
+			for (j=0; j<k; j++) {
+				logP[i][j] = java.lang.Math.log(typeP[i][j]);
+				logQ[i][j] = java.lang.Math.log(1-typeP[i][j]);
 			}
+	}
+	
+	/**
+	 * This method returns the log-likelihood term of the block pair (i, j), ordered for directed graphs and i <= j for undirected graphs.
+	 * Calculation differs according to the properties of the graph (directed, selfloop), the logarithms are read from the last bound call
+	 * @return log-likelihood of the block pair double
+	 * @param i int
+	 * @param j int
+	 * @param a int
+	 * @param ni int
+	 * @param nj int
+	 * @param di int
+	 * @param dj int
+	 * @param degreeC boolean
+	 */
+	double pair(int i, int j, int a, int ni, int nj, int di, int dj, boolean degreeC) {
+		if (degreeC) { //the multi-graph DC likelihood only works for directed graphs with self loops
+			if (!graph.isDirected() || a == 0)
+				return 0;
+			return a * java.lang.Math.log(a / ((double) di * dj));
 		}
+		if (i == j && !graph.isDirected())
+			a = a / 2; //avoid duplicate for undirected graphs
+		int b = pairs(i, j, ni, nj) - a;
+		return a*logP[i][j] + b*logQ[i][j];
+	}
+	
+	/**
+	 * This method returns the number of vertex pairs between the blocks i and j, with the same cases as the pair method
+	 * @return number of vertex pairs int
+	 * @param i int
+	 * @param j int
+	 * @param ni int
+	 * @param nj int
+	 */
+	int pairs(int i, int j, int ni, int nj) {
+		if (i != j || (graph.isDirected() && graph.hasSelfloop()))
+			return ni * nj;
+		if (graph.isDirected())
+			return ni * (ni-1);
+		if (graph.hasSelfloop())
+			return ni * (ni+1) / 2;
+		return ni * (ni-1) / 2;
+	}
+	
+	/**
+	 * This method returns the estimated connection rate of the block pair (i, j), the entry of the groupMatrix
+	 * @return the edge rate of the block pair double
+	 * @param i int
+	 * @param j int
+	 * @param a int
+	 * @param ni int
+	 * @param nj int
+	 * @param di int
+	 * @param dj int
+	 * @param degreeC boolean
+	 */
+	double rate(int i, int j, int a, int ni, int nj, int di, int dj, boolean degreeC) {
+		if (degreeC) {
+			if (!graph.isDirected() || a == 0)
+				return 0;
+			return a / ((double) di * dj);
+		}
+		if (i == j && !graph.isDirected())
+			a = a / 2; //avoid duplicate for undirected graphs
+		int ab = pairs(i, j, ni, nj);
+		if (ab == 0)
+			return 0;
+		return (double) a/ab;
+	}
+	
+	/**
+	 * This method returns the log-likelihood of the current Classification, recomputed over all block pairs.
+	 * Calculation differs according to the properties of the graph (directed, selfloop)
+	 * The MCMC moves use the incremental distribution method, this full version is kept for verification and reporting
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param degreeC boolean
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 */	
+	public double likelihood(double beta, boolean gSize, boolean degreeC, double[][] typeP, double[] gNode) {
+		int i, j;
+		double temp = 0;
+		bound(typeP, gNode); //groupMatrix is reused, the lower triangle stays 0 for undirected graphs
+		
+		for (i=0; i<k; i++)
+			for (j=(graph.isDirected() ? 0 : i); j<k; j++) { //avoid duplicate for undirected graphs
+				temp += pair(i, j, aGroup[i][j], nGroup[i], nGroup[j], dGroup[i], dGroup[j], degreeC);
+				groupMatrix[i][j] = rate(i, j, aGroup[i][j], nGroup[i], nGroup[j], dGroup[i], dGroup[j], degreeC);
+			}
 		if (gSize)
 			for (i=0; i<k; i++)
 				temp += nGroup[i]*java.lang.Math.log(gNode[i]);
+		logLike = temp;
 		return beta*temp;
 	}
 	
+	/**
+	 * This method returns the entry (x, y) of aGroup as it would be after moving the vertex from group o to group c,
+	 * replaying the updates of the mutate method from the neighbor group histograms of the vertex
+	 * @return the edge count between blocks after the move int
+	 * @param x int
+	 * @param y int
+	 * @param o int
+	 * @param c int
+	 * @param self int
+	 */
+	int shift(int x, int y, int o, int c, int self) {
+		int a = aGroup[x][y];
+		if (y == o)
+			a -= inHist[x];
+		if (y == c)
+			a += inHist[x];
+		if (x == o)
+			a -= outHist[y];
+		if (x == c)
+			a += outHist[y];
+		if (x == o && y == o) //self loops move with the vertex, as in mutate
+			a -= self;
+		if (x == c && y == c)
+			a += self;
+		return a;
+	}
+	
+	/**
+	 * This method returns the change in log-likelihood (without beta and group sizes) of moving a vertex from group o to group c,
+	 * visiting only the block pairs in the rows and columns of o and c.
+	 * If avg is given, the change of those pairs in groupMatrix, weighted by w, is added to it.
+	 * @return change in log-likelihood double
+	 * @param o int
+	 * @param c int
+	 * @param degree int
+	 * @param self int
+	 * @param degreeC boolean
+	 * @param avg double[][]
+	 * @param w double
+	 */
+	double move(int o, int c, int degree, int self, boolean degreeC, double[][] avg, double w) {
+		int i, j, x, y;
+		int cells = 0; //list the touched block pairs (rows and columns of o and c), each once
+		for (int e=0; e<2; e++) {
+			x = (e == 0) ? o : c;
+			for (y=0; y<k; y++) {
+				if (graph.isDirected()) {
+					touched[cells++] = x*k+y;
+					if (y != o && y != c)
+						touched[cells++] = y*k+x;
+				}
+				else if (x == o || y != o) //the pair of o and c is listed once for undirected graphs
+					touched[cells++] = java.lang.Math.min(x, y)*k + java.lang.Math.max(x, y);
+			}
+		}
+		double delta = 0;
+		for (int t=0; t<cells; t++) {
+			i = touched[t] / k;
+			j = touched[t] % k;
+			int ni = nGroup[i] - (i == o ? 1 : 0) + (i == c ? 1 : 0);
+			int nj = nGroup[j] - (j == o ? 1 : 0) + (j == c ? 1 : 0);
+			int di = dGroup[i] - (i == o ? degree : 0) + (i == c ? degree : 0);
+			int dj = dGroup[j] - (j == o ? degree : 0) + (j == c ? degree : 0);
+			int a = shift(i, j, o, c, self);
+			delta += pair(i, j, a, ni, nj, di, dj, degreeC) - pair(i, j, aGroup[i][j], nGroup[i], nGroup[j], dGroup[i], dGroup[j], degreeC);
+			if (avg != null)
+				avg[i][j] += w * (rate(i, j, a, ni, nj, di, dj, degreeC) - rate(i, j, aGroup[i][j], nGroup[i], nGroup[j], dGroup[i], dGroup[j], degreeC));
+		}
+		return delta;
+	}
+	
+	/**
+	 * This method builds the neighbor group histograms of the vertex n (inHist and outHist) for the move method
+	 * @return the count of self loops in the target list of n int
+	 * @param n int
+	 */
+	int histogram(int n) {
+		int j;
+		for (j=0; j<k; j++) {
+			inHist[j] = 0;
+			outHist[j] = 0;
+		}
+		int self = 0; //self loops in the target lists
+		for (j=0; j<graph.vList[n].sources.size(); j++)
+			if (graph.vList[n].sources.get(j) != n)
+				inHist[groups[graph.vList[n].sources.get(j)]] += graph.vList[n].sourceCount.get(j);
+		for (j=0; j<graph.vList[n].targets.size(); j++) {
+			if (graph.vList[n].targets.get(j) == n)
+				self += graph.vList[n].targetCount.get(j);
+			else
+				outHist[groups[graph.vList[n].targets.get(j)]] += graph.vList[n].targetCount.get(j);
+		}
+		return self;
+	}
+	
 	/**
 	 * This method returns the distribution of straight likelihood of the heat bath MCMC process,
 	 * given a node n and current classification on graph g.
+	 * The neighbor group histograms of n are built once, and the change in log-likelihood of each candidate group
+	 * is computed from the block pairs it touches, in O(K^2 + degree) instead of a full likelihood per candidate.
+	 * The expected group matrix is left in avgGroupMatrix[0], and the returned distribution is a buffer reused by the next call.
 	 * @param n int
 	 * @param beta double
 	 * @param gSize boolean
@@ -267,42 +444,35 @@ public class Classification {
 	 * @param gNode double[]
 	 */	
 	public double[] distribution(int n, double beta, boolean gSize, boolean DC, double[][] typeP, double[] gNode) {
-			int h, i, j;
-			double[] dist = new double[k];
-			avgGroupMatrix = new double[k][k][k];
-			int orig=groups[n];
-			for (i=0; i<k; i++) { //i is the candidate group
-				//Classification temp = new Classification(this);				
-				mutate(n, i); //new classification if change n into group i
-				dist[i] = likelihood(beta, gSize, DC, typeP, gNode); //get the straight log-likelihood
-				for (j=0; j<k; j++)
-					for (h=0; h<k; h++)
-						avgGroupMatrix[i][j][h] = this.groupMatrix[j][h];
-				this.mutate(n, orig);
-			}
+			int i, j;
+			int orig = groups[n];
+			bound(typeP, gNode);
+			int self = histogram(n);
+			int degree = graph.vList[n].outDegree + graph.vList[n].inDegree;
 
-			double sum = 0; //shrink the numbers proportionally to prevent over(under)flow
-			for (i=0; i<k; i++)
-				sum = sum + dist[i];
+			double max = 0; //the current group has no change
+			change[orig] = 0;
+			dist[orig] = 0;
+			for (i=0; i<k; i++) if (i != orig) { //i is the candidate group
+				change[i] = move(orig, i, degree, self, DC, null, 0);
+				if (gSize)
+					change[i] += java.lang.Math.log(gNode[i]) - java.lang.Math.log(gNode[orig]);
+				dist[i] = beta*change[i]; //get the straight log-likelihood ratio
+				max = java.lang.Math.max(max, dist[i]);
+			}
+			double sum = 0; //normalize in log space to prevent over(under)flow
 			for (i=0; i<k; i++) {
-				dist[i] = dist[i] - sum/(k); //exponents subtract the average 
-				if (dist[i]>700) //exponent cut off in case of overflow
-					dist[i] = 700;
-				dist[i] = java.lang.Math.exp(dist[i]); //raise it back to likelihood
+				dist[i] = java.lang.Math.exp(dist[i] - max); //raise it back to likelihood
+				sum = sum + dist[i];
 			}
-			sum = 0; //normalize the distribution
-			for (i=0; i<k; i++)
-				sum = sum +dist[i];
 			for (i=0; i<k; i++)
 				dist[i] = dist[i] / sum;
 			
-			for (j=0; j<k; j++) //get the expected group matrix
-				for (h=0; h<k; h++)
-					avgGroupMatrix[0][j][h] = dist[0] * avgGroupMatrix[0][j][h];
-			for (i=1; i<k; i++)
-				for (j=0; j<k; j++)
-					for (h=0; h<k; h++)
-						avgGroupMatrix[0][j][h] += dist[i] * avgGroupMatrix[i][j][h];
+			for (i=0; i<k; i++) //get the expected group matrix, from the current one and the changes of each candidate
+				for (j=(graph.isDirected() ? 0 : i); j<k; j++)
+					avgGroupMatrix[0][i][j] = rate(i, j, aGroup[i][j], nGroup[i], nGroup[j], dGroup[i], dGroup[j], DC);
+			for (i=0; i<k; i++) if (i != orig)
+				move(orig, i, degree, self, DC, avgGroupMatrix[0], dist[i]);
 			return dist;	
 	}
 	
@@ -312,33 +482,171 @@ public class Classification {
 	 * @param newg int
 	 */	
 	public void mutate(int n, int newg) {
+		relabel(n, newg, aGroup, nGroup, dGroup);
+	}
+	
+	/**
+	 * This method changes the vertex n to group c in a worker view, keeping the changes of the group statistics apart until merged.
+	 * Later moves before the merge read the frozen statistics: their edge terms stay exact if no vertex adjacent to them has moved,
+	 * but their non-edge terms (group sizes and pair counts) miss every deferred move, adjacent or not, an approximation of the sequential sweep.
+	 * @param n int
+	 * @param newg int
+	 */	
+	public void defer(int n, int newg) {
+		relabel(n, newg, deltaA, deltaN, deltaD);
+	}
+	
+	/**
+	 * This method changes the vertex n to group c, applying the changes of the group statistics to the given arrays.
+	 * @param n int
+	 * @param newg int
+	 * @param a int[][]
+	 * @param num int[]
+	 * @param deg int[]
+	 */	
+	void relabel(int n, int newg, int[][] a, int[] num, int[] deg) {
 		int j;
 		int oldg = groups[n];
 		if (oldg != newg) {//if the group has changed
 			//for edges to other nodes
 			for (j = 0; j < graph.vList[n].sources.size(); j++) {
+				if (graph.vList[n].sources.get(j) == n) //self loops are moved below
+					continue;
 				int type = groups[graph.vList[n].sources.get(j)];
-				aGroup[type][oldg] -= graph.vList[n].sourceCount.get(j);
-				aGroup[type][newg] += graph.vList[n].sourceCount.get(j);
+				a[type][oldg] -= graph.vList[n].sourceCount.get(j);
+				a[type][newg] += graph.vList[n].sourceCount.get(j);
 			}
 			for (j = 0; j < graph.vList[n].targets.size(); j++) {
-				int type = groups[graph.vList[n].targets.get(j)];
-				aGroup[oldg][type] -= graph.vList[n].targetCount.get(j);
-				aGroup[newg][type] += graph.vList[n].targetCount.get(j);
-			}// for self loops (needs update)
-			if (graph.hasSelfloop()) {
-				if (graph.vtxSelfloopCount[n] > 0 ) {
-					aGroup[newg][newg]++;
-					aGroup[oldg][newg]--;
-					aGroup[oldg][oldg]++;
-					aGroup[newg][oldg]--;
+				if (graph.vList[n].targets.get(j) == n) { // for self loops (kept in the target lists of undirected graphs)
+					a[oldg][oldg] -= graph.vList[n].targetCount.get(j);
+					a[newg][newg] += graph.vList[n].targetCount.get(j);
+					continue;
 				}
+				int type = groups[graph.vList[n].targets.get(j)];
+				a[oldg][type] -= graph.vList[n].targetCount.get(j);
+				a[newg][type] += graph.vList[n].targetCount.get(j);
 			}
 	
 			groups[n] = newg; // set the new group
-			nGroup[oldg]--; // adjust the vertex count
-			nGroup[newg]++;			
+			num[oldg]--; // adjust the vertex count
+			num[newg]++;
+			deg[oldg] -= graph.vList[n].outDegree + graph.vList[n].inDegree; // adjust the degree count
+			deg[newg] += graph.vList[n].outDegree + graph.vList[n].inDegree;			
+		}
+	}
+	
+	/**
+	 * This method moves the vertex n to the group drawn from its last distribution call,
+	 * updating the running log-likelihood with the change computed there
+	 * @param n int
+	 * @param newg int
+	 */	
+	public void accept(int n, int newg) {
+		logLike += change[newg];
+		mutate(n, newg);
+	}
+	
+	/**
+	 * This method returns the probability of proposing the group s for the vertex n in the current classification:
+	 * a neighbor of n is drawn by edge counts (both directions, self loops aside), and from its group t
+	 * the group s with probability (e_ts + e_st + eps) / (e_t + eps*K), where e_t = dGroup[t] is the number of edge ends in t.
+	 * Vertices without neighbors are proposed a uniform group.
+	 * @return the proposal probability double
+	 * @param n int
+	 * @param s int
+	 * @param eps double
+	 */
+	public double proposal(int n, int s, double eps) {
+		int j, t, c;
+		int w = 0; //total edge count of the neighbors
+		double sum = 0;
+		for (j=0; j<graph.vList[n].targets.size(); j++)
+			if (graph.vList[n].targets.get(j) != n) {
+				t = groups[graph.vList[n].targets.get(j)];
+				c = graph.vList[n].targetCount.get(j);
+				sum += c * (aGroup[t][s] + aGroup[s][t] + eps) / (dGroup[t] + eps*k);
+				w += c;
+			}
+		for (j=0; j<graph.vList[n].sources.size(); j++)
+			if (graph.vList[n].sources.get(j) != n) {
+				t = groups[graph.vList[n].sources.get(j)];
+				c = graph.vList[n].sourceCount.get(j);
+				sum += c * (aGroup[t][s] + aGroup[s][t] + eps) / (dGroup[t] + eps*k);
+				w += c;
+			}
+		if (w == 0)
+			return 1.0 / k;
+		return sum / w;
+	}
+	
+	/**
+	 * This method draws a group for the vertex n from the neighbor proposal (see proposal)
+	 * @return the proposed group int
+	 * @param n int
+	 * @param eps double
+	 * @param r Random
+	 */
+	public int propose(int n, double eps, Random r) {
+		int j;
+		int w = 0; //total edge count of the neighbors
+		for (j=0; j<graph.vList[n].targets.size(); j++)
+			if (graph.vList[n].targets.get(j) != n)
+				w += graph.vList[n].targetCount.get(j);
+		for (j=0; j<graph.vList[n].sources.size(); j++)
+			if (graph.vList[n].sources.get(j) != n)
+				w += graph.vList[n].sourceCount.get(j);
+		if (w == 0)
+			return r.nextInt(k);
+		int u = r.nextInt(w); //the drawn neighbor
+		int t = -1;
+		for (j=0; j<graph.vList[n].targets.size() && t<0; j++)
+			if (graph.vList[n].targets.get(j) != n && (u -= graph.vList[n].targetCount.get(j)) < 0)
+				t = groups[graph.vList[n].targets.get(j)];
+		for (j=0; j<graph.vList[n].sources.size() && t<0; j++)
+			if (graph.vList[n].sources.get(j) != n && (u -= graph.vList[n].sourceCount.get(j)) < 0)
+				t = groups[graph.vList[n].sources.get(j)];
+		double x = r.nextDouble() * (dGroup[t] + eps*k);
+		for (int s=0; s<k-1; s++) {
+			x -= aGroup[t][s] + aGroup[s][t] + eps;
+			if (x < 0)
+				return s;
+		}
+		return k-1;
+	}
+	
+	/**
+	 * This method does one Metropolis-Hastings move of the vertex n, with the neighbor proposal (see proposal)
+	 * and the reverse proposal computed after the move, accepted with probability
+	 * min(1, exp(beta * change) * P(back) / P(forward)), in O(K + degree) instead of the O(K^2 + degree) of the distribution method
+	 * The logarithms of the block parameters are read from the last bound (or likelihood) call,
+	 * and the running log-likelihood is kept up to date
+	 * @return true if the move is accepted boolean
+	 * @param n int
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param DC boolean
+	 * @param gNode double[]
+	 * @param eps double
+	 * @param r Random
+	 */
+	public boolean metropolis(int n, double beta, boolean gSize, boolean DC, double[] gNode, double eps, Random r) {
+		int orig = groups[n];
+		int s = propose(n, eps, r);
+		if (s == orig)
+			return false;
+		int self = histogram(n);
+		double delta = move(orig, s, graph.vList[n].outDegree + graph.vList[n].inDegree, self, DC, null, 0);
+		if (gSize)
+			delta += java.lang.Math.log(gNode[s]) - java.lang.Math.log(gNode[orig]);
+		double forward = proposal(n, s, eps);
+		mutate(n, s);
+		double ratio = beta*delta + java.lang.Math.log(proposal(n, orig, eps) / forward);
+		if (ratio >= 0 || r.nextDouble() < java.lang.Math.exp(ratio)) {
+			logLike += delta;
+			return true;
 		}
+		mutate(n, orig); //rejected
+		return false;
 	}
 	
 	/**
@@ -19,11 +19,22 @@ public class ClassificationBayesian {
 	private int[][] aGroup; //adjacent matrix of group connections
 	private int[] nGroup; //array for counting vertices in each group
 	private int[] dGroup; //array for counting totoal degrees in each group
-	static Graph graph; //member graph for edge query
-	static double[] logFactTable; //lookup table for factorial calculation
+	private double[] fGroup; //array for summing the log-factorials of the degrees in each group (DC terms)
+	private int[] eGroup; //array for counting the edge ends in each group (row and column sums of aGroup), for the neighbor proposals
+	Graph graph; //member graph for edge query, per instance so that classifications of different graphs run concurrently
 	
 	private double[][] groupMatrix; //for p_ij tracking
-	public double[][][] avgGroupMatrix;
+	public double[][][] avgGroupMatrix; //the expected group matrix of the last distribution call, in avgGroupMatrix[0]
+	private double[] candidate; //log-likelihood of each candidate group in the last distribution call
+	private double[] change; //log-likelihood change (beta = 1) of each candidate group in the last distribution call
+	private double[] dist; //the distribution returned by the last distribution call, overwritten by the next one
+	private int[] hist; //source entries of a vertex in each group
+	private int[] touched; //block pairs touched by a move, flat at i*k+j
+	private double[][] term; //edge term of each block pair in the current classification, as of the last distribution call
+	private int[] members; //the other members of the two groups of the last merge-split move
+	private int[] former; //their groups before the move
+	public double logLike; //log-likelihood (scaled by beta) of the current classification, set by the caller from likelihood and kept up to date by accept
+	public boolean varying; //the number of occupied groups varies up to k (merge-split moves), with a uniform prior over it
 	
 	// --- Constructors ---------------------------------------------------------- 
 	/**
@@ -38,14 +49,15 @@ public class ClassificationBayesian {
 		aGroup = new int[k][k];
 		nGroup = new int[k];
 		dGroup = new int[k];
+		fGroup = new double[k];
+		eGroup = new int[k];
+		candidate = new double[k];
 		graph = g;
 		groupMatrix = new double[k][k];
+		allocate();
 		
-		//Initialize the factorial lookup table
-		logFactTable = new double[g.getNumNodes()*g.getNumNodes()+2]; //pending: memory bound
-		logFactTable[0] = 0;
-		for (int i=1; i<logFactTable.length; i++)
-			logFactTable[i] = logFactTable[i-1] + java.lang.Math.log(i);
+		//Exact log-factorials up to the degree sums, larger pair counts use the Stirling series
+		LogFactorial.reserve(2*g.getNumEdgs() + g.getNumNodes() + k);
 		int[] topList = new int[groups.length+1];
 		if (real) {
 			for (int i=0; i<topList.length-1; i++)
@@ -62,28 +74,59 @@ public class ClassificationBayesian {
 	 * @param c Classification
 	 */
 	public ClassificationBayesian(ClassificationBayesian c) {
+		this(c, new Random());
+	}
+	
+	/**
+	 * This constructor copies a Classification into a new object, re-initialized with the given random generator.
+	 * @param c Classification
+	 * @param r Random
+	 */
+	public ClassificationBayesian(ClassificationBayesian c, Random r) {
 		int i, j;
 		k = c.k;
+		graph = c.graph;
 		groups = new int[c.groups.length];
 		aGroup = new int[k][k];
 		nGroup = new int[k];
 		dGroup = new int[k];
+		fGroup = new double[k];
+		eGroup = new int[k];
+		candidate = new double[k];
 		groupMatrix = new double[k][k];
+		allocate();
+		varying = c.varying;
 		
 		for (i=0; i<c.groups.length; i++)
 			groups[i] = c.groups[i];
 		for (i=0; i<k; i++) {
 			nGroup[i] = c.nGroup[i];
 			dGroup[i] = c.dGroup[i];
+			fGroup[i] = c.fGroup[i];
 			for (j=0; j<k; j++)
 				aGroup[i][j] = c.aGroup[i][j];
 		}
 		int[] topList = new int[1];
 		topList[0] = -1;
-		reInitialize(topList);
+		reInitialize(topList, r);
 	}
 	
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method allocates the buffers reused by the distribution and merge-split methods.
+	 * @param null
+	 */
+	void allocate() {
+		dist = new double[k];
+		change = new double[k];
+		hist = new int[k];
+		touched = new int[4*k];
+		term = new double[k][k];
+		avgGroupMatrix = new double[1][k][k];
+		members = new int[groups.length];
+		former = new int[groups.length];
+	}
+	
 	/**
 	 * This method calculates log factorial. 
 	 * @param t int
@@ -91,20 +134,25 @@ public class ClassificationBayesian {
 	private double logfact(int t) {
 		if (t<=0)
 			return 0;
-		double f = 0;
-		for (int i=1; i<=t; i++)
-			f += java.lang.Math.log(i);
-		return f;	
+		return LogFactorial.log(t);	
 	}
 	/**
 	 * This method randomly initialize a Classification for a given Graph.
 	 * @param list int[]
 	 */
 	public void reInitialize(int[] list) {
+		reInitialize(list, new Random());
+	}
+	
+	/**
+	 * This method randomly initialize a Classification for a given Graph, with the given random generator.
+	 * @param list int[]
+	 * @param r Random
+	 */
+	public void reInitialize(int[] list, Random r) {
 		int i, j, m;
 		//Reinitialize random group assignment 
 		//System.out.println("1");
-		Random r = new Random();
 		for (i=0; i<graph.getNumNodes(); i++)
 			groups[i] = r.nextInt(k);
 		i = 0;
@@ -118,6 +166,8 @@ public class ClassificationBayesian {
 		for (i=0; i<k; i++) {
 			nGroup[i] = 0;
 			dGroup[i] = 0;
+			fGroup[i] = 0;
+			eGroup[i] = 0;
 			for (j=0; j<k; j++)
 				aGroup[i][j] = 0;
 		}
@@ -126,6 +176,7 @@ public class ClassificationBayesian {
 			m = groups[i];
 			nGroup[m]++;
 			dGroup[m] += graph.vList[i].outDegree;
+			fGroup[m] += LogFactorial.log(graph.vList[i].outDegree);
 			//System.out.println("1");
 			for (j=0; j<graph.vList[i].targets.size(); j++){
 				//System.out.println("4");
@@ -134,6 +185,8 @@ public class ClassificationBayesian {
 				//System.out.println("target-vtxno:  "+graph.vList[i].edges.get(j));
 				//int target_group=groups[graph.vList[i].edges.get(j)];
 				aGroup[m][groups[graph.vList[i].targets.get(j)]]++;
+				eGroup[m]++;
+				eGroup[groups[graph.vList[i].targets.get(j)]]++;
 				//if (m==groups[graph.vList[i].targets.get(j)])
 					//aGroup[m][m]++;
 				//if(m>5)
@@ -155,158 +208,245 @@ public class ClassificationBayesian {
 	/**
 	 * This method returns the likelihood of the current Classification.
 	 * Calculation differs according to the properties of the graph (directed, selfloop)
+	 * The heat bath moves use the incremental distribution method, this full version sets the running log-likelihood
 	 * @param null
 	 */	
 	public double likelihood(double beta, boolean gSize, boolean degreeC) {
-		int a, b, i, j;
-		double temp = 0;
-		groupMatrix = new double[k][k];
+		int i, j;
+		double temp = 0; //groupMatrix is reused, the lower triangle stays 0 for undirected graphs
 		
 		//the edge terms for vanilla SBM and DC-SBM
-		if (graph.isDirected() && graph.hasSelfloop())
-			for (i=0; i<k; i++)
-				for (j=0; j<k; j++) {
-					a = aGroup[i][j];
-					b = nGroup[i] * nGroup[j] - a;
-					temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-					if (a == 0)
-						groupMatrix[i][j] = 0;
-					else
-						groupMatrix[i][j] = (double) a/(a+b);
-				}
-		if (!graph.isDirected() && graph.hasSelfloop())
-			for (i=0; i<k; i++)
-				for (j=i; j<k; j++) { //avoid duplicate for undirected graphs
-					if (i != j) {
-						a = aGroup[i][j];
-						b = nGroup[i] * nGroup[j] - a;
-						temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-						//temp += logfact(a) + logfact(b) - logfact(a+b-1);
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) (a/a+b);
-					}
-					else { //special case for self group
-						a = aGroup[i][i] / 2; //avoid duplicate for undirected graphs
-						b = nGroup[i] * (nGroup[i]+1) / 2 - a;
-						temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-						//temp += logfact(a) + logfact(b) - logfact(a+b-1);
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-				}
-		if(graph.isDirected() && !graph.hasSelfloop())
-			for (i=0; i<k; i++)
-				for (j=0; j<k; j++) {
-					if (i != j) {
-						a = aGroup[i][j];
-						b = nGroup[i] * nGroup[j] - a;
-						temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-					else { //special case for self group
-						a = aGroup[i][i];
-						b = nGroup[i] * (nGroup[i]-1) - a;
-						temp = temp + (logFactTable[a] + logFactTable[b] - logFactTable[a+b+1])*3;//factor of 10
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-				}
-		if(!graph.isDirected() && !graph.hasSelfloop())
-			for (i=0; i<k; i++)
-				for (j=i; j<k; j++) { //avoid duplicate for undirected graphs
-					if (i != j) {
-						a = aGroup[i][j];
-						b = nGroup[i] * nGroup[j] - a;
-						temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-					else { //special case for self group
-						a = aGroup[i][i] / 2; //avoid duplicate for undirected graphs
-						b = nGroup[i] * (nGroup[i]-1) / 2 - a;
-						temp = temp + logFactTable[a] + logFactTable[b] - logFactTable[a+b+1];
-						if (a == 0)
-							groupMatrix[i][j] = 0;
-						else
-							groupMatrix[i][j] = (double) a/(a+b);
-					}
-				}
+		for (i=0; i<k; i++)
+			for (j=(graph.isDirected() ? 0 : i); j<k; j++) { //avoid duplicate for undirected graphs
+				temp += pair(i, j, aGroup[i][j], nGroup[i], nGroup[j]);
+				groupMatrix[i][j] = rate(i, j, aGroup[i][j], nGroup[i], nGroup[j]);
+			}
 		
 		if (degreeC) { //the degree terms for DC-SBM, only works for undirected graphs with self loops. 
 			if (!graph.isDirected()) {
-				for (i=0; i<k; i++){
-					a = nGroup[i]-1;
-					if (a < 0)
-						a++;
-					temp = temp + logFactTable[a] - logFactTable[dGroup[i]+a];
-					for (j=0; j<graph.getNumNodes(); j++) {
-						if (groups[j] == i)
-							temp = temp + logFactTable[graph.vList[j].outDegree];
-					}
-					temp = temp + (dGroup[i]+nGroup[i]) * Math.log(nGroup[i]);
-				}
+				for (i=0; i<k; i++)
+					temp += degrees(nGroup[i], dGroup[i], fGroup[i]);
 				temp = temp - Math.log((0.5+graph.getNumNodes()/graph.getNumEdgs()/24)*(graph.getNumNodes()-10)) 
 						- 100*Math.log(graph.getNumNodes()); //likelihood normalization with k=10
 			}
 		}
-		if (gSize) { //the group size terms
-			temp = temp + logFactTable[k-1] - logFactTable[graph.getNumNodes()+k-1];
+		if (gSize) { //the group size terms, over the occupied groups only if their number varies
+			temp += sizePrior(varying ? occupied() : k);
 			for (i=0; i<k; i++)
-				temp += logFactTable[nGroup[i]];
+				temp += LogFactorial.log(nGroup[i]);
 		}
+		temp = temp + labelings();
 		return beta*temp;
 	}
 	
+	/**
+	 * This method returns the number of vertex pairs of the block pair (i, j) with ni and nj vertices
+	 * @return number of vertex pairs long
+	 * @param i int
+	 * @param j int
+	 * @param ni int
+	 * @param nj int
+	 */
+	long pairs(int i, int j, int ni, int nj) {
+		if (i != j)
+			return (long) ni * nj;
+		if (graph.isDirected())
+			return graph.hasSelfloop() ? (long) ni * ni : (long) ni * (ni-1);
+		if (graph.hasSelfloop())
+			return (long) ni * (ni+1) / 2;
+		return (long) ni * (ni-1) / 2;
+	}
+	
+	/**
+	 * This method returns the log-likelihood term of the block pair (i, j), with a edges (aGroup entry) between ni and nj vertices
+	 * @return the edge term of the block pair double
+	 * @param i int
+	 * @param j int
+	 * @param a int
+	 * @param ni int
+	 * @param nj int
+	 */
+	double pair(int i, int j, int a, int ni, int nj) {
+		if (i == j && !graph.isDirected())
+			a = a / 2; //avoid duplicate for undirected graphs
+		long b = pairs(i, j, ni, nj) - a; //number of vertex pairs without edges, beyond the int range for large groups
+		double temp = LogFactorial.log(a) + LogFactorial.log(b) - LogFactorial.log(a+b+1);
+		if (i == j && graph.isDirected() && !graph.hasSelfloop())
+			return temp*3; //factor of 10
+		return temp;
+	}
+	
+	/**
+	 * This method returns the edge rate of the block pair (i, j), the entry of the groupMatrix
+	 * @return the edge rate of the block pair double
+	 * @param i int
+	 * @param j int
+	 * @param a int
+	 * @param ni int
+	 * @param nj int
+	 */
+	double rate(int i, int j, int a, int ni, int nj) {
+		if (i == j && !graph.isDirected())
+			a = a / 2; //avoid duplicate for undirected graphs
+		if (a == 0)
+			return 0;
+		return (double) a / pairs(i, j, ni, nj);
+	}
+	
+	/**
+	 * This method returns the DC term of a group with n vertices, total degree d and degree log-factorials f
+	 * @return the degree term of the group double
+	 * @param n int
+	 * @param d int
+	 * @param f double
+	 */
+	double degrees(int n, int d, double f) {
+		int a = java.lang.Math.max(n-1, 0);
+		double temp = LogFactorial.log(a) - LogFactorial.log(d+a) + f;
+		if (n > 0) //an emptied group adds nothing (0 log 0), rather than NaN
+			temp = temp + (d+n) * Math.log(n);
+		return temp;
+	}
+	
+	/**
+	 * This method returns the group size term over m groups, apart from the log-factorials of the group sizes
+	 * @return the group size term double
+	 * @param m int
+	 */
+	double sizePrior(int m) {
+		return LogFactorial.log(m-1) - LogFactorial.log(graph.getNumNodes()+m-1);
+	}
+	
+	/**
+	 * This method returns the entry (x, y) of aGroup as it would be after moving the vertex from group o to group c,
+	 * replaying the updates of the mutate method from the source group histogram of the vertex
+	 * @return the edge count between blocks after the move int
+	 * @param x int
+	 * @param y int
+	 * @param o int
+	 * @param c int
+	 */
+	int shift(int x, int y, int o, int c) {
+		int a = aGroup[x][y];
+		if (y == o)
+			a -= hist[x];
+		if (x == o)
+			a -= hist[y];
+		if (y == c)
+			a += hist[x];
+		if (x == c)
+			a += hist[y];
+		return a;
+	}
+	
+	/**
+	 * This method returns the change in log-likelihood (without beta) of moving a vertex from group o to group c,
+	 * visiting only the block pairs in the rows and columns of o and c (against their current edge terms), and the group terms of o and c.
+	 * If avg is given, the change of those pairs in groupMatrix, weighted by w, is added to it instead, and 0 is returned.
+	 * @return change in log-likelihood double
+	 * @param o int
+	 * @param c int
+	 * @param degree int
+	 * @param fact double
+	 * @param gSize boolean
+	 * @param DC boolean
+	 * @param avg double[][]
+	 * @param w double
+	 */
+	double move(int o, int c, int degree, double fact, boolean gSize, boolean DC, double[][] avg, double w) {
+		int i, j, x, y;
+		int cells = 0; //list the touched block pairs (rows and columns of o and c), each once
+		for (int e=0; e<2; e++) {
+			x = (e == 0) ? o : c;
+			for (y=0; y<k; y++) {
+				if (graph.isDirected()) {
+					touched[cells++] = x*k+y;
+					if (y != o && y != c)
+						touched[cells++] = y*k+x;
+				}
+				else if (x == o || y != o) //the pair of o and c is listed once for undirected graphs
+					touched[cells++] = java.lang.Math.min(x, y)*k + java.lang.Math.max(x, y);
+			}
+		}
+		double delta = 0;
+		for (int t=0; t<cells; t++) {
+			i = touched[t] / k;
+			j = touched[t] % k;
+			int ni = nGroup[i] - (i == o ? 1 : 0) + (i == c ? 1 : 0);
+			int nj = nGroup[j] - (j == o ? 1 : 0) + (j == c ? 1 : 0);
+			int a = shift(i, j, o, c);
+			if (avg != null) //the group matrix pass needs the edge rates only
+				avg[i][j] += w * (rate(i, j, a, ni, nj) - rate(i, j, aGroup[i][j], nGroup[i], nGroup[j]));
+			else
+				delta += pair(i, j, a, ni, nj) - term[i][j];
+		}
+		if (avg != null)
+			return 0;
+		
+		if (DC && !graph.isDirected()) //the degree terms of the two groups
+			delta += degrees(nGroup[o]-1, dGroup[o]-degree, fGroup[o]-fact) + degrees(nGroup[c]+1, dGroup[c]+degree, fGroup[c]+fact)
+					- degrees(nGroup[o], dGroup[o], fGroup[o]) - degrees(nGroup[c], dGroup[c], fGroup[c]);
+		int m = varying ? occupied() : k; //the number of occupied groups before and after the move
+		int moved = varying ? m - (nGroup[o] == 1 ? 1 : 0) + (nGroup[c] == 0 ? 1 : 0) : k;
+		if (gSize)
+			delta += sizePrior(moved) - sizePrior(m) + LogFactorial.log(nGroup[o]-1) + LogFactorial.log(nGroup[c]+1)
+					- LogFactorial.log(nGroup[o]) - LogFactorial.log(nGroup[c]);
+		return delta + labelings(moved) - labelings(m);
+	}
+	
+	/**
+	 * This method builds the source group histogram of the vertex n (hist) for the move method
+	 * @param n int
+	 */
+	void histogram(int n) {
+		int j;
+		for (j=0; j<k; j++)
+			hist[j] = 0;
+		for (j=0; j<graph.vList[n].sources.size(); j++)
+			hist[groups[graph.vList[n].sources.get(j)]]++;
+	}
+	
 	/**
 	 * This method returns the distribution of straight likelihood of the heat bath MCMC process,
 	 * given a node n and current classification on graph g.
+	 * The source group histogram of n is built once, and the change in log-likelihood of each candidate group
+	 * is computed from the block pairs and groups it touches, in O(K^2 + degree) instead of a full likelihood per candidate.
+	 * The running log-likelihood must be current, the candidates are offset from it.
+	 * The expected group matrix is left in avgGroupMatrix[0], and the returned distribution is a buffer reused by the next call.
 	 * @param n int
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param DC boolean
 	 */	
 	public double[] distribution(int n, double beta, boolean gSize, boolean DC) {
-			int h, i, j;
-			double[] dist = new double[k];
-			avgGroupMatrix = new double[k][k][k];
-			int orig=groups[n];
-			for (i=0; i<k; i++) { //i is the candidate group
-				//Classification temp = new Classification(this);				
-				mutate(n, i); //new classification if change n into group i
-				dist[i] = likelihood(beta, gSize, DC); //get the straight likelihood
-				for (j=0; j<k; j++)
-					for (h=0; h<k; h++)
-						avgGroupMatrix[i][j][h] = avgGroupMatrix[i][j][h] + this.groupMatrix[j][h];
-				this.mutate(n, orig);
+			int i, j;
+			int orig = groups[n];
+			histogram(n);
+			int degree = graph.vList[n].outDegree;
+			double fact = LogFactorial.log(degree);
+			for (i=0; i<k; i++) //the current edge terms and group matrix, each pair once for all candidates
+				for (j=(graph.isDirected() ? 0 : i); j<k; j++) {
+					term[i][j] = pair(i, j, aGroup[i][j], nGroup[i], nGroup[j]);
+					avgGroupMatrix[0][i][j] = rate(i, j, aGroup[i][j], nGroup[i], nGroup[j]);
+				}
+			
+			double max = 0; //the current group has no change
+			change[orig] = 0;
+			for (i=0; i<k; i++) if (i != orig) { //i is the candidate group
+				change[i] = move(orig, i, degree, fact, gSize, DC, null, 0);
+				max = java.lang.Math.max(max, beta*change[i]);
 			}
-
-			double sum = 0; //shrink the numbers proportionally to prevent over(under)flow
-			for (i=0; i<k; i++)
-				sum = sum + dist[i];
+			double sum = 0; //normalize in log space to prevent over(under)flow
 			for (i=0; i<k; i++) {
-				dist[i] = dist[i] - sum/(k); //exponents subtract the average 
-				if (dist[i]>700) //exponent cut off in case of overflow
-					dist[i] = 700;
-				dist[i] = java.lang.Math.pow(java.lang.Math.E, dist[i]); //raise it back to likelihood
+				candidate[i] = logLike + beta*change[i];
+				dist[i] = java.lang.Math.exp(beta*change[i] - max); //raise it back to likelihood
+				sum = sum + dist[i];
 			}
-			sum = 0; //normalize the distribution
-			for (i=0; i<k; i++)
-				sum = sum +dist[i];
 			for (i=0; i<k; i++)
 				dist[i] = dist[i] / sum;
-			for (i=0; i<k; i++) //get the expected group matrix
-				for (j=0; j<k; j++)
-					for (h=0; h<k; h++)
-						avgGroupMatrix[0][j][h] = avgGroupMatrix[i][j][h] 
-						                          + dist[i] * avgGroupMatrix[i][j][h];
+			
+			for (i=0; i<k; i++) if (i != orig) //get the expected group matrix, from the current one and the changes of each candidate
+				move(orig, i, degree, fact, gSize, DC, avgGroupMatrix[0], dist[i]);
 			return dist;	
 	}
 	
@@ -332,14 +472,245 @@ public class ClassificationBayesian {
 					aGroup[newg][type]++;;
 			}
 			
+			eGroup[oldg] -= 2*graph.vList[n].sources.size(); // each source moves a row and a column entry
+			eGroup[newg] += 2*graph.vList[n].sources.size();
 			groups[n] = newg; // set the new group
 			nGroup[oldg]--; // adjust the vertex count
 			dGroup[oldg] -= graph.vList[n].outDegree;// update the total degree count (only works for undirected graphs)
+			fGroup[oldg] -= LogFactorial.log(graph.vList[n].outDegree);
 			nGroup[newg]++;			
 			dGroup[newg] += graph.vList[n].outDegree;
+			fGroup[newg] += LogFactorial.log(graph.vList[n].outDegree);
 		}
 	}
 	
+	/**
+	 * This method moves the vertex n to the group drawn from its last distribution call,
+	 * taking the running log-likelihood from the candidate computed there
+	 * @param n int
+	 * @param newg int
+	 */	
+	public void accept(int n, int newg) {
+		logLike = candidate[newg];
+		mutate(n, newg);
+	}
+	
+	/**
+	 * This method returns the number of occupied (non-empty) groups.
+	 * @return number of occupied groups int
+	 * @param null
+	 */	
+	public int occupied() {
+		int m = 0;
+		for (int i=0; i<k; i++)
+			if (nGroup[i] > 0)
+				m++;
+		return m;
+	}
+	
+	/**
+	 * This method returns the prior term of the labelings when the number of occupied groups B varies (0 otherwise):
+	 * the B! labelings of a partition by its own groups count as one partition, and its k!/(k-B)! labelings by the k group slots
+	 * are weighted down, so the prior is uniform over B, log(B!) + log((k-B)!) up to a constant
+	 * @return log prior of the labelings double
+	 * @param null
+	 */	
+	public double labelings() {
+		return labelings(occupied());
+	}
+	
+	/**
+	 * This method returns the prior term of the labelings (see labelings) with m occupied groups
+	 * @return log prior of the labelings double
+	 * @param m int
+	 */	
+	double labelings(int m) {
+		if (!varying)
+			return 0;
+		return LogFactorial.log(m) + LogFactorial.log(k-m);
+	}
+	
+	/**
+	 * This method moves the vertex n to the group a or b by their conditional probability (restricted Gibbs),
+	 * or to the forced group if it is one of them
+	 * @return log probability of the chosen group double
+	 * @param n int
+	 * @param a int
+	 * @param b int
+	 * @param forced int
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param DC boolean
+	 * @param r Random
+	 */
+	double restricted(int n, int a, int b, int forced, double beta, boolean gSize, boolean DC, Random r) {
+		mutate(n, a);
+		double la = likelihood(beta, gSize, DC);
+		mutate(n, b);
+		double lb = likelihood(beta, gSize, DC);
+		double pa = 1 / (1 + java.lang.Math.exp(lb - la)); //conditional probability of a
+		boolean toA = (forced == a) || (forced != b && r.nextDouble() < pa);
+		mutate(n, toA ? a : b);
+		if (toA)
+			return -java.lang.Math.log1p(java.lang.Math.exp(lb - la));
+		return -java.lang.Math.log1p(java.lang.Math.exp(la - lb));
+	}
+	
+	/**
+	 * This method does one merge-split move (Jain and Neal, with restricted Gibbs launch states) when the number of groups varies.
+	 * Two vertices i and j are drawn: if they share a group, the group is split with j moving to a random empty group,
+	 * otherwise the group of j is merged into the group of i.
+	 * The other members of the two groups are spread between them at random and reassigned by restricted Gibbs scans (the launch state),
+	 * and the proposal probability of the split (or of the reverse split, for a merge) is that of a final restricted Gibbs scan.
+	 * The running log-likelihood (scaled by beta) is left current.
+	 * @return true if the move is accepted boolean
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param DC boolean
+	 * @param scans int
+	 * @param r Random
+	 */
+	public boolean splitMerge(double beta, boolean gSize, boolean DC, int scans, Random r) {
+		int V = graph.getNumNodes();
+		logLike = likelihood(beta, gSize, DC);
+		if (V < 2)
+			return false;
+		int i = r.nextInt(V);
+		int j = r.nextInt(V-1);
+		if (j >= i)
+			j++;
+		int a = groups[i];
+		int b = groups[j];
+		int empty = k - occupied(); //empty groups before the move
+		boolean split = (a == b);
+		if (split) { //the new group of j
+			if (empty == 0)
+				return false;
+			int e = r.nextInt(empty);
+			for (b=0; nGroup[b] > 0 || e-- > 0; b++);
+		}
+		int size = 0; //the other members of the two groups
+		for (int n=0; n<V; n++)
+			if (n != i && n != j && (groups[n] == a || groups[n] == b)) {
+				former[size] = groups[n];
+				members[size++] = n;
+			}
+		
+		mutate(j, b); //the launch state
+		for (int m=0; m<size; m++)
+			mutate(members[m], r.nextBoolean() ? a : b);
+		for (int t=0; t<scans; t++)
+			for (int m=0; m<size; m++)
+				restricted(members[m], a, b, -1, beta, gSize, DC, r);
+		double q = 0; //log probability of the final scan
+		for (int m=0; m<size; m++)
+			q += restricted(members[m], a, b, split ? -1 : former[m], beta, gSize, DC, r);
+		if (!split) { //the reverse split led back to the original groups, now merge them
+			mutate(j, a);
+			for (int m=0; m<size; m++)
+				mutate(members[m], a);
+		}
+		double like = likelihood(beta, gSize, DC);
+		double ratio = split ? like - logLike + java.lang.Math.log(empty) - q : like - logLike + q - java.lang.Math.log(empty+1);
+		if (ratio >= 0 || r.nextDouble() < java.lang.Math.exp(ratio)) {
+			logLike = like;
+			return true;
+		}
+		mutate(j, split ? a : b); //rejected
+		for (int m=0; m<size; m++)
+			mutate(members[m], former[m]);
+		return false;
+	}
+	
+	/**
+	 * This method returns the probability of proposing the group s for the vertex n in the current classification:
+	 * a neighbor of n is drawn uniformly from its source list (self loops aside), and from its group t
+	 * the group s with probability (e_ts + e_st + eps) / (e_t + eps*K), where e_t = eGroup[t] is the number of edge ends in t.
+	 * Vertices without neighbors are proposed a uniform group.
+	 * @return the proposal probability double
+	 * @param n int
+	 * @param s int
+	 * @param eps double
+	 */
+	public double proposal(int n, int s, double eps) {
+		int w = 0; //number of neighbors
+		double sum = 0;
+		for (int j=0; j<graph.vList[n].sources.size(); j++)
+			if (graph.vList[n].sources.get(j) != n) {
+				int t = groups[graph.vList[n].sources.get(j)];
+				sum += (aGroup[t][s] + aGroup[s][t] + eps) / (eGroup[t] + eps*k);
+				w++;
+			}
+		if (w == 0)
+			return 1.0 / k;
+		return sum / w;
+	}
+	
+	/**
+	 * This method draws a group for the vertex n from the neighbor proposal (see proposal)
+	 * @return the proposed group int
+	 * @param n int
+	 * @param eps double
+	 * @param r Random
+	 */
+	public int propose(int n, double eps, Random r) {
+		int w = 0; //number of neighbors
+		for (int j=0; j<graph.vList[n].sources.size(); j++)
+			if (graph.vList[n].sources.get(j) != n)
+				w++;
+		if (w == 0)
+			return r.nextInt(k);
+		int u = r.nextInt(w); //the drawn neighbor
+		int t = -1;
+		for (int j=0; t<0; j++)
+			if (graph.vList[n].sources.get(j) != n && u-- == 0)
+				t = groups[graph.vList[n].sources.get(j)];
+		double x = r.nextDouble() * (eGroup[t] + eps*k);
+		for (int s=0; s<k-1; s++) {
+			x -= aGroup[t][s] + aGroup[s][t] + eps;
+			if (x < 0)
+				return s;
+		}
+		return k-1;
+	}
+	
+	/**
+	 * This method does one Metropolis-Hastings move of the vertex n, with the neighbor proposal (see proposal)
+	 * and the reverse proposal computed after the move, accepted with probability
+	 * min(1, exp(L' - L) * P(back) / P(forward)), one likelihood call instead of the K calls of the distribution method
+	 * The running log-likelihood (scaled by beta) must be current, and is kept up to date
+	 * @return true if the move is accepted boolean
+	 * @param n int
+	 * @param beta double
+	 * @param gSize boolean
+	 * @param DC boolean
+	 * @param eps double
+	 * @param r Random
+	 */
+	public boolean metropolis(int n, double beta, boolean gSize, boolean DC, double eps, Random r) {
+		int orig = groups[n];
+		int s = propose(n, eps, r);
+		if (s == orig)
+			return false;
+		double forward = proposal(n, s, eps);
+		mutate(n, s);
+		double like = likelihood(beta, gSize, DC);
+		double ratio = like - logLike + java.lang.Math.log(proposal(n, orig, eps) / forward);
+		if (ratio >= 0 || r.nextDouble() < java.lang.Math.exp(ratio)) {
+			logLike = like;
+			return true;
+		}
+		mutate(n, orig); //rejected
+		return false;
+	}
+	
+	/**
+	 * This method returns the number of vertices in each group.
+	 * @return a copy of the group sizes int[]
+	 * @param null
+	 */	
+	public int[] sizes() { return nGroup.clone(); }
+	
 	/**
 	 * This method returns the number of vertices.
 	 * @param null
@@ -14,8 +14,10 @@ import java.util.Random;
 public class EMiterate {
 	// --- Instance Variables ----------------------------------------------------
 	EMstep emStep; //the abstract class of emStep
+	static int maxIterations = 5; //bound of the total iterations in the outer-loop
 	int iterations; //number of iterations in the outer-loop
 	double epsilon; //convergence threshold
+	double delta; //change in parameter values after the last iteration
 	public double[][] typeP; //the P_ij group affinity matrix
 	public double[][] marginal; //the mixed membership vector
 	
@@ -29,6 +31,7 @@ public class EMiterate {
 	 */
 	public EMiterate(EMstep em, double assort, double disassort) {
 		iterations = 0;
+		delta = Double.MAX_VALUE;
 		emStep = em;
 		//The P_ij group affinity matrix
 		typeP = new double[emStep.graph.getNumType()][emStep.graph.getNumType()]; 
@@ -70,6 +73,7 @@ public class EMiterate {
 	 */
 	public EMiterate(EMstep em, double[][] P, double[][] M, boolean tune) {
 		iterations = 0;
+		delta = Double.MAX_VALUE;
 		emStep = em;
 		//The P_ij group affinity matrix
 		typeP = new double[emStep.graph.getNumType()][emStep.graph.getNumType()]; 
@@ -96,6 +100,7 @@ public class EMiterate {
 	 */
 	public EMiterate(EMstep em, EMiterate copy) {
 		iterations = 0;
+		delta = Double.MAX_VALUE;
 		emStep = em;
 		//The P_ij group affinity matrix
 		typeP = new double[emStep.graph.getNumType()][emStep.graph.getNumType()]; 
@@ -122,6 +127,17 @@ public class EMiterate {
 		marginal = emStep.convergeExpectation();
 		
 		//Maximization step
+		return maximize(marginal, fix);
+	}
+	
+	/**
+	 * This method does the maximization step of stepEM on the marginals of a finished expectation step
+	 * @return the change in parameter values double
+	 * @param M double[][]
+	 * @param fix boolean
+	 */
+	public double maximize(double[][] M, boolean fix) {
+		marginal = M;
 		double[] gNode = new double[emStep.graph.getNumType()];
 		double sum= 0;
 		for (int i=0; i<gNode.length; i++){
@@ -145,8 +161,16 @@ public class EMiterate {
 	 * @param tP double[][]
 	 */
 	public double convergeEM(double[] gN, double[][] tP) {
-		double delta = Double.MAX_VALUE;
-
+		initEM(gN, tP);
+		return advance(maxIterations, "tune");
+	}
+	
+	/**
+	 * This method initializes the block parameters for convergeEM without iterating (optional manual initialization)
+	 * @param gN double[]
+	 * @param tP double[][]
+	 */
+	public void initEM(double[] gN, double[][] tP) {
 		Random r = new Random(); //default random initialization
 		double[][] typeP = new double[emStep.graph.getNumType()][emStep.graph.getNumType()];
 		for (int i=0; i<typeP.length; i++)
@@ -174,11 +198,86 @@ public class EMiterate {
 		
 		emStep.update(typeP, gNode); //update the parameter values
 		iterations= 0;
-		while(delta>epsilon && iterations<5) { //bound the total iteration to 5
+		delta = Double.MAX_VALUE;
+	}
+	
+	/**
+	 * This method continues the EM steps until convergence or until the total number of iterations reaches the bound
+	 * Used to give a run an increasing budget of iterations (successive halving in grid search)
+	 * @return the current likelihood value double
+	 * @param bound int
+	 * @param tag String
+	 */
+	public double advance(int bound, String tag) {
+		while(delta>epsilon && iterations<bound) { //bound the total iteration
 			delta = stepEM(false); //iterate EM steps
 			iterations++;
-			System.out.println("EM tune iteration "+iterations+" BP steps used: "+emStep.steps); //print the number of loops
+			System.out.println("EM "+tag+" iteration "+iterations+" BP steps used: "+emStep.steps); //print the number of loops
+		}
+		return emStep.likelihood;
+	}
+	
+	/**
+	 * This method continues a batch of EM runs as advance, with the expectation steps of all runs in lockstep
+	 * The runs must share the graph and be driven by the views of the batch engine, in the same order
+	 * @param runs EMiterate[]
+	 * @param batch BPbatchMU
+	 * @param bound int
+	 * @param tag String
+	 */
+	public static void advance(EMiterate[] runs, BPbatchMU batch, int bound, String tag) {
+		boolean[] active = new boolean[runs.length];
+		while (true) {
+			boolean any = false;
+			for (int b=0; b<runs.length; b++) {
+				active[b] = runs[b].delta>runs[b].epsilon && runs[b].iterations<bound; //bound the total iteration
+				any = any || active[b];
+			}
+			if (!any)
+				break;
+			double[][][] marginals = batch.convergeExpectation(active); //expectation steps in lockstep
+			for (int b=0; b<runs.length; b++)
+				if (active[b]) {
+					runs[b].delta = runs[b].maximize(marginals[b], false);
+					runs[b].iterations++;
+					System.out.println("EM "+tag+" batch "+b+" iteration "+runs[b].iterations+" BP steps used: "+runs[b].emStep.steps); //print the number of loops
+				}
+		}
+	}
+	
+	/**
+	 * This method runs stochastic variational EM instead of full EM iterations
+	 * Mini-batches of nodes are drawn without replacement within each pass over the nodes,
+	 * and each step blends the batch statistics into the running statistics with the Robbins-Monro step size (t+tau)^-kappa
+	 * The likelihood is evaluated once on the final state with a fixed M-step
+	 * The given engine, the only kind with a stochastic mode, becomes the inner-loop of this EM process
+	 * @return the likelihood value double
+	 * @param svi BPfastMU
+	 * @param batchSize int
+	 * @param bound int
+	 * @param tau double
+	 * @param kappa double
+	 */
+	public double convergeSVI(BPfastMU svi, int batchSize, int bound, double tau, double kappa) {
+		emStep = svi;
+		int[] order = svi.permute(); //random order for the current pass
+		int next = 0;
+		int passes = 0;
+		int[] batch = new int[java.lang.Math.min(batchSize, order.length)];
+		for (int t=0; t<bound; t++) {
+			for (int b=0; b<batch.length; b++) {
+				if (next == order.length) { //start a new pass over the nodes
+					order = svi.permute();
+					next = 0;
+					passes++;
+					System.out.println("EM stochastic pass "+passes+" steps used: "+emStep.steps); //print the number of steps
+				}
+				batch[b] = order[next++];
+			}
+			delta = svi.stepStochastic(batch, java.lang.Math.pow(t+tau, -kappa));
+			iterations++;
 		}
+		maximize(svi.marginal(), true); //likelihood of the final state
 		return emStep.likelihood;
 	}
 	
@@ -224,20 +323,21 @@ public class EMiterate {
 	 * @param null
 	 */
 	public double convergeEMgrid() {
-		
-		double delta = Double.MAX_VALUE;
+		initGrid();
+		return advance(maxIterations, "restart");
+	}
+	
+	/**
+	 * This method initializes the block parameters for convergeEMgrid without iterating
+	 * @param null
+	 */
+	public void initGrid() {
 		// Initial iteration
 		double[] gNode = new double[emStep.graph.getNumType()];
 		for (int i=0; i<gNode.length; i++)
 			for (int j=0; j<marginal.length;j++)
 				gNode[i] += marginal[j][i];	
 		emStep.update(typeP, gNode); //update the parameter values
-		
-		while(delta>epsilon && iterations<5) { //bound the total iteration to 10
-			delta = stepEM(false); //iterate EM steps
-			iterations++;
-			System.out.println("EM restart iteration "+iterations+" BP steps used: "+emStep.steps); //print the number of loops
-		}
-		return emStep.likelihood;
+		delta = Double.MAX_VALUE;
 	}
-}
\ No newline at end of file
+}
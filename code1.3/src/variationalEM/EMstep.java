@@ -25,7 +25,6 @@ public abstract class EMstep {
 	double epsilon; //the threshold for convergence test
 	public double[] gNode; //the group distribution of vertices
 	public double[][] typeP; //the P_ij group affinity matrix
-	static double[] factTable; //lookup table for factorial calculation
 
 	public double likelihood;
 	public double likelihoodHard;
@@ -48,10 +47,7 @@ public abstract class EMstep {
 		epsilon = 0.0001 * graph.getNumNodes() * graph.getNumNodes() * graph.getNumType();
 		gNode = new double[graph.getNumType()];
 		typeP = new double[graph.getNumType()][graph.getNumType()]; 
-		factTable = new double[g.getOutDegreeTop()+1]; //pending: memory bound
-		factTable[0] = 1;
-		for (int i=1; i<factTable.length; i++)
-			factTable[i] = factTable[i-1] * i;
+		LogFactorial.reserve(g.getOutDegreeTop()); //exact log-factorials for the observed edge counts
 		likelihood = -Double.MAX_VALUE;
 	}
 	
@@ -81,23 +77,35 @@ public abstract class EMstep {
 				if (degreeCorrect)
 					typeP[i][j] = typeP[i][j] / java.lang.Math.pow(((double) graph.getNumEdgs() / graph.getNumNodes()), 2);
 			}
-		factTable = new double[g.getOutDegreeTop()+1]; //pending: memory bound
-		factTable[0] = 1;
-		for (int i=1; i<factTable.length; i++)
-			factTable[i] = factTable[i-1] * i;
+		LogFactorial.reserve(g.getOutDegreeTop()); //exact log-factorials for the observed edge counts
 		likelihood = -Double.MAX_VALUE;
 		update(p, n);
 	}
 	
 	// --- Instance Methods ------------------------------------------------------
 	/**
-	 * This method calculates factorial. 
-	 * @param t int
+	 * This method calculates the Poisson weight base^pow / pow! (without the exponential factor), in log form to avoid overflow
+	 * @return the Poisson weight double
+	 * @param base double
+	 * @param pow int
 	 */	
 	protected double poisson(double base, int pow) {
 		if (pow==0)
 			return 1;
-		return Math.pow(base, pow) / factTable[pow];	
+		if (pow==1)
+			return base;
+		return java.lang.Math.exp(logPoisson(base, pow));	
+	}
+	/**
+	 * This method calculates the log of the Poisson weight, pow*log(base) - log(pow!)
+	 * @return the log Poisson weight double
+	 * @param base double
+	 * @param pow int
+	 */	
+	protected double logPoisson(double base, int pow) {
+		if (pow==0)
+			return 0;
+		return pow * java.lang.Math.log(base) - LogFactorial.log(pow);	
 	}
 	/**
 	 * This method finds the maximum index in an array. 
@@ -129,14 +137,36 @@ public abstract class EMstep {
 	 */
 	public abstract double mStep(double[] n, boolean fix);
 	
+	/**
+	 * This method seeds the inner-loop state with node marginals, e.g. from SpectralInit
+	 * Engines without messages ignore the seed, to be overwritten by the BP classes
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {}
+	
+	/**
+	 * This method creates an independent copy of the current state (abstract method to be instantiated),
+	 * so that multiple EM runs can proceed concurrently without sharing messages or parameters.
+	 */
+	public abstract EMstep copy();
+	
 	/**
 	 * This method gives a random permutation of nodes for message[][].
 	 * @return a random list for message updates
 	 * @param null
 	 */
 	public int[] permute () {
-		Random r = new Random();
-		int[] updateList = new int[graph.getNumNodes()];
+		return permute(new Random(), new int[graph.getNumNodes()]);
+	}
+	
+	/**
+	 * This method fills the given update list with a random permutation of nodes, drawn from the given generator,
+	 * the same shuffle as permute without allocations, for the samplers
+	 * @return the update list int[]
+	 * @param r Random
+	 * @param updateList int[]
+	 */
+	public int[] permute(Random r, int[] updateList) {
 		for (int i=0; i<updateList.length; i++)
 			updateList[i] = i;
 		for (int i=0; i<updateList.length; i++) {
@@ -0,0 +1,81 @@
+package variationalEM;
+
+
+/**
+ * This class implements a shared log-factorial (log-gamma at integers) service for the likelihood calculations
+ * Small arguments are read from an exact table, grown on request to the counts observed in a graph (up to a bound),
+ * larger arguments are evaluated with the Stirling series, so memory stays bounded and large multi-edge counts stay finite
+ * The table is replaced as a whole when it grows, so lookups are thread-safe without locking
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class LogFactorial {
+
+	// --- Instance Variables ----------------------------------------------------
+	static final int MIN = 256; //smallest table, the Stirling series is accurate to double precision beyond it
+	static final int MAX = 1 << 20; //largest table (8MB), larger arguments always use the Stirling series
+	static volatile double[] table = build(new double[0], MIN); //exact log-factorials, read without locking
+	// --- Constructors ----------------------------------------------------------
+	private LogFactorial() {} //static service only
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method returns log(n!), from the exact table when possible
+	 * @return log-factorial double
+	 * @param n int
+	 */
+	public static double log(int n) {
+		double[] t = table; //one read of the shared table
+		if (n < t.length)
+			return t[n];
+		return stirling(n);
+	}
+	/**
+	 * This method returns log(n!) for counts beyond the int range (e.g. vertex pairs between large groups)
+	 * @return log-factorial double
+	 * @param n long
+	 */
+	public static double log(long n) {
+		if (n < Integer.MAX_VALUE)
+			return log((int) n);
+		return stirling(n);
+	}
+	/**
+	 * This method grows the exact table to cover arguments up to n (bounded by MAX), for the counts observed in a graph
+	 * @param n int
+	 */
+	public static synchronized void reserve(int n) {
+		int size = java.lang.Math.min(n, MAX-1) + 1;
+		if (size > table.length)
+			table = build(table, size);
+	}
+	/**
+	 * This method extends a table of log-factorials to the given size
+	 * @return the extended table double[]
+	 * @param old double[]
+	 * @param size int
+	 */
+	static double[] build(double[] old, int size) {
+		double[] t = new double[size];
+		System.arraycopy(old, 0, t, 0, old.length);
+		for (int i=java.lang.Math.max(old.length, 1); i<size; i++)
+			t[i] = t[i-1] + java.lang.Math.log(i);
+		return t;
+	}
+	/**
+	 * This method evaluates log(n!) = log(Gamma(n+1)) with the Stirling series, accurate to double precision for n >= MIN
+	 * @return log-factorial double
+	 * @param n double
+	 */
+	static double stirling(double n) {
+		double x = n + 1.0;
+		double inv = 1 / x;
+		double inv2 = inv * inv;
+		return (x - 0.5) * java.lang.Math.log(x) - x + 0.5 * java.lang.Math.log(2 * java.lang.Math.PI)
+				+ inv * (1.0/12 - inv2 * (1.0/360 - inv2 * (1.0/1260 - inv2 / 1680)));
+	}
+
+}
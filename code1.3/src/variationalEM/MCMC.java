@@ -3,10 +3,11 @@ package variationalEM;
 import graphTools.Graph;
 
 import java.util.Random;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class implements the MAP MCMC for comparison
- * A child class extends the abstract EMstep class
+ * A child class extends the abstract Sampler class
  * Built for undirected multi-graphs and Poisson/DC block models
  * 
  * @author Xiaoran Yan ( everyxt@gmail.com )
@@ -14,8 +15,53 @@ import java.util.Random;
  * @time Nov, 2013
  */
 
-public class MCMC extends EMstep{
-	
+public class MCMC extends Sampler{
+	//--- Inner class for parallel sweeps -----------------------------------------
+	class Part extends RecursiveAction { //vertices index, index+stride, ... of a color class, moved through their own worker view
+		private static final long serialVersionUID = 1L; //never serialized, fork-join tasks are serializable
+		int[] members; //vertices of the current color class
+		int index; //first vertex of the part
+		int stride; //number of parts
+		boolean mixed; //statistics collection or burn-in
+		Classification worker; //worker view of the classification, with deferred moves
+		Random random; //random draws of the part, seeded from the chain
+		double delta; //largest change measure of a vertex
+		double[][] temp = new double[graph.getNumType()][graph.getNumType()]; //sum of the expected group matrices
+		
+		Part(int first, int parts, Classification view, Random r) { //inner constructor
+			index = first;
+			stride = parts;
+			worker = view;
+			random = r;
+		}
+		protected void compute() {
+			for (int u=index; u<members.length; u+=stride) {
+				int n = members[u];
+				double[] distribution = worker.distribution(n, beta, gSizeCorrect, degreeCorrect, typeP, gNode); //get the heat bath MCMC distribution
+				double change = 0;
+				for (int j = 0; j < worker.numGroup(); j++) {
+					if (mixed) {
+						marginal[n][j] +=  distribution[j];
+						for (int k=0; k<worker.numGroup(); k++)
+							temp[j][k] += worker.avgGroupMatrix[0][j][k];
+					}
+					else {
+						convergeTest[n][j] +=  distribution[j];
+						change += java.lang.Math.abs(distribution[j] - convergeTest[n][j] / steps);
+					}
+				}
+				delta = java.lang.Math.max(delta, change);
+				//Change the classification according to the distribution
+				double randgroup = random.nextDouble();//[0d,1d)
+				int group = -1;
+				while (randgroup >= 0) {
+					group++;
+					randgroup = randgroup - distribution[group];
+				}
+				worker.defer(n, group);
+			}
+		}
+	}
 	// --- Instance Variables ----------------------------------------------------
 	public int count; //count the number of samples across initials
 	double beta; //the parameter correspond to the inverse temperature in statistics physics
@@ -25,6 +71,14 @@ public class MCMC extends EMstep{
 	double meanLogLike;
 	double maxLogLike;
 	private Classification classification; //subclass for MCMC sampling
+	int[][] classes; //vertices of each color class for the chromatic sweeps, null for sequential sweeps
+	Part[] parts; //parts of the chromatic sweeps, kept with their worker views between sweeps
+	RecursiveAction task; //runs all the parts of a color class, kept with the parts
+	int[] colorOrder; //order of the color classes in a chromatic sweep, reused
+	Random random; //random draws of the chain, see setSeed
+	int[] order; //update order of the vertices in a sweep, reused
+	public boolean metropolis; //neighbor-informed Metropolis-Hastings moves instead of the heat bath
+	public double smoothing; //weight of the uniform part of the neighbor proposals
 	// --- Constructors ---------------------------------------------------------- 
 	public MCMC(){} //the empty constructor
 	/**
@@ -47,6 +101,10 @@ public class MCMC extends EMstep{
 		meanLogLike = 0;
 		maxLogLike = -Double.MAX_VALUE;
 		classification = new Classification(graph, graph.getNumType());
+		metropolis = false;
+		smoothing = 1;
+		random = new Random();
+		order = new int[graph.getNumNodes()];
 	}
 	/**
 	 * This constructor creates a MCMC sampler from an exact copy, keeping the initial classifications
@@ -67,20 +125,46 @@ public class MCMC extends EMstep{
 		meanLogLike = copy.meanLogLike;
 		maxLogLike = copy.maxLogLike;
 		classification = copy.classification;
-		
+		classes = copy.classes;
+		metropolis = copy.metropolis;
+		smoothing = copy.smoothing;
+		random = new Random(copy.random.nextLong()); //an independent stream, drawn from the seeded chain
+		order = new int[graph.getNumNodes()];
 	}
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the MCMC sampler with its own chain
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		MCMC copy = new MCMC(graph, this, beta);
+		copy.marginal = new double[graph.getNumNodes()][graph.getNumType()];
+		copy.classification = new Classification(classification, copy.random); //an independent (re-initialized) chain
+		return copy;
+	}
+	/**
+	 * This method seeds the random draws of the chain, and redraws its initial classification from them
+	 * The chains copied afterwards (replicas, multi-chain runs) draw their own seeds from this chain, so a seeded multi-chain run is reproducible
+	 * @param seed long
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+		int[] topList = {-1};
+		classification.reInitialize(topList, random);
+		parts = null; //the parts draw their seeds again
+	}
 	/**
 	 * This method does a single step of MCMC update (asynchronous) across the network,
 	 * This is the converging version which returns a measure of change in l1 norm
 	 * @param null
 	 */
 	public double stepMC() {
-		int[] Ulist = permute();
+		int[] Ulist = permute(random, order);
 		double delta = 0;
 		
 		// update in order according to the permutation
-		Random r = new Random();
 		double[] distribution;
 		
 		for (int i=0; i<Ulist.length; i++) {
@@ -91,7 +175,7 @@ public class MCMC extends EMstep{
 				delta += java.lang.Math.abs(distribution[j] - convergeTest[Ulist[i]][j] / steps);
 			}
 			//Change the classification according to the distribution
-			double randgroup = r.nextDouble();//[0d,1d)
+			double randgroup = random.nextDouble();//[0d,1d)
 			int group = -1;
 			while (randgroup >= 0) {
 				group++;
@@ -105,13 +189,14 @@ public class MCMC extends EMstep{
 	/**
 	 * This method does a single step of MCMC update (asynchronous) across the network,
 	 * This is the mixed version for statistics collection
+	 * The log-likelihood is recomputed once per sweep, and kept up to date by the accepted moves in between
 	 * @param null
 	 */
 	public void stepMCmixed() {
-		int[] Ulist = permute();
+		int[] Ulist = permute(random, order);
 		maxLogLike = -Double.MAX_VALUE;
+		classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode); //sets the running log-likelihood
 		// update in order according to the permutation
-		Random r = new Random();
 		double[] distribution;
 		
 		for (int i=0; i<Ulist.length; i++) {
@@ -122,18 +207,150 @@ public class MCMC extends EMstep{
 					tP[j][k] += classification.avgGroupMatrix[0][j][k];
 			}
 			//Change the classification according to the distribution
-			double randgroup = r.nextDouble();//[0d,1d)
+			double randgroup = random.nextDouble();//[0d,1d)
 			int group = -1;
 			while (randgroup >= 0) {
 				group++;
 				randgroup = randgroup - distribution[group];
 			}
-			double temp = classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode);
+			double temp = classification.logLike;
 			meanLogLike += temp;
 			if (temp > maxLogLike)
 				maxLogLike = temp;
-			classification.mutate(Ulist[i], group);
+			classification.accept(Ulist[i], group);
+		}
+	}
+	
+	/**
+	 * This method does a single step of Metropolis-Hastings moves (asynchronous) across the network, with neighbor-informed proposals
+	 * In the mixed version, the marginals count the visited groups, and the block parameters are read from the classification after the sweep
+	 * @return acceptance rate of the moves double
+	 * @param mixed boolean
+	 */
+	public double stepMH(boolean mixed) {
+		int[] Ulist = permute(random, order);
+		if (mixed)
+			maxLogLike = -Double.MAX_VALUE;
+		classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode); //clamps the block parameters and sets the running log-likelihood
+		int accepted = 0;
+		for (int i=0; i<Ulist.length; i++) {
+			if (mixed) {
+				double temp = classification.logLike;
+				meanLogLike += temp;
+				if (temp > maxLogLike)
+					maxLogLike = temp;
+			}
+			if (classification.metropolis(Ulist[i], beta, gSizeCorrect, degreeCorrect, gNode, smoothing, random))
+				accepted++;
+			if (mixed)
+				marginal[Ulist[i]][classification.getVtxType(Ulist[i])] += 1;
+		}
+		if (mixed) {
+			classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode); //sets the group matrix
+			for (int j=0; j<graph.getNumType(); j++)
+				for (int k=0; k<graph.getNumType(); k++)
+					tP[j][k] += classification.groupMatrix[j][k] * Ulist.length; //once per vertex, as in the heat bath sweeps
+		}
+		return (double) accepted / Ulist.length;
+	}
+	
+	/**
+	 * This method switches the sampler to chromatic sweeps: the graph is colored greedily, so that no edge joins
+	 * two vertices of the same color class, and the classes are then moved one after another, each in parallel
+	 * @param null
+	 */
+	public void chromatic() {
+		int[] color = graph.greedyColoring();
+		int colors = 0;
+		for (int i=0; i<color.length; i++)
+			colors = java.lang.Math.max(colors, color[i]+1);
+		int[] size = new int[colors];
+		for (int i=0; i<color.length; i++)
+			size[color[i]]++;
+		classes = new int[colors][];
+		for (int c=0; c<colors; c++)
+			classes[c] = new int[size[c]];
+		for (int i=color.length-1; i>=0; i--)
+			classes[color[i]][--size[color[i]]] = i;
+		parts = null;
+	}
+	
+	/**
+	 * This method does a single step of MCMC update across the network, one color class after another, in random order.
+	 * The vertices of a class are spread over the fork-join pool, each part moving its vertices through its own worker view
+	 * of the classification, and the moves are merged into the group statistics after the class.
+	 * With no edges inside a class the edge terms of each vertex are exact, while the non-edge terms (group sizes and pair counts)
+	 * are read as of the start of the class, an approximation of the sequential sweep that vanishes for classes small against the groups.
+	 * The log-likelihood is recomputed after each class.
+	 * @return largest measure of change of a vertex (burn-in sweeps only) double
+	 * @param mixed boolean
+	 */
+	public double stepMCchromatic(boolean mixed) {
+		classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode); //clamps the block parameters before the parts read them
+		if (mixed)
+			maxLogLike = -Double.MAX_VALUE;
+		if (parts == null) { //the first chromatic sweep of the chain
+			parts = new Part[BPfullMU.chunks];
+			for (int p=0; p<parts.length; p++)
+				parts[p] = new Part(p, parts.length, classification.worker(), new Random(random.nextLong()));
+			colorOrder = new int[classes.length];
+			task = new RecursiveAction() {
+				protected void compute() {
+					invokeAll(parts);
+				}
+			};
+		}
+		for (int p=0; p<parts.length; p++) {
+			parts[p].mixed = mixed;
+			parts[p].delta = 0;
+			for (int j=0; j<graph.getNumType(); j++)
+				java.util.Arrays.fill(parts[p].temp[j], 0);
+		}
+		
+		int[] order = colorOrder; //random order of the classes
+		for (int c=0; c<order.length; c++)
+			order[c] = c;
+		for (int c=order.length-1; c>0; c--) {
+			int j = random.nextInt(c+1);
+			int temp = order[c];
+			order[c] = order[j];
+			order[j] = temp;
 		}
+		for (int c=0; c<order.length; c++) {
+			if (mixed) {
+				double temp = classification.logLike;
+				meanLogLike += temp * classes[order[c]].length;
+				if (temp > maxLogLike)
+					maxLogLike = temp;
+			}
+			for (int p=0; p<parts.length; p++) {
+				parts[p].members = classes[order[c]];
+				parts[p].reinitialize();
+			}
+			invoke();
+			for (int p=0; p<parts.length; p++)
+				classification.merge(parts[p].worker);
+			classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode); //resets the running log-likelihood
+		}
+		
+		double delta = 0;
+		for (int p=0; p<parts.length; p++) {
+			delta = java.lang.Math.max(delta, parts[p].delta);
+			if (mixed)
+				for (int j=0; j<graph.getNumType(); j++)
+					for (int k=0; k<graph.getNumType(); k++)
+						tP[j][k] += parts[p].temp[j][k];
+		}
+		return delta;
+	}
+	
+	/**
+	 * This method runs the parts of a chromatic sweep on the fork-join pool shared with the BP flood sweeps, and waits for all of them
+	 * @param null
+	 */
+	void invoke() {
+		task.reinitialize();
+		BPfullMU.pool.invoke(task);
 	}
 	
 	/**
@@ -153,7 +370,6 @@ public class MCMC extends EMstep{
 					likelihood += java.lang.Math.log(marginal[i][k1]); // left shifted to avoid overflow
 			gNode[k1] = marginals[k1];
 			for (int k2=0; k2<graph.getNumType(); k2++) {
-				tP[k1][k2] = tP[k1][k2] / graph.getNumNodes() / count;
 				delta += java.lang.Math.abs(tP[k1][k2]-typeP[k1][k2]);
 				typeP[k1][k2] = tP[k1][k2];
 			}
@@ -170,32 +386,143 @@ public class MCMC extends EMstep{
 	  * @param null
 	 */
 	public double[][] convergeExpectation() {
-		
+		start();
+		double delta = Double.MAX_VALUE; //iteration level difference
+		//the burn-in steps until convergence
+		while (delta > epsilon && steps<5)
+			delta = sweep(false);
+		//statistics collecting after the MC is well mixed
+		for (int i=0; i<count; i++)
+			sweep(true);
+		return finish(count);
+	}
+	
+	/**
+	 * This method creates an independent chain at another inverse temperature
+	 * A polymorphic extension of the abstract method replica in the parent class
+	 * @return the new replica Sampler
+	 * @param invTemp double
+	 */
+	Sampler replica(double invTemp) {
+		MCMC copy = (MCMC) copy();
+		copy.beta = invTemp;
+		return copy;
+	}
+	/**
+	 * This method resets the collected statistics before an E-step
+	 * A polymorphic extension of the abstract method start in the parent class
+	 * @return number of sweeps to collect int
+	 * @param null
+	 */
+	int start() {
 		marginal = new double[graph.getNumNodes()][graph.getNumType()];
 		tP = new double[graph.getNumType()][graph.getNumType()];
 		meanLogLike = 0;
-		
 		convergeTest = new double[graph.getNumNodes()][graph.getNumType()];
-		int[] topList = new int[1];
-		topList[0] = -1;
 		steps = 0;
-		double delta = Double.MAX_VALUE; //iteration level difference
-		//the burn-in steps until convergence
-		while (delta > epsilon && steps<5) {
-			delta = stepMC();
-			steps++;
+		return count;
+	}
+	/**
+	 * This method does one burn-in sweep (counted in steps), or one sweep collecting statistics once the chain is mixed
+	 * A polymorphic extension of the abstract method sweep in the parent class
+	 * @return measure of change (burn-in sweeps only) double
+	 * @param mixed boolean
+	 */
+	double sweep(boolean mixed) {
+		if (metropolis) { //Metropolis-Hastings sweeps
+			double delta = stepMH(mixed);
+			if (!mixed)
+				steps++;
+			return delta;
 		}
-		//statistics collecting after the MC is well mixed
-		for (int i=0; i<count; i++)
+		if (classes != null) { //chromatic sweeps
+			double delta = stepMCchromatic(mixed);
+			if (!mixed)
+				steps++;
+			return delta;
+		}
+		if (mixed) {
 			stepMCmixed();
-		
-		//likelihood  = meanLogLike / graph.getNumNodes() / count;
+			return 0;
+		}
+		double delta = stepMC();
+		steps++;
+		return delta;
+	}
+	/**
+	 * This method normalizes the collected marginals and block parameters by the number of collecting sweeps after an E-step,
+	 * and keeps the best log-likelihood
+	 * A polymorphic extension of the abstract method finish in the parent class
+	 * @return block marginal vectors for all nodes
+	 * @param collected int
+	 */
+	double[][] finish(int collected) {
+		//likelihood  = meanLogLike / graph.getNumNodes() / collected;
 		likelihood = maxLogLike;
 		for (int i=0; i<marginal.length; i++)
 			for (int j=0; j<marginal[0].length; j++)
-				marginal[i][j] = marginal[i][j] / count;
-		
+				marginal[i][j] = marginal[i][j] / collected;
+		for (int k1=0; k1<tP.length; k1++)
+			for (int k2=0; k2<tP[k1].length; k2++)
+				tP[k1][k2] = tP[k1][k2] / graph.getNumNodes() / collected;
 		return marginal;
 	}
+	/**
+	 * This method returns the block sizes of the current classification
+	 * A polymorphic extension of the abstract method chainSizes in the parent class
+	 * @return number of nodes in each block int[]
+	 * @param null
+	 */
+	int[] chainSizes() {
+		return classification.nGroup.clone();
+	}
+	/**
+	 * This method returns the log-likelihood of the current classification, at inverse temperature 1
+	 * A polymorphic extension of the abstract method chainLikelihood in the parent class
+	 * @return log-likelihood double
+	 * @param null
+	 */
+	double chainLikelihood() {
+		return classification.likelihood(1, gSizeCorrect, degreeCorrect, typeP, gNode);
+	}
+	/**
+	 * This method exchanges the classifications of two chains, keeping their temperatures
+	 * A polymorphic extension of the abstract method exchange in the parent class
+	 * @param other Sampler
+	 */
+	void exchange(Sampler other) {
+		MCMC chain = (MCMC) other;
+		Classification temp = classification;
+		classification = chain.classification;
+		chain.classification = temp;
+		if (parts != null && chain.parts != null) //the worker views go with their classification
+			for (int p=0; p<parts.length; p++) {
+				Classification view = parts[p].worker;
+				parts[p].worker = chain.parts[p].worker;
+				chain.parts[p].worker = view;
+			}
+		else {
+			parts = null;
+			chain.parts = null;
+		}
+	}
+	/**
+	 * This method draws a seed from the random stream of the chain
+	 * A polymorphic extension of the abstract method seed in the parent class
+	 * @return the seed long
+	 * @param null
+	 */
+	long seed() {
+		return random.nextLong();
+	}
+	/**
+	 * This method returns the inverse temperature of the chain
+	 * A polymorphic extension of the abstract method invTemp in the parent class
+	 * @return the inverse temperature double
+	 * @param null
+	 */
+	double invTemp() {
+		return beta;
+	}
 	
 }
\ No newline at end of file
@@ -6,7 +6,7 @@ import java.util.Random;
 
 /**
  * This class implements the MAP MCMC for comparison
- * A child class extends the abstract EMstep class
+ * A child class extends the abstract Sampler class
  * Built for undirected multi-graphs and Poisson/DC block models
  * 
  * @author Xiaoran Yan ( everyxt@gmail.com )
@@ -14,7 +14,7 @@ import java.util.Random;
  * @time Nov, 2013
  */
 
-public class MCMCBayesian extends EMstep{
+public class MCMCBayesian extends Sampler{
 	
 	// --- Instance Variables ----------------------------------------------------
 	public int count; //count the number of samples across initials
@@ -26,6 +26,14 @@ public class MCMCBayesian extends EMstep{
 	double meanLogLike;
 	double maxLogLike;
 	private ClassificationBayesian classification; //subclass for MCMC sampling
+	public boolean metropolis; //neighbor-informed Metropolis-Hastings moves instead of the heat bath
+	public double smoothing; //weight of the uniform part of the neighbor proposals
+	public int mergeSplit; //merge-split proposals after each sweep when the number of groups varies, 0 for a fixed number of groups
+	public int launch; //restricted Gibbs scans building the launch state of a merge-split proposal
+	public double[] groupLike; //best log-likelihood (beta = 1, without the labelings) of each number of occupied groups, in the last E-step
+	public int[] groupVisits; //collecting sweeps ending with each number of occupied groups, in the last E-step
+	Random random; //random draws of the chain, see setSeed
+	int[] order; //update order of the vertices in a sweep, reused
 	// --- Constructors ---------------------------------------------------------- 
 	public MCMCBayesian(){} //the empty constructor
 	/**
@@ -49,6 +57,12 @@ public class MCMCBayesian extends EMstep{
 		meanLogLike = 0;
 		maxLogLike = -Double.MAX_VALUE;
 		classification = new ClassificationBayesian(graph, groupCount, true);
+		metropolis = false;
+		smoothing = 1;
+		mergeSplit = 0;
+		launch = 3;
+		random = new Random();
+		order = new int[graph.getNumNodes()];
 	}
 	/**
 	 * This constructor creates a MCMC sampler from an exact copy, keeping the initial classifications
@@ -70,20 +84,44 @@ public class MCMCBayesian extends EMstep{
 		meanLogLike = copy.meanLogLike;
 		maxLogLike = copy.maxLogLike;
 		classification = copy.classification;
-		
+		metropolis = copy.metropolis;
+		smoothing = copy.smoothing;
+		mergeSplit = copy.mergeSplit;
+		launch = copy.launch;
+		random = new Random(copy.random.nextLong()); //an independent stream, drawn from the seeded chain
+		order = new int[graph.getNumNodes()];
 	}
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the MCMC sampler with its own chain
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		MCMCBayesian copy = new MCMCBayesian(graph, this, beta);
+		copy.marginal = new double[graph.getNumNodes()][groupCount];
+		copy.classification = new ClassificationBayesian(classification, copy.random); //an independent (re-initialized) chain
+		return copy;
+	}
+	/**
+	 * This method seeds the random draws of the chain, its initial classification (the ground truth labels) needs no seed
+	 * The chains copied afterwards (replicas, multi-chain runs) draw their own seeds from this chain, so a seeded multi-chain run is reproducible
+	 * @param seed long
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
 	/**
 	 * This method does a single step of MCMC update (asynchronous) across the network,
 	 * This is the converging version which returns a measure of change in l1 norm
 	 * @param null
 	 */
 	public double stepMC() {
-		int[] Ulist = permute();
+		int[] Ulist = permute(random, order);
 		double delta = 0;
 		
 		// update in order according to the permutation
-		Random r = new Random();
 		double[] distribution;
 		
 		for (int i=0; i<Ulist.length; i++) {
@@ -94,7 +132,7 @@ public class MCMCBayesian extends EMstep{
 				delta += java.lang.Math.abs(distribution[j] - convergeTest[Ulist[i]][j] / steps);
 			}
 			//Change the classification according to the distribution
-			double randgroup = r.nextDouble();//[0d,1d)
+			double randgroup = random.nextDouble();//[0d,1d)
 			int group = -1;
 			while (randgroup >= 0) {
 				group++;
@@ -111,10 +149,10 @@ public class MCMCBayesian extends EMstep{
 	 * @param null
 	 */
 	public void stepMCmixed() {
-		int[] Ulist = permute();
+		int[] Ulist = permute(random, order);
 		// update in order according to the permutation
-		Random r = new Random();
 		double[] distribution;
+		classification.logLike = classification.likelihood(beta, gSizeCorrect, degreeCorrect); //sets the running log-likelihood
 		
 		for (int i=0; i<Ulist.length; i++) {
 			distribution = classification.distribution(Ulist[i], beta, gSizeCorrect, degreeCorrect); //get the heat bath MCMC distribution
@@ -122,18 +160,65 @@ public class MCMCBayesian extends EMstep{
 				marginal[Ulist[i]][j] +=  distribution[j];
 			}
 			//Change the classification according to the distribution
-			double randgroup = r.nextDouble();//[0d,1d)
+			double randgroup = random.nextDouble();//[0d,1d)
 			int group = -1;
 			while (randgroup >= 0) {
 				group++;
 				randgroup = randgroup - distribution[group];
 			}
-			double temp = classification.likelihood(beta, gSizeCorrect, degreeCorrect);
+			double temp = classification.logLike; //the current log-likelihood, kept up to date by accept
 			meanLogLike += temp;
 			if (temp > maxLogLike)
 				maxLogLike = temp;
-			classification.mutate(Ulist[i], group);
+			classification.accept(Ulist[i], group);
+		}
+	}
+	
+	/**
+	 * This method does a single step of Metropolis-Hastings moves (asynchronous) across the network, with neighbor-informed proposals
+	 * In the mixed version, the marginals count the visited groups
+	 * @return acceptance rate of the moves double
+	 * @param mixed boolean
+	 */
+	public double stepMH(boolean mixed) {
+		int[] Ulist = permute(random, order);
+		classification.logLike = classification.likelihood(beta, gSizeCorrect, degreeCorrect); //sets the running log-likelihood
+		int accepted = 0;
+		for (int i=0; i<Ulist.length; i++) {
+			if (mixed) {
+				double temp = classification.logLike;
+				meanLogLike += temp;
+				if (temp > maxLogLike)
+					maxLogLike = temp;
+			}
+			if (classification.metropolis(Ulist[i], beta, gSizeCorrect, degreeCorrect, smoothing, random))
+				accepted++;
+			if (mixed)
+				marginal[Ulist[i]][classification.getVtxType(Ulist[i])] += 1;
 		}
+		return (double) accepted / Ulist.length;
+	}
+	
+	/**
+	 * This method lets the number of occupied groups vary from 1 up to the number of groups of the sampler,
+	 * with merge-split proposals after each sweep, so a single chain samples the number of groups as well
+	 * @param proposals int
+	 */
+	public void varyGroups(int proposals) {
+		mergeSplit = proposals;
+		classification.varying = (proposals > 0);
+	}
+	
+	/**
+	 * This method records the number of occupied groups and the log-likelihood of the current classification at the end of a collecting sweep
+	 * @param null
+	 */
+	void record() {
+		int m = classification.occupied();
+		double like = classification.likelihood(1, gSizeCorrect, degreeCorrect) - classification.labelings();
+		groupVisits[m]++;
+		if (like > groupLike[m])
+			groupLike[m] = like;
 	}
 	
 	/**
@@ -157,17 +242,7 @@ public class MCMCBayesian extends EMstep{
 	  * @param null
 	 */
 	public double[][] convergeExpectation() {
-		
-		marginal = new double[graph.getNumNodes()][groupCount];
-		tP = new double[graph.getNumType()][groupCount];
-		meanLogLike = 0;
-		//maxLogLike = -Double.MAX_VALUE;
-		
-		convergeTest = new double[graph.getNumNodes()][groupCount];
-		int[] topList = new int[1];
-		topList[0] = -1;
-		steps = 0;
-		
+		start();
 		//the burn-in steps until convergence
 		//while (delta > epsilon && steps<count) {
 		//	delta = stepMC();
@@ -177,13 +252,122 @@ public class MCMCBayesian extends EMstep{
 		//if (steps < count/10)
 			//steps = count/10;
 		for (int i=0; i<count; i++)
+			sweep(true);
+		return finish(count);
+	}
+	
+	/**
+	 * This method creates an independent chain at another inverse temperature
+	 * A polymorphic extension of the abstract method replica in the parent class
+	 * @return the new replica Sampler
+	 * @param invTemp double
+	 */
+	Sampler replica(double invTemp) {
+		MCMCBayesian copy = (MCMCBayesian) copy();
+		copy.beta = invTemp;
+		return copy;
+	}
+	/**
+	 * This method resets the collected statistics before an E-step
+	 * A polymorphic extension of the abstract method start in the parent class
+	 * @return number of sweeps to collect int
+	 * @param null
+	 */
+	int start() {
+		marginal = new double[graph.getNumNodes()][groupCount];
+		tP = new double[graph.getNumType()][groupCount];
+		meanLogLike = 0;
+		//maxLogLike = -Double.MAX_VALUE;
+		convergeTest = new double[graph.getNumNodes()][groupCount];
+		groupLike = new double[groupCount+1];
+		java.util.Arrays.fill(groupLike, -Double.MAX_VALUE);
+		groupVisits = new int[groupCount+1];
+		steps = 0;
+		return count;
+	}
+	/**
+	 * This method does one burn-in sweep (counted in steps), or one sweep collecting statistics once the chain is mixed
+	 * A polymorphic extension of the abstract method sweep in the parent class
+	 * @return measure of change (burn-in sweeps only) double
+	 * @param mixed boolean
+	 */
+	double sweep(boolean mixed) {
+		double delta = 0;
+		if (metropolis) //Metropolis-Hastings sweeps
+			delta = stepMH(mixed);
+		else if (mixed)
 			stepMCmixed();
-		
+		else
+			delta = stepMC();
+		if (!mixed)
+			steps++;
+		if (mergeSplit > 0) { //moves across the numbers of groups
+			for (int m=0; m<mergeSplit; m++)
+				classification.splitMerge(beta, gSizeCorrect, degreeCorrect, launch, random);
+			if (mixed)
+				record();
+		}
+		return delta;
+	}
+	/**
+	 * This method keeps the best log-likelihood after an E-step, and reinitializes the chain for the next outer iteration
+	 * A polymorphic extension of the abstract method finish in the parent class
+	 * @return the dummy marginals carrying the step counts
+	 * @param collected int
+	 */
+	double[][] finish(int collected) {
 		likelihood = maxLogLike;
 		marginal[0][0] = steps;
-		marginal[1][0] = count;
-		classification = new ClassificationBayesian(classification); //reinitialize MCMC for next outer iteration
+		marginal[1][0] = collected;
+		classification = new ClassificationBayesian(classification, random); //reinitialize MCMC for next outer iteration, from the seeded stream
 		return marginal; //dummy output
 	}
+	/**
+	 * This method returns the log-likelihood of the current classification, at inverse temperature 1
+	 * A polymorphic extension of the abstract method chainLikelihood in the parent class
+	 * @return log-likelihood double
+	 * @param null
+	 */
+	double chainLikelihood() {
+		return classification.likelihood(1, gSizeCorrect, degreeCorrect);
+	}
+	/**
+	 * This method returns the block sizes of the current classification
+	 * A polymorphic extension of the abstract method chainSizes in the parent class
+	 * @return number of nodes in each block int[]
+	 * @param null
+	 */
+	int[] chainSizes() {
+		return classification.sizes();
+	}
+	/**
+	 * This method exchanges the classifications of two chains, keeping their temperatures
+	 * A polymorphic extension of the abstract method exchange in the parent class
+	 * @param other Sampler
+	 */
+	void exchange(Sampler other) {
+		MCMCBayesian chain = (MCMCBayesian) other;
+		ClassificationBayesian temp = classification;
+		classification = chain.classification;
+		chain.classification = temp;
+	}
+	/**
+	 * This method draws a seed from the random stream of the chain
+	 * A polymorphic extension of the abstract method seed in the parent class
+	 * @return the seed long
+	 * @param null
+	 */
+	long seed() {
+		return random.nextLong();
+	}
+	/**
+	 * This method returns the inverse temperature of the chain
+	 * A polymorphic extension of the abstract method invTemp in the parent class
+	 * @return the inverse temperature double
+	 * @param null
+	 */
+	double invTemp() {
+		return beta;
+	}
 	
 }
\ No newline at end of file
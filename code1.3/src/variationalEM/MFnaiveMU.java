@@ -0,0 +1,278 @@
+package variationalEM;
+
+import graphTools.Graph;
+import java.util.Random;
+
+
+/**
+ * This class implements the naive mean-field approximation, keeping node marginals only (no edge messages)
+ * A looser but cheaper approximation than the BP classes, O(V*K) memory and O(E*K^2) time per sweep, for quick screening
+ * A child class extends the abstract EMstep class
+ * Built for undirected multi-graphs and Poisson/DC block models
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class MFnaiveMU extends EMstep{
+
+	// --- Instance Variables ----------------------------------------------------
+	double[][] marginal; //the mixed membership vector of each node
+	// --- Constructors ----------------------------------------------------------
+	public MFnaiveMU() {} //the empty constructor
+	/**
+	 * This constructor creates a naive mean-field with random initial marginals and manually set block parameters
+	 * @param g Graph
+	 * @param degreeC boolean
+	 * @param gSize boolean
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 */
+	public MFnaiveMU(Graph g, boolean degreeC, boolean gSize,  double[][] typeP, double[] gNode) {
+		super(g, degreeC, gSize, typeP, gNode); //calling the parent constructor
+		epsilon = 0.0001 * graph.getNumNodes() * graph.getNumType(); //overwrites default threshold
+
+		Random r = new Random(); //random initialization of marginals
+		marginal = new double[graph.getNumNodes()][graph.getNumType()];
+		for (int i=0; i<marginal.length; i++) {
+			double sum=0;
+			for (int k=0; k<graph.getNumType(); k++) {
+				double rand = r.nextDouble();
+				marginal[i][k] = (5+rand); //balanced initialization
+				sum += marginal[i][k];
+			}
+			for (int k=0; k<graph.getNumType(); k++)
+				marginal[i][k] /= sum; //normalization
+		}
+	}
+
+	/**
+	 * This constructor creates a naive mean-field from an exact copy, including block parameters as well as marginals
+	 * @param g Graph
+	 * @param copy MFnaiveMU
+	 */
+	public MFnaiveMU(Graph g, MFnaiveMU copy) {
+		super(g, copy.degreeCorrect, copy.gSizeCorrect, copy.typeP, copy.gNode); //calling the parent constructor
+
+		epsilon = copy.epsilon;
+		likelihood = copy.likelihood;
+		likelihoodHard = copy.likelihoodHard;
+		marginal = new double[graph.getNumNodes()][graph.getNumType()];
+		for (int i=0; i<marginal.length; i++)
+			for (int k=0; k<graph.getNumType(); k++)
+				marginal[i][k] = copy.marginal[i][k];
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the naive mean-field, including block parameters as well as marginals
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		return new MFnaiveMU(graph, this);
+	}
+	/**
+	 * This method seeds the marginals
+	 * A polymorphic extension of the method seed in the parent class
+	 * @param M double[][]
+	 */
+	public void seed(double[][] M) {
+		for (int i=0; i<marginal.length; i++)
+			for (int k=0; k<graph.getNumType(); k++)
+				marginal[i][k] = M[i][k];
+	}
+	/**
+	 * This method returns the weight of a node in the non-edge (exposure) terms
+	 * @return the degree for the DC model, 1 for the vanilla model double
+	 * @param node int
+	 */
+	double weight(int node) {
+		if (degreeCorrect) //for the DC model
+			return graph.vList[node].outDegree; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
+		return 1;
+	}
+	/**
+	 * This method does a sweep of marginal updates (asynchronous) across the network
+	 * Each node is updated from the expected log-likelihood of its edges, plus the exposure to all other nodes,
+	 * which is read from the node sum of the marginals with the node itself removed
+	 * @return measure of change in terms of marginals in L1 norm
+	 * @param null
+	 */
+	public double stepMF() {
+		double[] nodeSum = new double[graph.getNumType()]; //sum of the marginals (degree weighted for DC), kept up to date during the sweep
+		for (int i=0; i<marginal.length; i++)
+			for (int k=0; k<graph.getNumType(); k++)
+				nodeSum[k] += weight(i) * marginal[i][k];
+		double[][] logP = new double[graph.getNumType()][graph.getNumType()];
+		for (int k1=0; k1<graph.getNumType(); k1++)
+			for (int k2=0; k2<graph.getNumType(); k2++)
+				logP[k1][k2] = java.lang.Math.log(typeP[k1][k2]);
+
+		int[] Ulist = permute(); //pick a random update order
+		double delta = 0; //measure of change
+		double[] field = new double[graph.getNumType()];
+		for (int u=0; u<Ulist.length; u++) {
+			int i = Ulist[u];
+			double w = weight(i);
+			for (int k=0; k<graph.getNumType(); k++)
+				nodeSum[k] -= w * marginal[i][k]; //exposure to the other nodes only
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				field[k1] = 0;
+				if (gSizeCorrect) //group size correction
+					field[k1] = java.lang.Math.log(gNode[k1]);
+				for (int k2=0; k2<graph.getNumType(); k2++)
+					field[k1] -= w * typeP[k1][k2] * nodeSum[k2]; //case 2: Poisson exposure on all pairs
+			}
+			for (int j=0; j<graph.vList[i].targets.size(); j++) { //case 1: observed edges
+				int target = graph.vList[i].targets.get(j);
+				if (target == i) //self loops are not modeled
+					continue;
+				int edgeC = graph.vList[i].targetCount.get(j);
+				for (int k1=0; k1<graph.getNumType(); k1++)
+					for (int k2=0; k2<graph.getNumType(); k2++)
+						field[k1] += edgeC * marginal[target][k2] * logP[k1][k2];
+			}
+			double max = field[0]; //normalize in log space
+			for (int k=1; k<graph.getNumType(); k++)
+				max = java.lang.Math.max(max, field[k]);
+			double sum = 0;
+			for (int k=0; k<graph.getNumType(); k++) {
+				field[k] = java.lang.Math.exp(field[k] - max);
+				sum += field[k];
+			}
+			for (int k=0; k<graph.getNumType(); k++) {
+				double newM = field[k] / sum;
+				delta += java.lang.Math.abs(marginal[i][k] - newM);
+				marginal[i][k] = newM;
+				nodeSum[k] += w * newM;
+			}
+		}
+		return delta;
+	}
+
+	/**
+	  * This method implements the E-step inner-loops for the naive mean-field
+	  * A polymorphic extension of the abstract method convergeExpectation in parent class
+	  * Built for undirected multi-graphs and Poisson/DC block models
+	  * @return block marginal vectors for all nodes
+	  * @param null
+	 */
+	public double[][] convergeExpectation() {
+		//Initializations
+		steps = 0;
+		double delta = Double.MAX_VALUE;
+		//The inner loop with a bound of 10 sweeps
+		while(delta > epsilon && steps <10) {
+			delta = stepMF(); //Do a E-step sweep across all nodes
+			steps++;
+		}
+		return marginal();
+	}
+
+	/**
+	  * This method returns the current marginals without further updates
+	  * @return block marginal vectors for all nodes
+	  * @param null
+	 */
+	public double[][] marginal() {
+		double[][] copy = new double[graph.getNumNodes()][graph.getNumType()];
+		for (int i=0; i<copy.length; i++)
+			for (int k=0; k<graph.getNumType(); k++)
+				copy[i][k] = marginal[i][k];
+		return copy;
+	}
+
+	/**
+	  * This method implements the M-step after the E-step converges
+	  * The expected edge counts between blocks are summed over the edges, and the expected pair exposures
+	  * are read from the node sums of the marginals, so the step is linear in the number of edges
+	  * The likelihood is the mean-field lower bound (expected complete log-likelihood plus the entropy of the marginals)
+	  * A polymorphic extension of the abstract method mStep in the parent class
+	  * Built for undirected multi-graphs and Poisson/DC block models
+	  * @return change in parameter values double
+	  * @param marginals double[]
+	  * @param fix boolean
+	 */
+	public double mStep(double[] marginals, boolean fix) {
+		double likeTemp = 0;
+		likelihoodHard = 0;
+		double[][] temp = new double[graph.getNumType()][graph.getNumType()];
+		double[][] sum = new double[graph.getNumType()][graph.getNumType()];
+		double[] total = new double[graph.getNumType()]; //node sums of the marginals (degree weighted for DC)
+		double[] totalHard = new double[graph.getNumType()]; //node sums of the hard block assignment
+		double[] selfHard = new double[graph.getNumType()]; //squared weights of the hard block assignment
+
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			int iid = findMax(marginal[i]); //for hard block assignment
+			double wi = weight(i);
+			for (int j=0; j<graph.vList[i].targets.size(); j++) { //case 1: observed edges (each counted from both ends)
+				int target = graph.vList[i].targets.get(j);
+				if (target == i) //self loops are not modeled
+					continue;
+				int edgeC = graph.vList[i].targetCount.get(j);
+				int jid = findMax(marginal[target]);
+				double scale = wi * weight(target);
+				for (int k1=0; k1<graph.getNumType(); k1++)
+					for (int k2=0; k2<graph.getNumType(); k2++) {
+						double q = marginal[i][k1] * marginal[target][k2]; //factorized pair-wise marginal
+						temp[k1][k2] += q * edgeC;
+						double energy = 0.5 * (edgeC * java.lang.Math.log(typeP[k1][k2] * scale) - LogFactorial.log(edgeC));
+						likeTemp += q * energy; //pairwise energy part (edge terms)
+						if (k1 == iid && k2 == jid) //for hard block assignment
+							likelihoodHard += energy;
+					}
+			}
+			totalHard[iid] += wi;
+			selfHard[iid] += wi * wi;
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				total[k1] += wi * marginal[i][k1];
+				for (int k2=0; k2<graph.getNumType(); k2++)
+					sum[k1][k2] -= wi * wi * marginal[i][k1] * marginal[i][k2]; //no exposure of a node to itself
+			}
+			for (int k=0; k<graph.getNumType(); k++) {
+				if (marginal[i][k] > 0)
+					likeTemp -= marginal[i][k] * java.lang.Math.log(marginal[i][k]); //pointwise entropy part
+				if (gSizeCorrect) {
+					likeTemp += marginal[i][k] * java.lang.Math.log(gNode[k]); //pointwise energy part (group size correction)
+					if (k == iid)
+						likelihoodHard += java.lang.Math.log(gNode[k]); //group size correction for hard block assignment
+				}
+			}
+		}
+		for (int k1=0; k1<graph.getNumType(); k1++)
+			for (int k2=0; k2<graph.getNumType(); k2++) {
+				sum[k1][k2] += total[k1] * total[k2]; //expected exposure over ordered pairs
+				likeTemp -= 0.5 * typeP[k1][k2] * sum[k1][k2]; //pairwise energy part (Poisson exposure)
+				double pairsHard = totalHard[k1] * totalHard[k2];
+				if (k1 == k2)
+					pairsHard -= selfHard[k1];
+				likelihoodHard -= 0.5 * typeP[k1][k2] * pairsHard; //Poisson exposure for hard block assignment
+			}
+		likelihood = likeTemp;
+
+		double delta = 0; //change measure
+		if (!fix) //do not update block parameters if M-step is fixed
+			for (int k1=0; k1<graph.getNumType(); k1++) {
+				gNode[k1] = marginals[k1];
+				for (int k2=0; k2<graph.getNumType(); k2++) {
+					if (sum[k1][k2] <= 0)
+						temp[k1][k2] = 0;
+					else // normalization
+						temp[k1][k2] = temp[k1][k2] / sum[k1][k2];
+					delta += Math.abs(temp[k1][k2]-typeP[k1][k2]);
+					//Handling boundary cases
+					if (temp[k1][k2] < 1e-128)
+						typeP[k1][k2] = 1e-128;
+					else if (temp[k1][k2] > (1 - 1e-16))
+						typeP[k1][k2] = 1-1e-16;
+					else
+						typeP[k1][k2] = temp[k1][k2];
+				}
+			}
+		return delta;
+	}
+
+}
@@ -122,18 +122,31 @@ public class MainBayesian {
 		double[][] typeP = new double[test.graph.getNumType()][test.graph.getNumType()]; //dummy parameters
 		double[] gNode = new double[test.graph.getNumType()]; //dummy parameters
 		Long start = System.currentTimeMillis(); //timer starts
+		//Set the boolean to true for DC-SBM, the number of occupied groups is sampled from 1 up to 12
+		MCMCBayesian bpFast = new MCMCBayesian(test.graph, true, typeP, gNode, 1, 12); 
+		bpFast.maxLogLike = -Double.MAX_VALUE;; //reset the maximum likelihood
+		bpFast.varyGroups(1); //set number of merge-split proposals per sweep
+		MultiChain chains = new MultiChain(bpFast, 10); //set number of independent chains, run in parallel until the diagnostics pass
+		double[][] marginal = test.posterior(test.graph, chains); //call the likeRatio method
+		print.print("steps " + marginal[0][0] + ":\t"); 
+		print.print("bound " + marginal[1][0] + ":\t"); 
+		print.print("R-hat " + chains.rHat + ":\t"); 
+		print.println("ESS " + chains.ess); 
+		int total = 0; //collecting sweeps over all chains
+		for (int c=0; c<chains.chains.length; c++)
+			for (int k=1; k<13; k++)
+				total += ((MCMCBayesian) chains.chains[c]).groupVisits[k];
 		for (int k=1; k<13; k++) {
-			print.println("groups #:\t" + k); 
-			//Set the boolean to true for DC-SBM
-			MCMCBayesian bpFast = new MCMCBayesian(test.graph, true, typeP, gNode, 1, k); 
-			bpFast.maxLogLike = -Double.MAX_VALUE;; //reset the maximum likelihood
-			for (int n=0; n<10; n++) { //set number of test samples
-				print.print("graph " + n + ":\t"); //indexing the random graphs for tests
-				double[][] marginal = test.posterior(test.graph, bpFast); //call the likeRatio method
-				print.print("steps " + marginal[0][0] + ":\t"); 
-				print.print("bound " + marginal[1][0] + ":\t"); 
-				print.println("ratio:" + bpFast.likelihood); //print the returned log-likelihood difference
+			double best = -Double.MAX_VALUE; //best log-likelihood with k occupied groups over the chains
+			int visits = 0;
+			for (int c=0; c<chains.chains.length; c++) {
+				MCMCBayesian chain = (MCMCBayesian) chains.chains[c];
+				best = java.lang.Math.max(best, chain.groupLike[k]);
+				visits += chain.groupVisits[k];
 			}
+			print.print("groups #:\t" + k + "\t"); 
+			print.print("posterior " + (double) visits / java.lang.Math.max(total, 1) + ":\t"); //share of the sweeps with k occupied groups
+			print.println("ratio:" + best); //print the best log-likelihood with k occupied groups
 		}
 		print.println("time:" + (System.currentTimeMillis() - start)); //timer stops and print the time used
 		print.close();
@@ -4,7 +4,15 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import graphTools.Graph;
 
 /**
@@ -20,14 +28,34 @@ import graphTools.Graph;
  * @time Nov, 2013
  */
 public class MainFunction {
+	//--- Inner class for independent EM runs -------------------------------------
+	static class Run { //one EM run with its own copy of the EMstep state
+		EMstep em; //the inner-loop state of this run
+		EMiterate outer; //the outer-loop state of this run
+		double like; //the likelihood reached by this run
+		
+		Run(EMstep e, EMiterate o, double l) { //inner constructor
+			em = e;
+			outer = o;
+			like = l;
+		}
+	}
 	// --- Instance Variables ----------------------------------------------------
 	public Graph graph; //input graph
 	public EMstep innerMAP; //the maximum likelihood EM setup (abstract class to be instantiated)
 	public EMiterate outerMAP; //the maximum likelihood EM setup (outer-loop)
+	EMstep checkpoint; //snapshot of the most likely EM state (messages, marginals and parameters) for warm starts
 	public double[][] typeP; //edge block parameters for tuning purposes
 	double[] gNode; //node block parameters for tuning purposes
 	public double likelihood; //the maximum likelihood
 	public double likelihoodVanilla; //the maximum likelihood for vanilla model
+	public int threads; //size of the thread pool for concurrent restarts (1 runs them in sequence)
+	public boolean racing; //successive halving of the restarts instead of full runs for every candidate
+	public double survivors; //fraction of the candidates kept after each racing round
+	public boolean batched; //lockstep expectation steps for the tuning attempts (BPfastMU only), see BPbatchMU
+	public boolean spectral; //a single spectrally initialized run instead of the grid search in fit, see SpectralInit
+	public int batchSize; //number of nodes in each mini-batch of the stochastic variational EM
+	public double gridScale; //scale of the grid search values, for multi-graphs with edge rates above one (see Multilevel)
 	
 	// --- Constructors ---------------------------------------------------------- 
 	public MainFunction() {} //the empty constructor
@@ -39,6 +67,13 @@ public class MainFunction {
 	public MainFunction(String dir) {
 		likelihood = -Double.MAX_VALUE;
 		likelihoodVanilla = -Double.MAX_VALUE;
+		threads = Runtime.getRuntime().availableProcessors();
+		racing = false;
+		survivors = 0.5;
+		batched = false;
+		spectral = false;
+		batchSize = 1000;
+		gridScale = 1;
 		
 		FileReader input = null;
 		try {
@@ -68,7 +103,92 @@ public class MainFunction {
 		}
 	}
 	
+	/**
+	 * This constructor initializes internal parameters for fitting an existing graph (used by the bootstrap driver)
+	 * Ground truth block parameters are taken from the node labels, see groundTruth
+	 * @param g Graph
+	 * @param DC boolean
+	 */
+	public MainFunction(Graph g, boolean DC) {
+		this(g);
+		groundTruth(g, DC);
+	}
+	
+	/**
+	 * This constructor initializes internal parameters for fitting an existing graph, leaving the block parameters to the caller
+	 * @param g Graph
+	 */
+	public MainFunction(Graph g) {
+		likelihood = -Double.MAX_VALUE;
+		likelihoodVanilla = -Double.MAX_VALUE;
+		threads = 1; //parallelism is left to the caller
+		racing = false;
+		survivors = 0.5;
+		batched = false;
+		spectral = false;
+		batchSize = 1000;
+		gridScale = 1;
+		graph = g;
+		typeP = new double[graph.getNumType()][graph.getNumType()];
+		gNode = new double[graph.getNumType()];
+	}
+	
 	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method sets the tuning parameters to the ground truth block parameters of a labeled graph
+	 * @param g Graph
+	 * @param DC boolean
+	 */
+	public void groundTruth(Graph g, boolean DC) {
+		groundTruth(g.getNumNodes(), DC, g.getNumNodesType(), g.getNumEdgsType(), g.getNumDegreeType());
+	}
+	/**
+	 * This method sets the tuning parameters to the ground truth block parameters from precomputed block statistics
+	 * @param n int
+	 * @param DC boolean
+	 * @param typeNodeNum int[]
+	 * @param typeEdgeNum int[][]
+	 * @param typeDegreeNum double[][]
+	 */
+	public void groundTruth(int n, boolean DC, int[] typeNodeNum, int[][] typeEdgeNum, double[][] typeDegreeNum) {
+		for (int i=0; i<typeP.length; i++)
+			for (int j=0; j<typeP[i].length; j++) {
+				if (DC)
+					typeP[i][j] = typeDegreeNum[i][j] / typeNodeNum[i] / typeNodeNum[j];
+				else
+					typeP[i][j] = (double)typeEdgeNum[i][j] / typeNodeNum[i] / typeNodeNum[j];
+			}
+		for (int i=0; i<gNode.length; i++){
+			gNode[i] = (double) typeNodeNum[i] / n;
+		}
+	}
+	/**
+	 * This method bounds the tuning parameters away from zero (empty blocks or block pairs of an estimated assignment)
+	 * @param null
+	 */
+	public void bound() {
+		for (int i=0; i<typeP.length; i++) {
+			if (!(gNode[i] > 1e-6))
+				gNode[i] = 1e-6;
+			for (int j=0; j<typeP[i].length; j++)
+				if (!(typeP[i][j] > 1e-128))
+					typeP[i][j] = 1e-128;
+		}
+	}
+	/**
+	 * This method fits one block model to a graph, grid searching the parameters and then fine tuning them
+	 * @return the maximum likelihood double
+	 * @param g Graph
+	 * @param em EMstep (abstract class to be instantiated)
+	 */
+	public double fit(Graph g, EMstep em) {
+		if (spectral)
+			spectral(g, em); //start from the spectral block assignment
+		else
+			restart(g, em); //grid search parameters values for maximum likelihood
+		fineTune(g, em); //fine-grained search using minute perturbations
+		return likelihood;
+	}
 	/**
 	 * This method fits both the vanilla block model and degree corrected (DC) block model to a sample graph
 	 * Initial parameters are grid searched with an option to start around the ground truth for testing purposes
@@ -149,6 +269,7 @@ public class MainFunction {
 		likelihood = like; //update the most likely trackers
 		innerMAP = em;
 		outerMAP = new EMiterate(innerMAP, outer);
+		checkpoint = innerMAP.copy(); //warm start for later tuning
 	}
 	/**
 	 * This method passes manually specified parameters values to the EM framework and 
@@ -165,15 +286,17 @@ public class MainFunction {
 		likelihood = like; //update the most likely trackers
 		innerMAP = em;
 		outerMAP = new EMiterate(innerMAP, outer);
+		checkpoint = innerMAP.copy(); //warm start for later tuning
 	}
 	/**
 	 * This method does a grid search for parameters values based on the EM framework and 
 	 * calls the convergeEMgrid method which requires no specified parameter inputs
 	 * Use this method when there is no domain knowledge about the block structures
+	 * Each run works on its own copy of em, and the runs are spread over a pool of the configured size
 	 * @param g Graph
 	 * @param em EMstep (abstract class to be instantiated)
 	 */
-	public void restart(Graph g, EMstep em) {
+	public void restart(Graph g, final EMstep em) {
 		
 		double[] assort = new double[4]; //grid search coordinates
 		assort[0] = 0.0005;
@@ -182,66 +305,263 @@ public class MainFunction {
 		assort[3] = 0.3;
 		//assort[4] = 0.6;
 		likelihood = -Double.MAX_VALUE;
+		innerMAP = null;
+		checkpoint = null; //states of earlier graphs are not reused
 		
-		// The grid search
+		// The grid search, every run works on its own copy of em
+		List<Callable<Run>> tasks = new ArrayList<Callable<Run>>();
 		for (int i=0; i<assort.length; i++) { //try different initial assortativeness
 			for (int j=0; j<assort.length; j++) { //try different initial dis-assortativeness
 				for (int k=0; k<3; k++) { //multiple runs
-					System.out.println("restart "+i+j);
-					EMiterate outer = new EMiterate(em, assort[i], assort[j]); //instantiate an EMiterate according to em
-					double like = outer.convergeEMgrid();
-					if (like >= likelihood) { //higher likelihood found and update the trackers
-						innerMAP = em;
-						outerMAP = new EMiterate(innerMAP, outer);
-						likelihood = like;
+					final int a = i;
+					final int b = j;
+					final double assortA = assort[i] * gridScale;
+					final double assortB = assort[j] * gridScale;
+					tasks.add(new Callable<Run>() {
+						public Run call() {
+							System.out.println("restart "+a+b);
+							EMstep local = em.copy(); //independent messages and parameters
+							EMiterate outer = new EMiterate(local, assortA, assortB); //instantiate an EMiterate according to em
+							outer.initGrid();
+							return new Run(local, outer, -Double.MAX_VALUE);
+						}
+					});
+				}
+			}
+		}
+		// Reduce to the most likely run, in the grid order, runs that diverged to NaN are skipped
+		for (Run run : race(runAll(tasks), "restart")) {
+			if (!Double.isNaN(run.like) && run.like >= likelihood) { //higher likelihood found and update the trackers
+				innerMAP = run.em;
+				outerMAP = new EMiterate(innerMAP, run.outer);
+				likelihood = run.like;
+			}
+		}
+		if (innerMAP == null)
+			throw new IllegalStateException("no restart converged to a finite likelihood");
+		checkpoint = innerMAP.copy(); //converged state of the grid winner, for warm starts
+	}
+	/**
+	 * This method initializes EM from the Bethe Hessian spectral block assignment instead of a grid search,
+	 * seeding the node marginals and messages, with block parameters estimated from the assignment as in groundTruth
+	 * Use this method in place of restart when the block structure is detectable
+	 * @param g Graph
+	 * @param em EMstep (abstract class to be instantiated)
+	 */
+	public void spectral(Graph g, EMstep em) {
+		SpectralInit init = new SpectralInit(g);
+		groundTruth(g.getNumNodes(), em.degreeCorrect, init.getNumNodesType(), init.getNumEdgsType(), init.getNumDegreeType());
+		bound(); //empty spectral blocks or block pairs
+		EMstep local = em.copy(); //independent messages and parameters
+		local.seed(init.marginals(0.5));
+		EMiterate outer = new EMiterate(local, 0.1, 0.1); //instantiate an EMiterate according to em
+		outer.initEM(gNode, typeP); //pass the spectral parameters
+		likelihood = outer.advance(EMiterate.maxIterations, "spectral");
+		innerMAP = local; //update the most likely trackers
+		outerMAP = new EMiterate(innerMAP, outer);
+		checkpoint = innerMAP.copy(); //warm start for later tuning
+	}
+	/**
+	 * This method passes manually specified parameters values to the EM framework as manual does,
+	 * but calls the convergeSVI method which updates the parameters after every mini-batch of nodes
+	 * Use this method for graphs too large for full expectation steps, the number of node visits matches
+	 * the iteration bound of EMiterate with one sweep per iteration
+	 * @param g Graph
+	 * @param em BPfastMU (or a child class, the engines with a stochastic mode)
+	 */
+	public void stochastic(Graph g, BPfastMU em) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		EMiterate outer = new EMiterate(em, 0.1, 0.1); //instantiate an EMiterate according to em
+		outer.initEM(gNode, typeP); //passes the parameters
+		int bound = (int) java.lang.Math.ceil((double) EMiterate.maxIterations * g.getNumNodes() / batchSize);
+		double like = outer.convergeSVI(em, batchSize, bound, 10.0, 0.6); //Robbins-Monro schedule (t+10)^-0.6, damped early steps
+		likelihood = like; //update the most likely trackers
+		innerMAP = em;
+		outerMAP = new EMiterate(innerMAP, outer);
+		checkpoint = innerMAP.copy(); //warm start for later tuning
+	}
+	/**
+	 * This method iterates the initialized candidate runs up to the iteration bound of EMiterate
+	 * With racing on, every candidate gets one EM iteration, the least likely candidates are dropped,
+	 * and the budget of the survivors is doubled until the bound is reached (successive halving)
+	 * @return the surviving runs in the original order List<Run>
+	 * @param candidates List<Run>
+	 * @param tag String
+	 */
+	List<Run> race(List<Run> candidates, final String tag) {
+		List<Run> alive = new ArrayList<Run>(candidates);
+		int budget = EMiterate.maxIterations; //full budget without racing
+		if (racing)
+			budget = 1;
+		while (true) {
+			List<Callable<Run>> tasks = new ArrayList<Callable<Run>>();
+			final int bound = budget;
+			for (final Run run : alive)
+				tasks.add(new Callable<Run>() {
+					public Run call() {
+						run.like = run.outer.advance(bound, tag); //continue the run to the current budget
+						return run;
 					}
+				});
+			alive = runAll(tasks);
+			if (budget >= EMiterate.maxIterations || alive.size() <= 1)
+				break;
+			// Drop the least likely candidates, keeping the original order of the survivors
+			double[] likes = new double[alive.size()];
+			for (int i=0; i<likes.length; i++)
+				likes[i] = Double.isNaN(alive.get(i).like) ? -Double.MAX_VALUE : alive.get(i).like; //diverged runs rank last
+			Arrays.sort(likes);
+			int keep = Math.max(1, (int) Math.ceil(alive.size() * survivors));
+			double cut = likes[likes.length - keep]; //likelihood of the last survivor
+			List<Run> next = new ArrayList<Run>();
+			for (Run run : alive)
+				if (run.like >= cut && next.size() < keep)
+					next.add(run);
+			System.out.println("EM "+tag+" racing kept "+next.size()+" of "+alive.size()+" runs after "+budget+" iterations");
+			alive = next;
+			budget = Math.min(budget * 2, EMiterate.maxIterations); //double the budget of the survivors
+		}
+		return alive;
+	}
+	/**
+	 * This method iterates the initialized tuning attempts up to the iteration bound of EMiterate
+	 * With batched on and dense BPfastMU attempts, the expectation steps of all attempts run in lockstep
+	 * over a single pass of the graph per sweep (see BPbatchMU), otherwise the attempts are raced
+	 * @return the finished runs in the original order List<Run>
+	 * @param candidates List<Run>
+	 * @param tag String
+	 */
+	List<Run> evaluate(List<Run> candidates, String tag) {
+		boolean dense = batched && !candidates.isEmpty();
+		for (Run run : candidates)
+			dense = dense && run.em.getClass() == BPfastMU.class;
+		if (!dense)
+			return race(candidates, tag);
+		BPfastMU[] views = new BPfastMU[candidates.size()];
+		EMiterate[] outers = new EMiterate[candidates.size()];
+		for (int b=0; b<views.length; b++) {
+			views[b] = (BPfastMU) candidates.get(b).em;
+			outers[b] = candidates.get(b).outer;
+		}
+		EMiterate.advance(outers, new BPbatchMU(views), EMiterate.maxIterations, tag);
+		for (Run run : candidates)
+			run.like = run.em.likelihood;
+		return candidates;
+	}
+	/**
+	 * This method runs independent EM tasks on a fixed thread pool of the configured size
+	 * Runs are returned in the submission order, failed runs are reported and skipped
+	 * @return the finished runs List<Run>
+	 * @param tasks List<Callable<Run>>
+	 */
+	List<Run> runAll(List<Callable<Run>> tasks) {
+		List<Run> runs = new ArrayList<Run>();
+		if (threads <= 1) { //sequential runs in the calling thread
+			for (Callable<Run> task : tasks) {
+				try {
+					runs.add(task.call());
+				}
+				catch (Exception ex) {
+					ex.printStackTrace();
 				}
 			}
+			return runs;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Run> future : pool.invokeAll(tasks)) {
+				try {
+					runs.add(future.get());
+				}
+				catch (ExecutionException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			ex.printStackTrace();
+		}
+		finally {
+			pool.shutdown();
 		}
+		return runs;
 	}
 	/**
 	 * This method changes both node and edge block parameters and explores the space beyond the most likely result
-	 * calls the convergeEM method which does change parameters throughout the EM iterations
+	 * initializes the attempts as the convergeEM method, which does change parameters throughout the EM iterations
+	 * Every attempt is warm started from the checkpoint of the most likely state
 	 * Use this method after restart or manual(Fix) for parameter space exploration
 	 * @param g Graph
 	 * @param em EMstep (abstract class to be instantiated)
 	 */
-	public void tune(Graph g, EMstep em) {
+	public void tune(Graph g, final EMstep em) {
 		
+		List<Callable<Run>> tasks = new ArrayList<Callable<Run>>();
 		for (int i=0; i<10; i++) { //number of attempts
-			double[][] P = new double[g.getNumType()][g.getNumType()];
-			double[] M = new double[g.getNumType()];
-			P = exploreP(innerMAP.typeP, true); //targeted new edge parameters
-			M = exploreM(innerMAP.gNode); //targeted new note parameters
-			EMiterate outer = new EMiterate(em, 0.1, 0.1); //instantiate an EMiterate according to em
-			double like = outer.convergeEM(M, P); //pass the targeted parameters
-			if (like > likelihood) { //higher likelihood found and update the trackers
-				innerMAP = em;
-				outerMAP = new EMiterate(innerMAP, outer);
-				likelihood = like;
+			final double[][] P = exploreP(innerMAP.typeP, true); //targeted new edge parameters
+			final double[] M = exploreM(innerMAP.gNode); //targeted new note parameters
+			tasks.add(new Callable<Run>() {
+				public Run call() {
+					EMstep local = warmStart(em); //independent copy of the most likely messages and parameters
+					EMiterate outer = new EMiterate(local, 0.1, 0.1); //instantiate an EMiterate according to em
+					outer.initEM(M, P); //pass the targeted parameters
+					return new Run(local, outer, -Double.MAX_VALUE);
+				}
+			});
+		}
+		for (Run run : evaluate(runAll(tasks), "tune")) {
+			if (run.like > likelihood) { //higher likelihood found and update the trackers
+				innerMAP = run.em;
+				outerMAP = new EMiterate(innerMAP, run.outer);
+				likelihood = run.like;
 			}
 		}
+		checkpoint = innerMAP.copy(); //keep the most likely state for later tuning
 	}
 	/**
 	 * This method changes only edge block parameters and explores the space around the most likely result
-	 * calls the convergeEM method which does change parameters throughout the EM iterations
+	 * initializes the attempts as the convergeEM method, which does change parameters throughout the EM iterations
+	 * Every attempt is warm started from the checkpoint of the most likely state
 	 * Use this method last for fine-grained parameter space exploration around the current maximum
 	 * @param g Graph
 	 * @param em EMstep (abstract class to be instantiated)
 	 */
-	public void fineTune(Graph g, EMstep em) {
+	public void fineTune(Graph g, final EMstep em) {
 		
+		List<Callable<Run>> tasks = new ArrayList<Callable<Run>>();
+		final double[] M = innerMAP.gNode.clone(); //existing node parameters
 		for (int i=0; i<5; i++) { //number of attempts
-			double[][] P = new double[g.getNumType()][g.getNumType()];
-			P = exploreP(innerMAP.typeP, false); //targeted new edge parameters (fine-grained)
-			EMiterate outer = new EMiterate(em, 0.1, 0.1); //instantiate an EMiterate according to em
-			double like = outer.convergeEM(em.gNode, P); //pass the targeted edge parameters with existing node parameters
-			if (like > likelihood) { //higher likelihood found and update the trackers
-				innerMAP = em;
-				outerMAP = new EMiterate(innerMAP, outer);
-				likelihood = like;
+			final double[][] P = exploreP(innerMAP.typeP, false); //targeted new edge parameters (fine-grained)
+			tasks.add(new Callable<Run>() {
+				public Run call() {
+					EMstep local = warmStart(em); //independent copy of the most likely messages and parameters
+					EMiterate outer = new EMiterate(local, 0.1, 0.1); //instantiate an EMiterate according to em
+					outer.initEM(M, P); //pass the targeted edge parameters with existing node parameters
+					return new Run(local, outer, -Double.MAX_VALUE);
+				}
+			});
+		}
+		for (Run run : evaluate(runAll(tasks), "tune")) {
+			if (run.like > likelihood) { //higher likelihood found and update the trackers
+				innerMAP = run.em;
+				outerMAP = new EMiterate(innerMAP, run.outer);
+				likelihood = run.like;
 			}
 		}
+		checkpoint = innerMAP.copy(); //keep the most likely state for later tuning
+	}
+	/**
+	 * This method gives the starting state of a tuning attempt, an independent copy of the checkpoint
+	 * so that the attempt inherits the converged messages and marginals, or a copy of em without a checkpoint
+	 * @return the starting EMstep
+	 * @param em EMstep (abstract class to be instantiated)
+	 */
+	EMstep warmStart(EMstep em) {
+		if (checkpoint == null)
+			return em.copy();
+		return checkpoint.copy();
 	}
 	/**
 	 * This is the method that explores the node parameter space randomly
@@ -327,13 +647,16 @@ public class MainFunction {
 		
 		MainFunction test = new MainFunction(input); //create a MainFunction object for likelihood ratio tests
 		Long start = System.currentTimeMillis(); //timer starts
-		for (int n=0; n<10; n++) { //set number of test samples
-			print.print("graph " + n + ":\t"); //indexing the random graphs for tests
-			EMstep bpFast = new BPfastMU(test.graph, false, true, test.typeP, test.gNode); //choose a specific EM algorithm by instantiating a child class
-			double ratio = test.likeRatio(print, bpFast); //call the likeRatio method
-			print.print("ratio:" + ratio); //print the returned log-likelihood difference
-			print.println();
-		}
+		//Sequential version, one likelihood ratio sample at a time
+		//for (int n=0; n<10; n++) { //set number of test samples
+		//	print.print("graph " + n + ":\t"); //indexing the random graphs for tests
+		//	EMstep bpFast = new BPfastMU(test.graph, false, true, test.typeP, test.gNode); //choose a specific EM algorithm by instantiating a child class
+		//	double ratio = test.likeRatio(print, bpFast); //call the likeRatio method
+		//	print.print("ratio:" + ratio); //print the returned log-likelihood difference
+		//	print.println();
+		//}
+		Bootstrap boot = new Bootstrap(test.graph, test.threads); //parametric bootstrap on a thread pool
+		boot.run(print, 10); //set number of test samples, lines are printed as the samples finish
 		print.println("time:" + (System.currentTimeMillis() - start)); //timer stops and print the time used
 	}
 }
\ No newline at end of file
@@ -0,0 +1,318 @@
+package variationalEM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+
+/**
+ * This class implements a multi-chain runner over the MCMC samplers, with online convergence diagnostics.
+ * C independent chains of a sampler run concurrently, one per thread, each with its own random initial classification.
+ * After a few burn-in sweeps every chain records, per collecting sweep, its log-likelihood and its block sizes in decreasing order
+ * (label-invariant summaries, since the block labels are not comparable across chains).
+ * Every few sweeps the threads meet at a phaser, whose advance action computes the split potential scale reduction (R-hat)
+ * and the effective sample size (ESS) of every summary over all chains, and stops all chains once
+ * the largest R-hat is below the threshold and the smallest ESS is above the target, or once the sweeps of the sampler run out.
+ * The marginals, block parameters and likelihood are taken from the chain with the best likelihood.
+ * A child class extends the abstract EMstep class, wrapping any Sampler (MCMC or MCMCBayesian) through its hooks
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+public class MultiChain extends EMstep {
+	// --- Instance Variables ----------------------------------------------------
+	Sampler[] chains; //the independent chains
+	int best; //the chain with the best likelihood in the last E-step
+	public int burnIn; //sweeps before collecting statistics
+	public int interval; //sweeps between diagnostics
+	public double threshold; //largest split R-hat accepted
+	public double target; //smallest effective sample size accepted
+	double[][][] trace; //summaries of each chain at each collecting sweep, [chain][summary][sweep], grown as the sweeps are recorded
+	int collected; //collecting sweeps done by every chain so far
+	boolean passed; //diagnostics passed in the last E-step
+	public double rHat; //largest split R-hat over the summaries at the last diagnostics
+	public double ess; //smallest effective sample size over the summaries at the last diagnostics
+
+	// --- Constructors ----------------------------------------------------------
+	public MultiChain() {} //the empty constructor
+
+	/**
+	 * This constructor creates a multi-chain runner with independent chains of the sampler, at its inverse temperature
+	 * The block parameters are shared with the first chain
+	 * @param sampler Sampler
+	 * @param size int
+	 */
+	public MultiChain(Sampler sampler, int size) {
+		graph = sampler.graph;
+		degreeCorrect = sampler.degreeCorrect;
+		gSizeCorrect = sampler.gSizeCorrect;
+		fixEstep = false;
+		steps = 0;
+		epsilon = sampler.epsilon;
+		chains = new Sampler[size];
+		for (int c=0; c<chains.length; c++)
+			chains[c] = sampler.replica(sampler.invTemp());
+		typeP = chains[0].typeP;
+		gNode = chains[0].gNode;
+		burnIn = 5;
+		interval = 10;
+		threshold = 1.01;
+		target = 100;
+		likelihood = -Double.MAX_VALUE;
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent copy of the multi-chain runner, with new chains
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		MultiChain copy = new MultiChain(chains[best], chains.length);
+		copy.burnIn = burnIn;
+		copy.interval = interval;
+		copy.threshold = threshold;
+		copy.target = target;
+		return copy;
+	}
+
+	/**
+	 * This method updates the block parameters of all chains
+	 * A polymorphic extension of the method update in the parent class
+	 * @param p double[][]
+	 * @param n double[]
+	 */
+	public void update(double[][] p, double[] n) {
+		for (int c=0; c<chains.length; c++)
+			chains[c].update(p, n);
+		steps = 0;
+		likelihood = 0;
+	}
+
+	/**
+	 * This method runs the chains concurrently, checking the diagnostics at the phaser every interval sweeps,
+	 * until they pass or the collecting sweeps of the sampler run out
+	 * A polymorphic extension of the abstract method convergeExpectation in parent class
+	 * @return block marginal vectors for all nodes (of the chain with the best likelihood)
+	 * @param null
+	 */
+	public double[][] convergeExpectation() {
+		final int count = chains[0].start();
+		for (int c=1; c<chains.length; c++)
+			chains[c].start();
+		trace = new double[chains.length][][];
+		collected = 0;
+		passed = false;
+		rHat = Double.POSITIVE_INFINITY;
+		ess = 0;
+
+		final Phaser phaser = new Phaser(chains.length) {
+			protected boolean onAdvance(int phase, int parties) {
+				if (parties == 0) //a chain failed or ran out of sweeps
+					return true;
+				collected = java.lang.Math.max((phase+1) * interval - burnIn, 0);
+				passed = converged();
+				return passed;
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(chains.length);
+		List<Future<?>> runs = new ArrayList<Future<?>>();
+		for (int c=0; c<chains.length; c++) {
+			final int index = c;
+			runs.add(pool.submit(new Runnable() {
+				public void run() {
+					try {
+						for (int s=0; s<burnIn+count; s++) {
+							chains[index].sweep(s >= burnIn);
+							if (s >= burnIn) {
+								double[] stats = chains[index].chainStatistics();
+								int t = s - burnIn; //recorded sweep
+								if (trace[index] == null)
+									trace[index] = new double[stats.length][java.lang.Math.min(interval, count)];
+								for (int m=0; m<stats.length; m++) {
+									if (t == trace[index][m].length) //full, doubles up to the sweeps of the sampler
+										trace[index][m] = Arrays.copyOf(trace[index][m], java.lang.Math.min(2 * t, count));
+									trace[index][m][t] = stats[m];
+								}
+							}
+							if ((s+1) % interval == 0) {
+								phaser.arriveAndAwaitAdvance();
+								if (phaser.isTerminated()) //diagnostics passed
+									break;
+							}
+						}
+					}
+					finally {
+						phaser.arriveAndDeregister(); //releases the other chains if this one fails
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> run : runs)
+				run.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			ex.printStackTrace();
+		}
+		catch (ExecutionException ex) {
+			ex.printStackTrace();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		if (!passed) //ran out of sweeps
+			collected = count;
+
+		double[][] marginal = null;
+		likelihood = -Double.MAX_VALUE;
+		steps = 0;
+		for (int c=0; c<chains.length; c++) {
+			double[][] m = chains[c].finish(collected);
+			steps += chains[c].steps;
+			if (chains[c].likelihood > likelihood) {
+				likelihood = chains[c].likelihood;
+				marginal = m;
+				best = c;
+			}
+		}
+		System.out.println("multi-chain diagnostics: " + collected + " sweeps, R-hat " + rHat + ", ESS " + ess);
+		return marginal;
+	}
+
+	/**
+	 * This method computes the diagnostics over the collected sweeps of all chains
+	 * Called by the phaser while all chains wait
+	 * @return true if the largest R-hat and the smallest ESS pass boolean
+	 * @param null
+	 */
+	boolean converged() {
+		if (collected < 8) //at least 4 sweeps in each half of a chain
+			return false;
+		rHat = 0;
+		for (int m=0; m<trace[0].length; m++)
+			rHat = java.lang.Math.max(rHat, splitRhat(m));
+		if (rHat > threshold)
+			return false;
+		ess = Double.POSITIVE_INFINITY; //only computed once the chains agree
+		for (int m=0; m<trace[0].length; m++)
+			ess = java.lang.Math.min(ess, effectiveSize(m));
+		return ess >= target;
+	}
+
+	/**
+	 * This method returns the variances of a summary within and between the halves of the chains
+	 * Each chain is split in two halves, so a drift within a chain also shows up between the halves
+	 * @return the mean variance within halves W, and the pooled variance estimate var+ double[]
+	 * @param m int
+	 */
+	double[] variances(int m) {
+		int n = collected / 2; //length of each half
+		int halves = 2 * chains.length;
+		double[] mean = new double[halves];
+		double within = 0;
+		double grand = 0;
+		for (int h=0; h<halves; h++) {
+			double[] x = trace[h/2][m];
+			int from = (h%2) * (collected - n); //the second half ends at the last sweep
+			for (int t=from; t<from+n; t++)
+				mean[h] += x[t];
+			mean[h] /= n;
+			grand += mean[h] / halves;
+			for (int t=from; t<from+n; t++)
+				within += (x[t]-mean[h]) * (x[t]-mean[h]) / (n-1) / halves;
+		}
+		double between = 0;
+		for (int h=0; h<halves; h++)
+			between += (mean[h]-grand) * (mean[h]-grand) * n / (halves-1);
+		double[] var = {within, (n-1.0)/n * within + between/n};
+		return var;
+	}
+
+	/**
+	 * This method returns the split R-hat of a summary over all chains
+	 * Constant summaries (e.g. a block size that never changes) pass
+	 * @return split R-hat double
+	 * @param m int
+	 */
+	double splitRhat(int m) {
+		double[] var = variances(m);
+		if (var[0] <= 0)
+			return (var[1] <= 0) ? 1 : Double.POSITIVE_INFINITY;
+		return java.lang.Math.sqrt(var[1] / var[0]);
+	}
+
+	/**
+	 * This method returns the effective sample size of a summary over all chains,
+	 * from the autocorrelations combined across the split chains and truncated at the first negative pair sum (Geyer's initial positive sequence)
+	 * @return effective sample size double
+	 * @param m int
+	 */
+	double effectiveSize(int m) {
+		int n = collected / 2;
+		int halves = 2 * chains.length;
+		double[] var = variances(m);
+		if (var[1] <= 0) //constant summary
+			return halves * n;
+		double[] mean = new double[halves];
+		for (int h=0; h<halves; h++) {
+			int from = (h%2) * (collected - n);
+			for (int t=from; t<from+n; t++)
+				mean[h] += trace[h/2][m][t] / n;
+		}
+		double tau = -1; //integrated autocorrelation time
+		for (int lag=0; lag+1<n; lag+=2) {
+			double pair = rho(m, lag, n, mean, var) + rho(m, lag+1, n, mean, var);
+			if (pair <= 0)
+				break;
+			tau += 2 * pair;
+		}
+		return halves * n / java.lang.Math.max(tau, 1.0 / java.lang.Math.log10(halves * n)); //bounded as in Stan
+	}
+
+	/**
+	 * This method returns the autocorrelation of a summary at a lag, combined across the split chains
+	 * @return autocorrelation double
+	 * @param m int
+	 * @param lag int
+	 * @param n int
+	 * @param mean double[]
+	 * @param var double[]
+	 */
+	double rho(int m, int lag, int n, double[] mean, double[] var) {
+		double autocov = 0;
+		for (int h=0; h<mean.length; h++) {
+			double[] x = trace[h/2][m];
+			int from = (h%2) * (collected - n);
+			for (int t=from; t+lag<from+n; t++)
+				autocov += (x[t]-mean[h]) * (x[t+lag]-mean[h]) / n / mean.length;
+		}
+		return 1 - (var[0] - autocov) / var[1];
+	}
+
+	/**
+	 * This method implements the M-step on the chain with the best likelihood, and passes the new block parameters to the other chains
+	 * A polymorphic extension of the abstract method mStep in the parent class
+	 * @return change in parameter values double
+	 * @param marginals double[]
+	 * @param fix boolean
+	 */
+	public double mStep(double[] marginals, boolean fix) {
+		double delta = chains[best].mStep(marginals, fix);
+		for (int c=0; c<chains.length; c++)
+			if (c != best)
+				chains[c].update(chains[best].typeP, chains[best].gNode);
+		typeP = chains[best].typeP;
+		gNode = chains[best].gNode;
+		likelihood = chains[best].likelihood;
+		return delta;
+	}
+
+}
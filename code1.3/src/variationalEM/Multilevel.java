@@ -0,0 +1,216 @@
+package variationalEM;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import graphTools.Graph;
+
+/**
+ * This class implements the multilevel coarsen-fit-refine pipeline of the variational EM framework for large graphs.
+ * The input graph is coarsened by heavy-edge matching, with aggregated multi-edge counts, down to a few thousand supernodes
+ * (or until the coarse graph gets too dense for BP, whose Bethe approximation needs sparse, locally tree-like graphs),
+ * the block model is fitted on the coarsest graph with the existing EM machinery (see MainFunction.fit),
+ * and the marginals are projected back level by level, refined with a few EM iterations at each level.
+ * The EM implementation can be changed by overriding the engine method.
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+public class Multilevel {
+	// --- Instance Variables ----------------------------------------------------
+	public List<Graph> levels; //the graphs from the input (level 0) to the coarsest
+	public List<int[]> maps; //supernode of each vertex, from each level to the next coarser one
+	public boolean degreeCorrect; //flag for the degree corrected model
+	public boolean gSizeCorrect; //flag for group size correction in model
+	public int coarsest; //number of supernodes at which coarsening stops
+	public double maxDensity; //largest fraction of linked supernode pairs on a coarse graph
+	public int refinements; //EM iterations spent refining each finer level
+	public int threads; //size of the thread pool for the restarts on the coarsest graph
+	public boolean spectral; //spectral initialization instead of the restarts on the coarsest graph
+	public EMstep innerMAP; //the refined EM setup on the input graph
+	public EMiterate outerMAP; //the refined EM setup on the input graph (outer-loop)
+	public double likelihood; //the likelihood on the input graph
+
+	// --- Constructors ----------------------------------------------------------
+	public Multilevel() {} //the empty constructor
+
+	/**
+	 * This constructor initializes a multilevel driver for a graph and a model
+	 * @param g Graph
+	 * @param DC boolean
+	 * @param gSize boolean
+	 */
+	public Multilevel(Graph g, boolean DC, boolean gSize) {
+		levels = new ArrayList<Graph>();
+		maps = new ArrayList<int[]>();
+		levels.add(g);
+		degreeCorrect = DC;
+		gSizeCorrect = gSize;
+		coarsest = 2000;
+		maxDensity = 0.25;
+		refinements = 2;
+		threads = Runtime.getRuntime().availableProcessors();
+		spectral = false;
+		likelihood = -Double.MAX_VALUE;
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method instantiates the EM algorithm used at every level
+	 * Override it to employ a different EM implementation
+	 * @return the EMstep to be fitted
+	 * @param g Graph
+	 * @param typeP double[][]
+	 * @param gNode double[]
+	 */
+	protected EMstep engine(Graph g, double[][] typeP, double[] gNode) {
+		return new BPfastMU(g, degreeCorrect, gSizeCorrect, typeP, gNode);
+	}
+
+	/**
+	 * This method coarsens the graph by heavy-edge matching until the number of supernodes drops below the bound,
+	 * or until the matching stops shrinking the graph, or the coarse graph gets denser than maxDensity
+	 * @param null
+	 */
+	public void coarsen() {
+		Graph g = levels.get(levels.size()-1);
+		while (g.getNumNodes() > coarsest) {
+			int[] map = g.heavyEdgeMatching();
+			Graph coarse = g.coarsen(map);
+			if (coarse.getNumNodes() > 0.95 * g.getNumNodes()) //matching stalled
+				break;
+			if (density(coarse) > maxDensity) //too dense for BP
+				break;
+			maps.add(map);
+			levels.add(coarse);
+			g = coarse;
+			System.out.println("coarsening level "+(levels.size()-1)+": "+g.getNumNodes()+" supernodes, "+g.getNumEdgs()+" edges");
+		}
+	}
+
+	/**
+	 * This method runs the pipeline: coarsening, fitting the coarsest graph, then projecting and refining level by level
+	 * @return the likelihood on the input graph double
+	 * @param null
+	 */
+	public double run() {
+		coarsen();
+
+		// Fit the coarsest graph with the existing EM machinery
+		Graph g = levels.get(levels.size()-1);
+		MainFunction coarse = new MainFunction(g);
+		coarse.threads = threads;
+		coarse.spectral = spectral;
+		if (!degreeCorrect) //vanilla edge rates grow with the square of the supernode sizes (DC rates are scaled by the degrees)
+			coarse.gridScale = java.lang.Math.pow((double) levels.get(0).getNumNodes() / g.getNumNodes(), 2);
+		coarse.fit(g, engine(g, coarse.typeP, coarse.gNode));
+		innerMAP = coarse.innerMAP;
+		outerMAP = coarse.outerMAP;
+		likelihood = coarse.likelihood;
+		double[][] marginal = outerMAP.marginal;
+
+		// Project the marginals down and refine
+		for (int level=levels.size()-2; level>=0; level--) {
+			marginal = project(marginal, maps.get(level));
+			refine(levels.get(level), marginal);
+			marginal = outerMAP.marginal;
+			System.out.println("refined level "+level+": likelihood "+likelihood);
+		}
+		return likelihood;
+	}
+
+	/**
+	 * This method returns the fraction of the vertex pairs linked by an edge (in either direction)
+	 * @return the density double
+	 * @param g Graph
+	 */
+	double density(Graph g) {
+		if (g.getNumNodes() < 2)
+			return 1;
+		double links = 0;
+		for (int i=0; i<g.getNumNodes(); i++)
+			links += g.vList[i].targets.size();
+		if (g.isDirected())
+			links = links * 2; //targets hold one direction only
+		return links / g.getNumNodes() / (g.getNumNodes()-1);
+	}
+
+	/**
+	 * This method measures the agreement of the fitted blocks with the true types of the input graph,
+	 * each block is matched with the type most of its vertices (hard block assignment) belong to
+	 * @return the fraction of vertices in agreement double
+	 * @param null
+	 */
+	public double accuracy() {
+		Graph g = levels.get(0);
+		int[][] count = new int[g.getNumType()][g.getNumTrueType()];
+		for (int i=0; i<g.getNumNodes(); i++)
+			count[innerMAP.findMax(outerMAP.marginal[i])][g.vList[i].type]++;
+		int agree = 0;
+		for (int k=0; k<count.length; k++) {
+			int best = 0;
+			for (int t=0; t<count[k].length; t++)
+				best = java.lang.Math.max(best, count[k][t]);
+			agree += best;
+		}
+		return (double) agree / g.getNumNodes();
+	}
+
+	/**
+	 * This method projects the marginals of the supernodes onto their member vertices
+	 * @return the marginals on the finer level double[][]
+	 * @param coarse double[][]
+	 * @param map int[]
+	 */
+	double[][] project(double[][] coarse, int[] map) {
+		double[][] fine = new double[map.length][];
+		for (int i=0; i<map.length; i++)
+			fine[i] = coarse[map[i]].clone();
+		return fine;
+	}
+
+	/**
+	 * This method refines projected marginals on a finer graph: the block parameters are re-estimated from the
+	 * hard assignment of the marginals (as MainFunction.groundTruth), the messages are seeded with the marginals,
+	 * and a few EM iterations are run
+	 * @param g Graph
+	 * @param marginal double[][]
+	 */
+	void refine(Graph g, double[][] marginal) {
+		int[] labels = new int[g.getNumNodes()];
+		for (int i=0; i<labels.length; i++)
+			labels[i] = innerMAP.findMax(marginal[i]); //for hard block assignment
+		MainFunction fine = new MainFunction(g);
+		fine.groundTruth(g.getNumNodes(), degreeCorrect, g.getNumNodesType(labels), g.getNumEdgsType(labels), g.getNumDegreeType(labels));
+		fine.bound(); //empty blocks or block pairs
+
+		EMstep em = engine(g, fine.typeP, fine.gNode);
+		em.seed(marginal);
+		EMiterate outer = new EMiterate(em, 0.1, 0.1); //instantiate an EMiterate according to em
+		outer.initEM(fine.gNode, fine.typeP);
+		likelihood = outer.advance(refinements, "refine");
+		innerMAP = em;
+		outerMAP = outer;
+	}
+
+	/**
+	 * This main function checks the pipeline end to end on a test graph with planted blocks:
+	 * the refined blocks have to agree with the planted ones clearly better than chance
+	 * @param args String[]
+	 */
+	public static void main ( String[] args ) throws FileNotFoundException {
+		String dir = System.getProperty("user.dir") + "/data/test/"; //data folder
+		Graph g = new Graph(new FileReader(dir + "test1000g5.gml"), false); //5 planted blocks
+		Multilevel test = new Multilevel(g, false, true);
+		test.coarsest = 100; //coarsening stops on density first
+		test.run();
+		double chance = 1.0 / g.getNumTrueType();
+		double accuracy = test.accuracy();
+		System.out.println("multilevel accuracy: " + accuracy + " (chance " + chance + ")");
+		if (!(accuracy > 2 * chance))
+			throw new IllegalStateException("multilevel fit no better than chance: " + accuracy);
+	}
+
+}
@@ -0,0 +1,213 @@
+package variationalEM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+
+/**
+ * This class implements parallel tempering (replica exchange) over the MCMC samplers.
+ * R replicas of a sampler run concurrently, one per thread, each with its own classification, at a ladder of inverse temperatures
+ * from the target (ladder[0], usually 1, the only replica collecting statistics) down to the hottest.
+ * Every few sweeps the threads meet at a phaser, whose advance action lets the neighboring replicas swap their classifications
+ * with probability min(1, exp((beta_r - beta_r+1)(L_r+1 - L_r))), alternating even and odd pairs,
+ * while the other threads wait, so the chains themselves need no locks.
+ * Swap acceptance rates are reported after each E-step for tuning the ladder.
+ * A child class extends the abstract EMstep class, wrapping any Sampler (MCMC or MCMCBayesian) through its hooks
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+public class ReplicaExchange extends EMstep {
+	// --- Instance Variables ----------------------------------------------------
+	Sampler[] replicas; //the chains, from the target temperature to the hottest
+	double[] ladder; //inverse temperature of each replica, decreasing
+	public int burnIn; //sweeps before collecting statistics
+	public int interval; //sweeps between swap attempts
+	int[] attempts; //swap attempts between replicas r and r+1 in the last E-step
+	int[] accepts; //accepted swaps between replicas r and r+1 in the last E-step
+	Random random; //for swap acceptance, only used in the advance action of the phaser
+
+	// --- Constructors ----------------------------------------------------------
+	public ReplicaExchange() {} //the empty constructor
+
+	/**
+	 * This constructor creates a replica exchange sampler with one independent chain of the sampler per inverse temperature
+	 * The block parameters are shared with the target replica
+	 * @param sampler Sampler
+	 * @param betas double[]
+	 */
+	public ReplicaExchange(Sampler sampler, double[] betas) {
+		graph = sampler.graph;
+		degreeCorrect = sampler.degreeCorrect;
+		gSizeCorrect = sampler.gSizeCorrect;
+		fixEstep = false;
+		steps = 0;
+		epsilon = sampler.epsilon;
+		ladder = betas.clone();
+		replicas = new Sampler[ladder.length];
+		for (int r=0; r<replicas.length; r++)
+			replicas[r] = sampler.replica(ladder[r]);
+		typeP = replicas[0].typeP;
+		gNode = replicas[0].gNode;
+		burnIn = 5;
+		interval = 1;
+		attempts = new int[java.lang.Math.max(replicas.length-1, 0)];
+		accepts = new int[attempts.length];
+		random = new Random(replicas[0].seed()); //swap decisions follow the seeded target replica
+		likelihood = -Double.MAX_VALUE;
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method returns a geometric ladder of inverse temperatures from 1 down to the hottest
+	 * @return the ladder double[]
+	 * @param size int
+	 * @param hottest double
+	 */
+	public static double[] geometric(int size, double hottest) {
+		double[] betas = new double[size];
+		for (int r=0; r<size; r++)
+			betas[r] = (size == 1) ? 1 : java.lang.Math.pow(hottest, (double) r / (size-1));
+		return betas;
+	}
+
+	/**
+	 * This method creates an independent copy of the replica exchange sampler, with new chains on the same ladder
+	 * A polymorphic extension of the abstract method copy in the parent class
+	 * @return the copy EMstep
+	 * @param null
+	 */
+	public EMstep copy() {
+		ReplicaExchange copy = new ReplicaExchange(replicas[0], ladder);
+		copy.burnIn = burnIn;
+		copy.interval = interval;
+		return copy;
+	}
+
+	/**
+	 * This method updates the block parameters of all replicas
+	 * A polymorphic extension of the method update in the parent class
+	 * @param p double[][]
+	 * @param n double[]
+	 */
+	public void update(double[][] p, double[] n) {
+		for (int r=0; r<replicas.length; r++)
+			replicas[r].update(p, n);
+		steps = 0;
+		likelihood = 0;
+	}
+
+	/**
+	 * This method runs the replicas concurrently for the burn-in and the collecting sweeps of the target sampler,
+	 * attempting swaps at the phaser every interval sweeps
+	 * A polymorphic extension of the abstract method convergeExpectation in parent class
+	 * @return block marginal vectors for all nodes (collected at the target temperature)
+	 * @param null
+	 */
+	public double[][] convergeExpectation() {
+		final int collected = replicas[0].start();
+		final int total = burnIn + collected;
+		for (int r=1; r<replicas.length; r++)
+			replicas[r].start();
+		Arrays.fill(attempts, 0);
+		Arrays.fill(accepts, 0);
+
+		final Phaser phaser = new Phaser(replicas.length) {
+			protected boolean onAdvance(int phase, int parties) {
+				if (parties > 0) //all replicas are waiting
+					swap(phase);
+				return parties == 0;
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(replicas.length);
+		List<Future<?>> runs = new ArrayList<Future<?>>();
+		for (int r=0; r<replicas.length; r++) {
+			final int index = r;
+			runs.add(pool.submit(new Runnable() {
+				public void run() {
+					try {
+						for (int s=0; s<total; s++) {
+							replicas[index].sweep(index == 0 && s >= burnIn); //only the target replica collects statistics
+							if ((s+1) % interval == 0)
+								phaser.arriveAndAwaitAdvance();
+						}
+					}
+					finally {
+						phaser.arriveAndDeregister(); //releases the other replicas if this one fails
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> run : runs)
+				run.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			ex.printStackTrace();
+		}
+		catch (ExecutionException ex) {
+			ex.printStackTrace();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		double[][] marginal = replicas[0].finish(collected);
+		likelihood = replicas[0].likelihood;
+		steps = replicas[0].steps;
+		System.out.println("replica exchange swap rates: " + Arrays.toString(swapRates()));
+		return marginal;
+	}
+
+	/**
+	 * This method attempts the swaps between neighboring replicas, even pairs on even phases and odd pairs on odd phases
+	 * Called by the phaser while all replicas wait
+	 * @param phase int
+	 */
+	void swap(int phase) {
+		for (int r=phase%2; r+1<replicas.length; r+=2) {
+			double gain = (ladder[r] - ladder[r+1]) * (replicas[r+1].chainLikelihood() - replicas[r].chainLikelihood());
+			attempts[r]++;
+			if (gain >= 0 || random.nextDouble() < java.lang.Math.exp(gain)) {
+				replicas[r].exchange(replicas[r+1]);
+				accepts[r]++;
+			}
+		}
+	}
+
+	/**
+	 * This method returns the swap acceptance rates between neighboring replicas in the last E-step
+	 * @return acceptance rate of each pair of neighbors double[]
+	 * @param null
+	 */
+	public double[] swapRates() {
+		double[] rates = new double[attempts.length];
+		for (int r=0; r<rates.length; r++)
+			rates[r] = (attempts[r] == 0) ? 0 : (double) accepts[r] / attempts[r];
+		return rates;
+	}
+
+	/**
+	 * This method implements the M-step on the target replica, and passes the new block parameters to the other replicas
+	 * A polymorphic extension of the abstract method mStep in the parent class
+	 * @return change in parameter values double
+	 * @param marginals double[]
+	 * @param fix boolean
+	 */
+	public double mStep(double[] marginals, boolean fix) {
+		double delta = replicas[0].mStep(marginals, fix);
+		for (int r=1; r<replicas.length; r++)
+			replicas[r].update(replicas[0].typeP, replicas[0].gNode);
+		likelihood = replicas[0].likelihood;
+		return delta;
+	}
+
+}
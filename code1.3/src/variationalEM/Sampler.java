@@ -0,0 +1,112 @@
+package variationalEM;
+
+import graphTools.Graph;
+
+/**
+ * This class implements the abstract Sampler class, an EMstep whose E-step is a Markov chain
+ * It carries the hooks used by ReplicaExchange and MultiChain to run several chains of the same sampler
+ * To be instantiated by MCMC classes
+ * Built for undirected multi-graphs and Poisson/DC block models
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public abstract class Sampler extends EMstep {
+
+	// --- Constructors ----------------------------------------------------------
+	public Sampler(){} //the empty constructor
+	/**
+	 * This constructor creates a Sampler with manually set block parameters, needs to be instantiated
+	 * @param g Graph
+	 * @param degreeC boolean
+	 * @param gSize boolean
+	 * @param p double[][]
+	 * @param n double[]
+	 */
+	public Sampler(Graph g, boolean degreeC, boolean gSize, double[][] p, double[] n) {
+		super(g, degreeC, gSize, p, n);
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method creates an independent chain of the sampler at another inverse temperature
+	 * @return the new replica Sampler
+	 * @param invTemp double
+	 */
+	abstract Sampler replica(double invTemp);
+
+	/**
+	 * This method resets the collected statistics before an E-step
+	 * @return number of sweeps to collect int
+	 * @param null
+	 */
+	abstract int start();
+
+	/**
+	 * This method does one sweep of the chain, collecting statistics once the chain is mixed
+	 * @return measure of change (burn-in sweeps only) double
+	 * @param mixed boolean
+	 */
+	abstract double sweep(boolean mixed);
+
+	/**
+	 * This method normalizes the collected statistics after an E-step
+	 * @return block marginal vectors for all nodes
+	 * @param collected int
+	 */
+	abstract double[][] finish(int collected);
+
+	/**
+	 * This method returns the log-likelihood of the current state of the chain, at inverse temperature 1
+	 * @return log-likelihood double
+	 * @param null
+	 */
+	abstract double chainLikelihood();
+
+	/**
+	 * This method returns the block sizes of the current state of the chain
+	 * @return number of nodes in each block int[]
+	 * @param null
+	 */
+	abstract int[] chainSizes();
+
+	/**
+	 * This method exchanges the current states of two chains of the same sampler, keeping their temperatures
+	 * @param other Sampler
+	 */
+	abstract void exchange(Sampler other);
+
+	/**
+	 * This method draws a seed from the random stream of the chain, for generators derived from it
+	 * so that a seeded chain keeps seeding them
+	 * @return the seed long
+	 * @param null
+	 */
+	abstract long seed();
+
+	/**
+	 * This method returns the inverse temperature of the chain
+	 * @return the inverse temperature double
+	 * @param null
+	 */
+	abstract double invTemp();
+
+	/**
+	 * This method returns label-invariant summaries of the current state for convergence diagnostics:
+	 * the log-likelihood at inverse temperature 1, followed by the block sizes in decreasing order
+	 * @return summary statistics double[]
+	 * @param null
+	 */
+	double[] chainStatistics() {
+		int[] sizes = chainSizes();
+		java.util.Arrays.sort(sizes);
+		double[] stats = new double[sizes.length+1];
+		stats[0] = chainLikelihood();
+		for (int k=0; k<sizes.length; k++)
+			stats[k+1] = sizes[sizes.length-1-k]; //largest block first
+		return stats;
+	}
+
+}
@@ -0,0 +1,379 @@
+package variationalEM;
+
+import graphTools.Graph;
+import java.util.Random;
+
+
+/**
+ * This class implements a spectral initializer for the EM framework based on the Bethe Hessian
+ * H(r) = (r^2-1)I - rA + D, with r the square root of the mean excess degree (Saade, Krzakala and Zdeborova, 2014)
+ * The eigenvectors of the k smallest eigenvalues are computed by Lanczos iterations over the sparse adjacency,
+ * clustered into blocks by k-means, and turned into node marginals and block statistics for seeding EM
+ * Built for undirected multi-graphs (stored bi-directed), self-loops are ignored
+ *
+ * @author Xiaoran Yan ( everyxt@gmail.com )
+ * @version BP_1.3
+ * @time Nov, 2013
+ */
+
+public class SpectralInit {
+	// --- Instance Variables ----------------------------------------------------
+	Graph graph; //the input graph
+	double r; //regularizer of the Bethe Hessian
+	int lanczos; //number of Lanczos iterations (size of the Krylov subspace)
+	Random rand; //randomization of the start vector and k-means
+	public double[] eigenvalues; //the k smallest Ritz values in ascending order
+	public double[][] embedding; //the Ritz vectors of the k smallest Ritz values, indexed [node][vector]
+	public int[] labels; //block assignment of each node by k-means on the embedding
+
+	// --- Constructors ----------------------------------------------------------
+	public SpectralInit() {} //the empty constructor
+
+	/**
+	 * This constructor computes the spectral embedding and block assignment of a graph into its number of types
+	 * @param g Graph
+	 */
+	public SpectralInit(Graph g) {
+		graph = g;
+		rand = new Random();
+		int K = graph.getNumType();
+		lanczos = java.lang.Math.min(graph.getNumNodes(), 3*K + 30);
+
+		double d1 = 0; //sum of degrees
+		double d2 = 0; //sum of squared degrees
+		for (int i=0; i<graph.getNumNodes(); i++) {
+			d1 += graph.vList[i].outDegree; //note that since we have bi-directed edges for undirected graphs, outDegree = degree
+			d2 += (double) graph.vList[i].outDegree * graph.vList[i].outDegree;
+		}
+		r = 1.0001; //boundary case: no excess degree
+		if (d1 > 0 && d2/d1 - 1 > r*r)
+			r = java.lang.Math.sqrt(d2/d1 - 1);
+
+		solve(K);
+		labels = kMeans(embedding, K, 5);
+	}
+
+	// --- Instance Methods ------------------------------------------------------
+	/**
+	 * This method multiplies a vector by the Bethe Hessian
+	 * @param x double[]
+	 * @param y double[]
+	 */
+	void multiply(double[] x, double[] y) {
+		for (int i=0; i<x.length; i++) {
+			double ax = 0;
+			for (int j=0; j<graph.vList[i].targets.size(); j++) {
+				int target = graph.vList[i].targets.get(j);
+				if (target != i) //ignore self-loops
+					ax += graph.vList[i].targetCount.get(j) * x[target];
+			}
+			y[i] = (r*r - 1 + graph.vList[i].outDegree) * x[i] - r * ax;
+		}
+	}
+
+	/**
+	 * This method runs the Lanczos iterations with full re-orthogonalization,
+	 * and keeps the Ritz pairs of the k smallest Ritz values
+	 * @param k int
+	 */
+	void solve(int k) {
+		int V = graph.getNumNodes();
+		double[][] Q = new double[lanczos][]; //the Lanczos basis
+		double[] alpha = new double[lanczos]; //diagonal of the tridiagonal matrix
+		double[] beta = new double[lanczos]; //sub-diagonal of the tridiagonal matrix
+
+		double[] q = new double[V];
+		for (int i=0; i<V; i++)
+			q[i] = rand.nextDouble() - 0.5; //random start vector
+		scale(q, 1.0 / norm(q));
+		int m = 0; //size of the Krylov subspace actually built
+		double[] w = new double[V];
+		while (m < lanczos) {
+			Q[m] = q;
+			multiply(q, w);
+			alpha[m] = dot(q, w);
+			for (int i=0; i<V; i++) {
+				w[i] -= alpha[m] * q[i];
+				if (m > 0)
+					w[i] -= beta[m-1] * Q[m-1][i];
+			}
+			for (int pass=0; pass<2; pass++) //full re-orthogonalization, twice is enough
+				for (int j=0; j<=m; j++) {
+					double c = dot(Q[j], w);
+					for (int i=0; i<V; i++)
+						w[i] -= c * Q[j][i];
+				}
+			m++;
+			beta[m-1] = norm(w);
+			if (beta[m-1] < 1e-10) //invariant subspace found
+				break;
+			q = w.clone();
+			scale(q, 1.0 / beta[m-1]);
+		}
+
+		// Eigen-decomposition of the tridiagonal matrix
+		double[] d = new double[m];
+		double[] e = new double[m];
+		double[][] S = new double[m][m];
+		for (int i=0; i<m; i++) {
+			d[i] = alpha[i];
+			if (i > 0)
+				e[i] = beta[i-1];
+			S[i][i] = 1;
+		}
+		tql2(d, e, S);
+
+		int kept = java.lang.Math.min(k, m);
+		eigenvalues = new double[kept];
+		embedding = new double[V][kept];
+		for (int c=0; c<kept; c++) { //eigenvalues are sorted in ascending order
+			eigenvalues[c] = d[c];
+			for (int j=0; j<m; j++)
+				for (int i=0; i<V; i++)
+					embedding[i][c] += Q[j][i] * S[j][c];
+		}
+	}
+
+	/**
+	 * This method computes all eigenvalues and eigenvectors of a symmetric tridiagonal matrix by the QL algorithm
+	 * with implicit shifts (tql2, after the EISPACK routine as in JAMA), eigenvalues are sorted in ascending order
+	 * @param d double[] (diagonal, overwritten by the eigenvalues)
+	 * @param e double[] (sub-diagonal in e[1..n-1], destroyed)
+	 * @param S double[][] (identity, overwritten by the eigenvectors in columns)
+	 */
+	static void tql2(double[] d, double[] e, double[][] S) {
+		int n = d.length;
+		for (int i=1; i<n; i++)
+			e[i-1] = e[i];
+		e[n-1] = 0.0;
+		double f = 0.0;
+		double tst1 = 0.0;
+		double eps = java.lang.Math.pow(2.0, -52.0);
+		for (int l=0; l<n; l++) {
+			tst1 = java.lang.Math.max(tst1, java.lang.Math.abs(d[l]) + java.lang.Math.abs(e[l]));
+			int m = l;
+			while (m < n-1 && java.lang.Math.abs(e[m]) > eps*tst1) //find a small sub-diagonal element
+				m++;
+			if (m > l) { //iterate until the sub-diagonal element vanishes
+				do {
+					double g = d[l];
+					double p = (d[l+1] - g) / (2.0 * e[l]);
+					double h = java.lang.Math.hypot(p, 1.0);
+					if (p < 0)
+						h = -h;
+					d[l] = e[l] / (p + h);
+					d[l+1] = e[l] * (p + h);
+					double dl1 = d[l+1];
+					h = g - d[l];
+					for (int i=l+2; i<n; i++)
+						d[i] -= h;
+					f += h;
+
+					p = d[m]; //implicit QL transformation
+					double c = 1.0;
+					double c2 = c;
+					double c3 = c;
+					double el1 = e[l+1];
+					double s = 0.0;
+					double s2 = 0.0;
+					for (int i=m-1; i>=l; i--) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						double hyp = java.lang.Math.hypot(p, e[i]);
+						e[i+1] = s * hyp;
+						s = e[i] / hyp;
+						c = p / hyp;
+						p = c * d[i] - s * g;
+						d[i+1] = h + s * (c * g + s * d[i]);
+						for (int k=0; k<n; k++) { //accumulate the transformation
+							h = S[k][i+1];
+							S[k][i+1] = s * S[k][i] + c * h;
+							S[k][i] = c * S[k][i] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+				} while (java.lang.Math.abs(e[l]) > eps*tst1);
+			}
+			d[l] = d[l] + f;
+			e[l] = 0.0;
+		}
+		for (int i=0; i<n-1; i++) { //selection sort of the eigenvalues and eigenvectors
+			int k = i;
+			for (int j=i+1; j<n; j++)
+				if (d[j] < d[k])
+					k = j;
+			if (k != i) {
+				double p = d[k];
+				d[k] = d[i];
+				d[i] = p;
+				for (int j=0; j<n; j++) {
+					p = S[j][i];
+					S[j][i] = S[j][k];
+					S[j][k] = p;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method clusters the rows of the embedding by k-means (k-means++ seeding), keeping the best of several runs
+	 * @return block assignment of each row int[]
+	 * @param X double[][]
+	 * @param k int
+	 * @param runs int
+	 */
+	int[] kMeans(double[][] X, int k, int runs) {
+		int[] best = new int[X.length];
+		double bestCost = Double.MAX_VALUE;
+		for (int run=0; run<runs; run++) {
+			double[][] centers = new double[k][];
+			centers[0] = X[rand.nextInt(X.length)].clone();
+			double[] dist = new double[X.length];
+			for (int c=1; c<k; c++) { //k-means++ seeding
+				double total = 0;
+				for (int i=0; i<X.length; i++) {
+					dist[i] = Double.MAX_VALUE;
+					for (int c2=0; c2<c; c2++)
+						dist[i] = java.lang.Math.min(dist[i], distance(X[i], centers[c2]));
+					total += dist[i];
+				}
+				double pick = rand.nextDouble() * total;
+				int chosen = rand.nextInt(X.length); //boundary case: all rows coincide
+				for (int i=0; i<X.length && total>0; i++) {
+					pick -= dist[i];
+					if (pick <= 0) {
+						chosen = i;
+						break;
+					}
+				}
+				centers[c] = X[chosen].clone();
+			}
+
+			int[] assign = new int[X.length];
+			double cost = 0;
+			for (int iter=0; iter<50; iter++) { //Lloyd iterations
+				boolean changed = false;
+				cost = 0;
+				for (int i=0; i<X.length; i++) {
+					int nearest = 0;
+					for (int c=1; c<k; c++)
+						if (distance(X[i], centers[c]) < distance(X[i], centers[nearest]))
+							nearest = c;
+					if (nearest != assign[i])
+						changed = true;
+					assign[i] = nearest;
+					cost += distance(X[i], centers[nearest]);
+				}
+				if (!changed && iter > 0)
+					break;
+				int[] size = new int[k];
+				double[][] sum = new double[k][X[0].length];
+				for (int i=0; i<X.length; i++) {
+					size[assign[i]]++;
+					for (int c=0; c<X[i].length; c++)
+						sum[assign[i]][c] += X[i][c];
+				}
+				for (int c=0; c<k; c++)
+					if (size[c] > 0) //empty clusters keep their old centers
+						for (int c2=0; c2<sum[c].length; c2++)
+							centers[c][c2] = sum[c][c2] / size[c];
+			}
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = assign;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * This method returns soft node marginals around the spectral block assignment
+	 * @return the mixed membership vectors double[][]
+	 * @param confidence double (mass on the assigned block)
+	 */
+	public double[][] marginals(double confidence) {
+		int K = graph.getNumType();
+		double[][] M = new double[graph.getNumNodes()][K];
+		for (int i=0; i<M.length; i++)
+			for (int k=0; k<K; k++) {
+				if (k == labels[i])
+					M[i][k] = confidence + (1 - confidence) / K;
+				else
+					M[i][k] = (1 - confidence) / K;
+			}
+		return M;
+	}
+
+	/**
+	 * This method returns the number of nodes in each spectral block, as Graph.getNumNodesType
+	 * @return int[]
+	 * @param null
+	 */
+	public int[] getNumNodesType() {
+		return graph.getNumNodesType(labels);
+	}
+	/**
+	 * This method returns the number of edges between spectral blocks, as Graph.getNumEdgsType
+	 * @return int[][]
+	 * @param null
+	 */
+	public int[][] getNumEdgsType() {
+		return graph.getNumEdgsType(labels);
+	}
+	/**
+	 * This method returns the number of degree-corrected edges between spectral blocks, as Graph.getNumDegreeType
+	 * @return double[][]
+	 * @param null
+	 */
+	public double[][] getNumDegreeType() {
+		return graph.getNumDegreeType(labels);
+	}
+
+	/**
+	 * This method returns the inner product of two vectors
+	 * @return double
+	 * @param x double[]
+	 * @param y double[]
+	 */
+	private static double dot(double[] x, double[] y) {
+		double sum = 0;
+		for (int i=0; i<x.length; i++)
+			sum += x[i] * y[i];
+		return sum;
+	}
+	/**
+	 * This method returns the Euclidean norm of a vector
+	 * @return double
+	 * @param x double[]
+	 */
+	private static double norm(double[] x) {
+		return java.lang.Math.sqrt(dot(x, x));
+	}
+	/**
+	 * This method multiplies a vector by a constant in place
+	 * @param x double[]
+	 * @param c double
+	 */
+	private static void scale(double[] x, double c) {
+		for (int i=0; i<x.length; i++)
+			x[i] *= c;
+	}
+	/**
+	 * This method returns the squared Euclidean distance between two vectors
+	 * @return double
+	 * @param x double[]
+	 * @param y double[]
+	 */
+	private static double distance(double[] x, double[] y) {
+		double sum = 0;
+		for (int i=0; i<x.length; i++)
+			sum += (x[i] - y[i]) * (x[i] - y[i]);
+		return sum;
+	}
+
+}